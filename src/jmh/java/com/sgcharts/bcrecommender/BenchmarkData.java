@@ -0,0 +1,84 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.base.CharMatcher;
+
+/**
+ * Inputs shared by the benchmarks. Benchmarks run on the ratings file given
+ * by <code>-Dtoy.ratings</code> (pass it to the forked JVMs with
+ * <code>-jvmArgs</code>), or on synthetic ratings with a long-tailed
+ * popularity of users and books, like the book crossing dataset.
+ *
+ */
+final class BenchmarkData {
+	static final CharMatcher SEPARATOR = CharMatcher.anyOf("\";\\");
+	static final long SEED = 42L;
+
+	private BenchmarkData() {
+		// Not meant to be instantiated
+	}
+
+	/**
+	 * @return explicit ratings of the file given by <code>toy.ratings</code>,
+	 *         or synthetic ratings if the property is not set
+	 * @throws IOException
+	 */
+	static Ratings ratings() throws IOException {
+		String path = System.getProperty("toy.ratings");
+		if (path == null) {
+			return syntheticRatings(20000, 50000, 200000, SEED);
+		}
+		return new RatingsReader(new IdDictionary(), new IdDictionary()).read(
+				new File(path), SEPARATOR, 1, true);
+	}
+
+	/**
+	 * Random ratings without duplicates. Low ids are much more popular than
+	 * high ids, so most users rate a few books and a few books have many
+	 * raters.
+	 */
+	static Ratings syntheticRatings(int nUsers, int nItems, int n, long seed) {
+		Random random = new Random(seed);
+		Ratings ret = new Ratings(n);
+		Set<Long> seen = new HashSet<>();
+		int user;
+		int item;
+		while (ret.size() < n) {
+			user = (int) (nUsers * Math.pow(random.nextDouble(), 2));
+			item = (int) (nItems * Math.pow(random.nextDouble(), 3));
+			if (seen.add(((long) user << 32) | item)) {
+				ret.add(user, item, 1 + random.nextInt(10));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return random sample of the ratings, about the given fraction
+	 */
+	static Ratings sample(Ratings ratings, double fraction, long seed) {
+		Random random = new Random(seed);
+		Ratings ret = new Ratings();
+		for (int i = 0; i < ratings.size(); i++) {
+			if (random.nextDouble() < fraction) {
+				ret.add(ratings.user(i), ratings.item(i), ratings.rating(i));
+			}
+		}
+		return ret;
+	}
+
+	static RatingMatrix ratingTable(Ratings ratings) {
+		int userCount = 0;
+		int itemCount = 0;
+		for (int i = 0; i < ratings.size(); i++) {
+			userCount = Math.max(userCount, ratings.user(i) + 1);
+			itemCount = Math.max(itemCount, ratings.item(i) + 1);
+		}
+		return RatingMatrix.of(ratings, userCount, itemCount);
+	}
+}
@@ -0,0 +1,86 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a ratings file in the book crossing format, with each of the
+ * readers. Reads the file given by <code>-Dtoy.ratings</code>, or a synthetic
+ * file written at setup.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileUtilBenchmark {
+	private File file;
+	private boolean temporary;
+
+	@Setup
+	public void setUp() throws IOException {
+		String path = System.getProperty("toy.ratings");
+		if (path != null) {
+			file = new File(path);
+			return;
+		}
+		file = File.createTempFile("ratings", ".csv");
+		temporary = true;
+		Random random = new Random(BenchmarkData.SEED);
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+			out.write("\"User-ID\";\"ISBN\";\"Book-Rating\"\n");
+			for (int i = 0; i < 1000000; i++) {
+				out.write(String.format("\"%d\";\"%09dX\";\"%d\"\n",
+						random.nextInt(100000), random.nextInt(300000),
+						random.nextInt(11)));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (temporary) {
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public int listRead() throws IOException {
+		return FileUtil.read(file, BenchmarkData.SEPARATOR, 1, true)
+			.size();
+	}
+
+	@Benchmark
+	public int streamingRead() throws IOException {
+		return new RatingsReader(new IdDictionary(), new IdDictionary()).read(
+				file, BenchmarkData.SEPARATOR, 1, true)
+			.size();
+	}
+
+	@Benchmark
+	public int parallelRead() throws IOException {
+		return new RatingsReader(new IdDictionary(), new IdDictionary()).read(
+				file, BenchmarkData.SEPARATOR, 1, true,
+				Runtime.getRuntime()
+					.availableProcessors())
+			.size();
+	}
+}
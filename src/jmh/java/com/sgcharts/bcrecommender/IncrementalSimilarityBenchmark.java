@@ -0,0 +1,87 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of one rating event applied to the incremental similarity model,
+ * with percentiles. Events are drawn from the existing ratings, so users with
+ * long profiles are picked as often as they rate; the model stays the same
+ * size across invocations.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalSimilarityBenchmark {
+	private static final int EVENTS = 1 << 12;
+	private IncrementalSimilarity model;
+	private final int[] users = new int[EVENTS];
+	private final int[] items = new int[EVENTS];
+	private final int[] ratings = new int[EVENTS];
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		RatingMatrix ratingTable = BenchmarkData.ratingTable(BenchmarkData.ratings());
+		model = IncrementalSimilarity.of(ratingTable);
+		Random random = new Random(BenchmarkData.SEED);
+		int p;
+		for (int i = 0; i < EVENTS; i++) {
+			p = random.nextInt(ratingTable.size());
+			items[i] = ratingTable.userItem(p);
+			users[i] = userOf(ratingTable, p);
+			ratings[i] = 1 + random.nextInt(10);
+		}
+	}
+
+	private static int userOf(RatingMatrix ratingTable, int position) {
+		int lo = 0;
+		int hi = ratingTable.userCount() - 1;
+		int mid;
+		while (lo < hi) {
+			mid = (lo + hi + 1) >>> 1;
+			if (ratingTable.userFrom(mid) <= position) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Change an existing rating: a retraction plus a new rating.
+	 */
+	@Benchmark
+	public int edit() {
+		int i = next++ & (EVENTS - 1);
+		return model.rate(users[i], items[i], ratings[i]);
+	}
+
+	/**
+	 * Retract an existing rating and add it back.
+	 */
+	@Benchmark
+	public int retractAndRate() {
+		int i = next++ & (EVENTS - 1);
+		int rating = model.rating(users[i], items[i]);
+		return model.retract(users[i], items[i])
+				+ model.rate(users[i], items[i], rating);
+	}
+}
@@ -0,0 +1,99 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+/**
+ * Pair keys, rating predictions and top-N recommendations. Predictions are
+ * made for random (user, unrated book) queries, so the user profiles follow
+ * the distribution of the data: mostly short, with a long tail.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCfBenchmark {
+	private static final int QUERIES = 1 << 12;
+	private static final int MIN_RATINGS = 2;
+	private static final int NEIGHBOURS = 50;
+	private static final int TOP_N = 10;
+	private RatingMatrix ratingTable;
+	private SimilarityMatrix simMatrix;
+	private Recommender recommender;
+	private final int[] users = new int[QUERIES];
+	private final int[] items = new int[QUERIES];
+	private final int[] predictions = new int[QUERIES];
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		ratingTable = BenchmarkData.ratingTable(BenchmarkData.ratings());
+		simMatrix = SimilarityBuilder.similarityMatrix(ratingTable);
+		recommender = new Recommender(ratingTable, NeighbourIndex.of(
+				simMatrix, ratingTable.itemCount(), NEIGHBOURS, 0),
+				MIN_RATINGS);
+		Random random = new Random(BenchmarkData.SEED);
+		int i = 0;
+		int user;
+		int item;
+		while (i < QUERIES) {
+			user = random.nextInt(ratingTable.userCount());
+			item = random.nextInt(ratingTable.itemCount());
+			if (ratingTable.userRatingCount(user) != 0
+					&& ratingTable.rating(user, item) == RatingMatrix.NO_RATING) {
+				users[i] = user;
+				items[i] = item;
+				i++;
+			}
+		}
+	}
+
+	@Benchmark
+	public long pairKey() {
+		int i = next++ & (QUERIES - 1);
+		// Two random items, in either order, as in a similarity lookup
+		return ItemCf.pairKey(items[i], items[(i + 1) & (QUERIES - 1)]);
+	}
+
+	@Benchmark
+	public int predict() {
+		int i = next++ & (QUERIES - 1);
+		Optional<Integer> p = ItemCf.predict(users[i], items[i], ratingTable,
+				simMatrix, MIN_RATINGS);
+		return p.isPresent() ? p.get() : 0;
+	}
+
+	/**
+	 * All queries in one batch; scores are per prediction.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int predictBatch() {
+		return ItemCf.predict(users, items, 0, QUERIES, ratingTable, simMatrix,
+				MIN_RATINGS, predictions);
+	}
+
+	@Benchmark
+	public int recommend() {
+		return recommender.recommend(users[next++ & (QUERIES - 1)], TOP_N)
+			.size();
+	}
+}
@@ -0,0 +1,109 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vector kernels of {@link MathUtil}: dense kernels over rating vectors of the
+ * given length, and sparse kernels over two sorted slices of rater ids where
+ * the second slice is <code>ratio</code> times longer than the first.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathUtilBenchmark {
+
+	@State(Scope.Thread)
+	public static class Dense {
+		@Param({ "4", "32", "256", "2048" })
+		public int length;
+		private double[] first;
+		private double[] second;
+
+		@Setup
+		public void setUp() {
+			Random random = new Random(BenchmarkData.SEED);
+			first = new double[length];
+			second = new double[length];
+			for (int i = 0; i < length; i++) {
+				first[i] = 1 + random.nextInt(10);
+				second[i] = 1 + random.nextInt(10);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Sparse {
+		@Param({ "32", "256" })
+		public int shortLength;
+		@Param({ "1", "64" })
+		public int ratio;
+		private int[] ids;
+		private byte[] values;
+		private int split;
+		private final long[] sums = new long[3];
+
+		@Setup
+		public void setUp() {
+			Random random = new Random(BenchmarkData.SEED);
+			// Ids of both slices are drawn from the same range, so that
+			// about half the ids of the shorter slice are common.
+			int range = 2 * shortLength * ratio;
+			split = shortLength;
+			ids = new int[shortLength + shortLength * ratio];
+			values = new byte[ids.length];
+			fill(random, 0, split, range);
+			fill(random, split, ids.length, range);
+		}
+
+		private void fill(Random random, int from, int to, int range) {
+			TreeSet<Integer> set = new TreeSet<>();
+			while (set.size() < to - from) {
+				set.add(random.nextInt(range));
+			}
+			int i = from;
+			for (Integer id : set) {
+				ids[i] = id;
+				values[i++] = (byte) (1 + random.nextInt(10));
+			}
+		}
+	}
+
+	@Benchmark
+	public double cosineSimilarity(Dense v) {
+		return MathUtil.cosineSimilarity(v.first, v.second);
+	}
+
+	@Benchmark
+	public double dotProduct(Dense v) {
+		return MathUtil.dotProduct(v.first, v.second);
+	}
+
+	@Benchmark
+	public int sparseSums(Sparse v) {
+		return MathUtil.sparseSums(v.ids, v.values, 0, v.split, v.ids,
+				v.values, v.split, v.ids.length, v.sums);
+	}
+
+	@Benchmark
+	public int sparseSumsGalloping(Sparse v) {
+		return MathUtil.sparseSumsGalloping(v.ids, v.values, 0, v.split,
+				v.ids, v.values, v.split, v.ids.length, v.sums);
+	}
+}
@@ -0,0 +1,69 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the similarity matrix from a random sample of the ratings.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimilarityBuilderBenchmark {
+	/**
+	 * Fraction of the ratings sampled
+	 */
+	@Param({ "0.1", "0.5", "1.0" })
+	public double sample;
+	private RatingMatrix ratingTable;
+
+	@Setup
+	public void setUp() throws IOException {
+		ratingTable = BenchmarkData.ratingTable(BenchmarkData.sample(
+				BenchmarkData.ratings(), sample, BenchmarkData.SEED));
+	}
+
+	@Benchmark
+	public int sequential() {
+		return SimilarityBuilder.similarityMatrix(ratingTable)
+			.size();
+	}
+
+	@Benchmark
+	public int parallel() {
+		return SimilarityBuilder.similarityMatrix(ratingTable,
+				Runtime.getRuntime()
+					.availableProcessors())
+			.size();
+	}
+
+	@Benchmark
+	public int spGemm() {
+		return SpGemmSimilarityBuilder.similarityMatrix(ratingTable)
+			.size();
+	}
+
+	@Benchmark
+	public int spGemmParallel() {
+		return SpGemmSimilarityBuilder.similarityMatrix(ratingTable,
+				Runtime.getRuntime()
+					.availableProcessors())
+			.size();
+	}
+}
@@ -0,0 +1,442 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the similarity file of a rating matrix under a memory budget, for
+ * training sets whose pairs do not fit in the heap.
+ * <p>
+ * Pair sums are accumulated as in {@link SimilarityBuilder}, into a
+ * {@link PairStats} buffer whose capacity is fixed by the budget. When the
+ * buffer is full, its pairs are sorted by pair key and spilled to a run file
+ * of (pair key, dot product, squared norms) records, and the buffer is
+ * cleared. The runs are then k-way merged: records of the same pair in
+ * different runs are partial sums and are added up, and the cosine score of
+ * each pair is appended to a {@link SimilarityFile.Writer}. If there are more
+ * runs than can be merged at once, groups of runs are first merged into
+ * longer runs. The output file is committed only after the last pair, so a
+ * failed build leaves the previous model in place.
+ * <p>
+ * Items are visited in id order and each item owns the pairs where it is the
+ * smaller item, so successive runs cover successive ranges of pair keys and
+ * only the pairs of the item being visited at a spill are split across runs.
+ * Scores are bit-for-bit the same as those of the in-memory build.
+ * <p>
+ * Heap use is the buffer and the merge buffers, both within the budget, plus
+ * the rating matrix and the directory of the output file (8 bytes per item),
+ * whatever the number of pairs.
+ *
+ */
+final class ExternalSimilarityBuilder {
+	private static final Logger log = LoggerFactory.getLogger(ExternalSimilarityBuilder.class);
+	/**
+	 * Pair key, dot product and two squared norms
+	 */
+	static final int RUN_RECORD_BYTES = 20;
+	/**
+	 * Maximum number of runs merged at once
+	 */
+	static final int DEFAULT_FAN_IN = 64;
+	/**
+	 * Bytes per slot of the buffer: a slot of {@link PairStats} (20 bytes),
+	 * and 3/4 of a sort key (8 bytes), as the buffer is at most 3/4 full.
+	 */
+	private static final int BYTES_PER_SLOT = 26;
+	private static final int MIN_CAPACITY = 16;
+	private static final int MIN_STREAM_BUFFER = 1 << 13;
+	private static final int MAX_STREAM_BUFFER = 1 << 20;
+
+	private ExternalSimilarityBuilder() {
+		// Not meant to be instantiated
+	}
+
+	/**
+	 * Build the similarity file of the rating matrix.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param fingerprint
+	 *            identifies the training set, see
+	 *            {@link SimilarityFile#fingerprint()}
+	 * @param file
+	 *            output file, replaced only once the build has succeeded
+	 * @param memoryBytes
+	 *            budget of the buffer and of the merge buffers
+	 * @param tmpDir
+	 *            directory of the run files; the default temporary directory
+	 *            if null
+	 * @return number of item pairs written
+	 * @throws IOException
+	 */
+	static long build(RatingMatrix ratingTable, long fingerprint, File file,
+			long memoryBytes, File tmpDir) throws IOException {
+		return build(ratingTable, fingerprint, file, memoryBytes, tmpDir,
+				DEFAULT_FAN_IN);
+	}
+
+	/**
+	 * @param fanIn
+	 *            maximum number of runs merged at once, at least 2
+	 * @see #build(RatingMatrix, long, File, long, File)
+	 */
+	static long build(RatingMatrix ratingTable, long fingerprint, File file,
+			long memoryBytes, File tmpDir, int fanIn) throws IOException {
+		return build(ratingTable, fingerprint, file, memoryBytes, tmpDir,
+				fanIn, 0, 1);
+	}
+
+	/**
+	 * Build one shard of the similarity file: only the pairs whose smaller
+	 * item belongs to the shard, see {@link ShardedSimilarity#shardOf(int, int)}.
+	 *
+	 * @param shard
+	 *            shard index in [0, nShards)
+	 * @param nShards
+	 *            number of shards
+	 * @see #build(RatingMatrix, long, File, long, File, int)
+	 */
+	static long build(RatingMatrix ratingTable, long fingerprint, File file,
+			long memoryBytes, File tmpDir, int fanIn, int shard, int nShards)
+			throws IOException {
+		if (nShards < 1 || shard < 0 || shard >= nShards) {
+			log.error("invalid shard. shard={} nShards={}", shard, nShards);
+			throw new IllegalArgumentException();
+		}
+		if (memoryBytes < 1) {
+			log.error("memory budget must be positive. memoryBytes={}",
+					memoryBytes);
+			throw new IllegalArgumentException();
+		}
+		if (fanIn < 2) {
+			log.error("fan-in must be at least 2. fanIn={}", fanIn);
+			throw new IllegalArgumentException();
+		}
+		long startTime = System.currentTimeMillis();
+		int capacity = (int) Long.highestOneBit(Math.min(1 << 30,
+				Math.max(MIN_CAPACITY, memoryBytes / BYTES_PER_SLOT)));
+		// No larger than needed for all the co-ratings of the shard, so that
+		// a small build does not allocate the whole budget
+		long coRatings = 0;
+		long[] work = SimilarityBuilder.pairWork(ratingTable);
+		for (int item = 0; item < work.length; item++) {
+			if (nShards == 1 || ShardedSimilarity.shardOf(item, nShards) == shard) {
+				coRatings += work[item];
+			}
+		}
+		while (capacity > MIN_CAPACITY && (capacity >> 1) / 4 * 3 - 1 > coRatings) {
+			capacity >>= 1;
+		}
+		// Stay under the load factor of PairStats, so that it never grows
+		int maxPairs = capacity / 4 * 3 - 1;
+		int streamBuffer = (int) Math.max(MIN_STREAM_BUFFER, Math.min(
+				MAX_STREAM_BUFFER, memoryBytes / (fanIn + 1)));
+		List<Run> runs = new ArrayList<>();
+		try {
+			spill(ratingTable, shard, nShards, maxPairs, tmpDir, streamBuffer,
+					runs);
+			long spilled = 0;
+			for (Run run : runs) {
+				spilled += run.size;
+			}
+			log.info("{} runs spilled, {} records ({} bytes), buffer of {} pairs",
+					runs.size(), spilled, spilled * RUN_RECORD_BYTES, maxPairs);
+			while (runs.size() > fanIn) {
+				List<Run> group = new ArrayList<>(runs.subList(0, fanIn));
+				Run merged = Run.create(tmpDir);
+				try (RunWriter out = new RunWriter(merged, streamBuffer)) {
+					merge(group, streamBuffer, out);
+				}
+				for (Run run : group) {
+					run.delete();
+				}
+				runs.subList(0, fanIn)
+					.clear();
+				runs.add(merged);
+			}
+			long ret;
+			try (SimilarityFile.Writer out = new SimilarityFile.Writer(file,
+					ratingTable.itemCount(), fingerprint)) {
+				merge(runs, streamBuffer, out);
+				ret = out.size();
+				out.commit();
+			}
+			log.info("{} pairs written to {} ({}ms)", ret, file,
+					System.currentTimeMillis() - startTime);
+			return ret;
+		} finally {
+			for (Run run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * Accumulate the pair sums of the shard, spilling a run whenever the
+	 * buffer is full.
+	 */
+	private static void spill(RatingMatrix ratingTable, int shard,
+			int nShards, int maxPairs, File tmpDir, int streamBuffer,
+			List<Run> runs) throws IOException {
+		PairStats buffer = new PairStats(maxPairs);
+		long[] keys = new long[maxPairs];
+		int user;
+		int rating;
+		int to;
+		for (int item = 0; item < ratingTable.itemCount(); item++) {
+			if (nShards != 1
+					&& ShardedSimilarity.shardOf(item, nShards) != shard) {
+				continue;
+			}
+			for (int p = ratingTable.itemFrom(item); p < ratingTable.itemTo(item); p++) {
+				user = ratingTable.itemUser(p);
+				rating = ratingTable.itemRating(p);
+				to = ratingTable.userTo(user);
+				for (int q = ratingTable.userPosition(user, item) + 1; q < to; q++) {
+					buffer.add(pairKey(item, ratingTable.userItem(q)), rating,
+							ratingTable.userRating(q));
+					if (buffer.size() == maxPairs) {
+						runs.add(write(buffer, keys, tmpDir, streamBuffer));
+						buffer.clear();
+					}
+				}
+			}
+		}
+		if (buffer.size() != 0) {
+			runs.add(write(buffer, keys, tmpDir, streamBuffer));
+		}
+	}
+
+	/**
+	 * Write the pairs of the buffer to a run, in ascending order of pair key.
+	 */
+	private static Run write(PairStats buffer, long[] keys, File tmpDir,
+			int streamBuffer) throws IOException {
+		int n = 0;
+		long key;
+		for (int i = 0; i < buffer.capacity(); i++) {
+			key = buffer.key(i);
+			if (key != SimilarityMatrix.EMPTY) {
+				keys[n++] = key;
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		Run ret = Run.create(tmpDir);
+		try (RunWriter out = new RunWriter(ret, streamBuffer)) {
+			int slot;
+			for (int i = 0; i < n; i++) {
+				slot = buffer.find(keys[i]);
+				out.append(keys[i], buffer.dot(slot), buffer.firstNorm(slot),
+						buffer.secondNorm(slot));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Merge runs into one run, adding up the sums of the same pair.
+	 */
+	private static void merge(List<Run> runs, int streamBuffer,
+			final RunWriter out) throws IOException {
+		merge(runs, streamBuffer, new Sink() {
+			@Override
+			public void accept(long key, int dot, int firstNorm,
+					int secondNorm) throws IOException {
+				out.append(key, dot, firstNorm, secondNorm);
+			}
+		});
+	}
+
+	/**
+	 * Merge runs into a similarity file, adding up the sums of the same pair.
+	 */
+	private static void merge(List<Run> runs, int streamBuffer,
+			final SimilarityFile.Writer out) throws IOException {
+		merge(runs, streamBuffer, new Sink() {
+			@Override
+			public void accept(long key, int dot, int firstNorm,
+					int secondNorm) throws IOException {
+				out.append(key, SimilarityBuilder.cosineSimilarity(dot,
+						firstNorm, secondNorm));
+			}
+		});
+	}
+
+	/**
+	 * k-way merge on a binary min-heap of run readers, ordered by their
+	 * current pair key.
+	 */
+	private static void merge(List<Run> runs, int streamBuffer, Sink sink)
+			throws IOException {
+		RunReader[] heap = new RunReader[runs.size()];
+		int n = 0;
+		try {
+			for (Run run : runs) {
+				RunReader r = new RunReader(run, streamBuffer);
+				if (r.next()) {
+					heap[n++] = r;
+				} else {
+					r.close();
+				}
+			}
+			for (int i = n / 2 - 1; i >= 0; i--) {
+				siftDown(heap, i, n);
+			}
+			RunReader top;
+			long key;
+			int dot;
+			int firstNorm;
+			int secondNorm;
+			while (n != 0) {
+				top = heap[0];
+				key = top.key;
+				dot = 0;
+				firstNorm = 0;
+				secondNorm = 0;
+				while (n != 0 && heap[0].key == key) {
+					top = heap[0];
+					dot += top.dot;
+					firstNorm += top.firstNorm;
+					secondNorm += top.secondNorm;
+					if (!top.next()) {
+						top.close();
+						heap[0] = heap[--n];
+						heap[n] = null;
+					}
+					siftDown(heap, 0, n);
+				}
+				sink.accept(key, dot, firstNorm, secondNorm);
+			}
+		} finally {
+			for (int i = 0; i < n; i++) {
+				heap[i].close();
+			}
+		}
+	}
+
+	private static void siftDown(RunReader[] heap, int i, int n) {
+		RunReader r = heap[i];
+		int child;
+		while ((child = 2 * i + 1) < n) {
+			if (child + 1 < n && heap[child + 1].key < heap[child].key) {
+				child++;
+			}
+			if (heap[child].key >= r.key) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = r;
+	}
+
+	/**
+	 * Receives merged pair sums in ascending order of pair key.
+	 */
+	private interface Sink {
+		void accept(long key, int dot, int firstNorm, int secondNorm)
+				throws IOException;
+	}
+
+	/**
+	 * Run file and its number of records.
+	 */
+	private static final class Run {
+		private final File file;
+		private long size = 0;
+
+		private Run(File file) {
+			this.file = file;
+		}
+
+		private static Run create(File tmpDir) throws IOException {
+			File f = File.createTempFile("pairs", ".run", tmpDir);
+			f.deleteOnExit();
+			return new Run(f);
+		}
+
+		private void delete() {
+			if (file.exists() && !file.delete()) {
+				log.warn("cannot delete run file {}", file);
+			}
+		}
+	}
+
+	private static final class RunWriter implements Closeable {
+		private final Run run;
+		private final DataOutputStream out;
+
+		private RunWriter(Run run, int bufferSize) throws IOException {
+			this.run = run;
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(run.file), bufferSize));
+		}
+
+		private void append(long key, int dot, int firstNorm, int secondNorm)
+				throws IOException {
+			out.writeLong(key);
+			out.writeInt(dot);
+			out.writeInt(firstNorm);
+			out.writeInt(secondNorm);
+			run.size++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Cursor over the records of a run.
+	 */
+	private static final class RunReader implements Closeable {
+		private final DataInputStream in;
+		private long remaining;
+		private long key;
+		private int dot;
+		private int firstNorm;
+		private int secondNorm;
+
+		private RunReader(Run run, int bufferSize) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run.file), bufferSize));
+			remaining = run.size;
+		}
+
+		/**
+		 * @return false if the run has no more records
+		 */
+		private boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			key = in.readLong();
+			dot = in.readInt();
+			firstNorm = in.readInt();
+			secondNorm = in.readInt();
+			remaining--;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
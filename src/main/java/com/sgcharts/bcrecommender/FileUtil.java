@@ -6,14 +6,29 @@ import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -123,6 +138,543 @@ public final class FileUtil {
 		return ret;
 	}
 	
+	/**
+	 * Stream the fields of a delimited text file to a handler, without
+	 * materializing a list per row. Splits rows and fields the same way as
+	 * {@link #read(File, CharMatcher, int, boolean)}: rows end at a line
+	 * feed, a carriage return or both, fields are split on any separator
+	 * character and trimmed of whitespace.
+	 * <p>
+	 * The field passed to the handler is a view of a reusable buffer, only
+	 * valid until the handler returns.
+	 * 
+	 * @param file
+	 *            input file, decoded in the platform charset
+	 * @param separator
+	 *            matches separator characters; whitespace if null
+	 * @param nHeaderRows
+	 *            number of rows to skip
+	 * @param omitEmptyStrings
+	 *            if true, empty fields are skipped and do not count as a
+	 *            column
+	 * @param handler
+	 *            receives each field and the end of each row
+	 * @return number of rows read, excluding header rows
+	 * @throws IOException
+	 */
+	public static long read(File file, CharMatcher separator, int nHeaderRows,
+			boolean omitEmptyStrings, FieldHandler handler) throws IOException {
+		if (file == null) {
+			log.error("file must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (handler == null) {
+			log.error("handler must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (separator == null) {
+			separator = CharMatcher.whitespace();
+		}
+		JfrEvents.FileRead event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.FileRead();
+			event.begin();
+		}
+		final CharMatcher whitespace = CharMatcher.whitespace();
+		char[] buf = new char[1 << 16];
+		Field field = new Field(256);
+		int headerRows = nHeaderRows;
+		boolean afterCarriageReturn = false;
+		boolean rowStarted = false;
+		int column = 0;
+		long rows = 0;
+		int n;
+		char c;
+		try (Reader in = new InputStreamReader(new FileInputStream(file),
+				Charset.defaultCharset())) {
+			while ((n = in.read(buf)) != -1) {
+				for (int i = 0; i < n; i++) {
+					c = buf[i];
+					if (c == '\n' && afterCarriageReturn) {
+						// Second half of a CRLF line break
+						afterCarriageReturn = false;
+						continue;
+					}
+					afterCarriageReturn = c == '\r';
+					if (c == '\n' || c == '\r') {
+						if (headerRows > 0) {
+							headerRows--;
+							continue;
+						}
+						column = endOfField(field, column, omitEmptyStrings,
+								whitespace, handler);
+						handler.endOfRow(column);
+						rows++;
+						column = 0;
+						rowStarted = false;
+						continue;
+					}
+					if (headerRows > 0) {
+						continue;
+					}
+					rowStarted = true;
+					if (separator.matches(c)) {
+						column = endOfField(field, column, omitEmptyStrings,
+								whitespace, handler);
+					} else {
+						field.append(c);
+					}
+				}
+			}
+			if (rowStarted) {
+				// Last row does not end with a line break
+				column = endOfField(field, column, omitEmptyStrings,
+						whitespace, handler);
+				handler.endOfRow(column);
+				rows++;
+			}
+		}
+		if (event != null) {
+			event.path = file.getPath();
+			event.bytes = file.length();
+			event.rows = rows;
+			event.chunks = 1;
+			event.commit();
+		}
+		return rows;
+	}
+
+	/**
+	 * Memory-map a delimited text file, split it into line-aligned chunks and
+	 * parse the chunks in parallel, one handler per chunk. Chunk c holds the
+	 * rows that follow those of chunk c - 1, so a caller that merges the
+	 * handlers in list order sees the rows in file order. Rows and fields are
+	 * split the same way as
+	 * {@link #read(File, CharMatcher, int, boolean, FieldHandler)}.
+	 * <p>
+	 * Rows are tokenized on bytes rather than decoded chars. This is only
+	 * exact for charsets where bytes below 0x80 always stand for the ASCII
+	 * char, and for separators that match ASCII chars only; otherwise the
+	 * whole file is read on the calling thread by the first handler. Fields
+	 * containing other bytes are decoded to a String before trimming.
+	 * 
+	 * @param file
+	 *            input file, decoded in the platform charset
+	 * @param separator
+	 *            matches separator characters; whitespace if null
+	 * @param nHeaderRows
+	 *            number of rows to skip
+	 * @param omitEmptyStrings
+	 *            if true, empty fields are skipped and do not count as a
+	 *            column
+	 * @param handlers
+	 *            one handler per chunk; the number of handlers is the number
+	 *            of chunks
+	 * @param nThreads
+	 *            number of chunks parsed at the same time
+	 * @return number of rows read, excluding header rows
+	 * @throws IOException
+	 */
+	public static long read(File file, CharMatcher separator, int nHeaderRows,
+			boolean omitEmptyStrings, List<? extends FieldHandler> handlers,
+			int nThreads) throws IOException {
+		if (file == null) {
+			log.error("file must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (handlers == null || handlers.isEmpty()) {
+			log.error("handlers must not be empty");
+			throw new IllegalArgumentException();
+		}
+		if (nThreads < 1) {
+			log.error("nThreads must be positive. nThreads={}", nThreads);
+			throw new IllegalArgumentException();
+		}
+		if (separator == null) {
+			separator = CharMatcher.whitespace();
+		}
+		final Charset charset = Charset.defaultCharset();
+		if (!isAsciiCompatible(charset) || !isAscii(separator)) {
+			log.info("read: cannot tokenize bytes (charset={}), reading {} on one thread",
+					charset, file);
+			return read(file, separator, nHeaderRows, omitEmptyStrings,
+					handlers.get(0));
+		}
+		JfrEvents.FileRead event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.FileRead();
+			event.begin();
+		}
+		final ByteTokenizer tokenizer = new ByteTokenizer(separator, charset,
+				omitEmptyStrings);
+		final int nChunks = handlers.size();
+		List<Callable<Long>> tasks = new ArrayList<>(nChunks);
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			final long length = channel.size();
+			long start = 0;
+			for (int i = 0; i < nHeaderRows; i++) {
+				start = nextLine(channel, start, length);
+			}
+			long[] bounds = new long[nChunks + 1];
+			bounds[0] = start;
+			for (int c = 1; c < nChunks; c++) {
+				bounds[c] = nextLine(channel, Math.max(bounds[c - 1], start
+						+ (length - start) / nChunks * c - 1), length);
+			}
+			bounds[nChunks] = length;
+			for (int c = 0; c < nChunks; c++) {
+				if (bounds[c + 1] - bounds[c] > Integer.MAX_VALUE) {
+					log.error("chunk is too large to map, use more chunks. chunk={} bytes={}",
+							c, bounds[c + 1] - bounds[c]);
+					throw new IllegalArgumentException();
+				}
+				final FieldHandler handler = handlers.get(c);
+				final ByteBuffer chunk = channel.map(MapMode.READ_ONLY,
+						bounds[c], bounds[c + 1] - bounds[c]);
+				final int index = c;
+				tasks.add(new Callable<Long>() {
+					@Override
+					public Long call() {
+						if (!JfrEvents.AVAILABLE) {
+							return tokenizer.read(chunk, handler);
+						}
+						JfrEvents.FileChunk chunkEvent = new JfrEvents.FileChunk();
+						chunkEvent.begin();
+						long rows = tokenizer.read(chunk, handler);
+						chunkEvent.chunk = index;
+						chunkEvent.bytes = chunk.limit();
+						chunkEvent.rows = rows;
+						chunkEvent.commit();
+						return rows;
+					}
+				});
+			}
+		}
+		long ret = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				nThreads, nChunks));
+		try {
+			for (Future<Long> f : executor.invokeAll(tasks)) {
+				ret += f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while reading chunks");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			log.error("failed to read chunk", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		if (event != null) {
+			event.path = file.getPath();
+			event.bytes = file.length();
+			event.rows = ret;
+			event.chunks = nChunks;
+			event.commit();
+		}
+		return ret;
+	}
+
+	/**
+	 * @param channel
+	 *            input file
+	 * @param from
+	 *            offset to search from
+	 * @param length
+	 *            file length
+	 * @return offset of the first row that starts after <code>from</code>, or
+	 *         the file length if there is none
+	 * @throws IOException
+	 */
+	private static long nextLine(FileChannel channel, long from, long length)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		long position = from;
+		boolean afterCarriageReturn = false;
+		int n;
+		byte b;
+		while (position < length) {
+			buf.clear();
+			n = channel.read(buf, position);
+			if (n <= 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				b = buf.get(i);
+				if (afterCarriageReturn) {
+					return b == '\n' ? position + i + 1 : position + i;
+				}
+				if (b == '\n') {
+					return position + i + 1;
+				}
+				afterCarriageReturn = b == '\r';
+			}
+			position += n;
+		}
+		return length;
+	}
+
+	/**
+	 * @return true if every byte below 0x80 decodes to the same ASCII char,
+	 *         and is never part of a multi-byte sequence
+	 */
+	private static boolean isAsciiCompatible(Charset charset) {
+		String name = charset.name();
+		return charset.equals(StandardCharsets.UTF_8)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+	}
+
+	/**
+	 * @return true if the matcher matches no char above 0x7F
+	 */
+	private static boolean isAscii(CharMatcher matcher) {
+		for (int c = 0x80; c <= Character.MAX_VALUE; c++) {
+			if (matcher.matches((char) c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the rows of a chunk of bytes into fields. Immutable and shared by
+	 * all chunks; per-chunk state lives on the stack and in a
+	 * {@link ByteField}.
+	 */
+	private static final class ByteTokenizer {
+		private final boolean[] separators = new boolean[0x80];
+		private final boolean[] whitespace = new boolean[0x80];
+		private final Charset charset;
+		private final boolean omitEmptyStrings;
+
+		private ByteTokenizer(CharMatcher separator, Charset charset,
+				boolean omitEmptyStrings) {
+			this.charset = charset;
+			this.omitEmptyStrings = omitEmptyStrings;
+			for (char c = 0; c < 0x80; c++) {
+				separators[c] = separator.matches(c);
+				whitespace[c] = CharMatcher.whitespace()
+					.matches(c);
+			}
+		}
+
+		/**
+		 * @return number of rows in the chunk
+		 */
+		private long read(ByteBuffer chunk, FieldHandler handler) {
+			final int length = chunk.limit();
+			ByteField field = new ByteField(chunk);
+			boolean afterCarriageReturn = false;
+			boolean rowStarted = false;
+			boolean ascii = true;
+			int fieldStart = 0;
+			int column = 0;
+			long rows = 0;
+			byte b;
+			for (int i = 0; i < length; i++) {
+				b = chunk.get(i);
+				if (b == '\n' && afterCarriageReturn) {
+					afterCarriageReturn = false;
+					fieldStart = i + 1;
+					continue;
+				}
+				afterCarriageReturn = b == '\r';
+				if (b == '\n' || b == '\r') {
+					column = endOfField(field, fieldStart, i, ascii, column,
+							handler);
+					handler.endOfRow(column);
+					rows++;
+					column = 0;
+					rowStarted = false;
+					ascii = true;
+					fieldStart = i + 1;
+					continue;
+				}
+				rowStarted = true;
+				if (b < 0) {
+					ascii = false;
+				} else if (separators[b]) {
+					column = endOfField(field, fieldStart, i, ascii, column,
+							handler);
+					ascii = true;
+					fieldStart = i + 1;
+				}
+			}
+			if (rowStarted) {
+				column = endOfField(field, fieldStart, length, ascii, column,
+						handler);
+				handler.endOfRow(column);
+				rows++;
+			}
+			return rows;
+		}
+
+		private int endOfField(ByteField field, int start, int end,
+				boolean ascii, int column, FieldHandler handler) {
+			CharSequence value;
+			if (ascii) {
+				while (start < end && whitespace[field.chunk.get(start)]) {
+					start++;
+				}
+				while (end > start && whitespace[field.chunk.get(end - 1)]) {
+					end--;
+				}
+				field.start = start;
+				field.end = end;
+				value = field;
+			} else {
+				byte[] bytes = new byte[end - start];
+				for (int i = 0; i < bytes.length; i++) {
+					bytes[i] = field.chunk.get(start + i);
+				}
+				value = CharMatcher.whitespace()
+					.trimFrom(new String(bytes, charset));
+			}
+			if (value.length() != 0 || !omitEmptyStrings) {
+				handler.field(column, value);
+				column++;
+			}
+			return column;
+		}
+	}
+
+	/**
+	 * ASCII field viewed in place in a chunk of bytes.
+	 */
+	private static final class ByteField implements CharSequence {
+		private final ByteBuffer chunk;
+		private int start = 0;
+		private int end = 0;
+
+		private ByteField(ByteBuffer chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) chunk.get(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			StringBuilder sb = new StringBuilder(to - from);
+			for (int i = from; i < to; i++) {
+				sb.append(charAt(i));
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length()).toString();
+		}
+	}
+
+	/**
+	 * Trim the field, pass it to the handler unless it is empty and empty
+	 * fields are omitted, then clear it.
+	 * 
+	 * @return column of the next field
+	 */
+	private static int endOfField(Field field, int column,
+			boolean omitEmptyStrings, CharMatcher whitespace,
+			FieldHandler handler) {
+		field.trim(whitespace);
+		if (field.length() != 0 || !omitEmptyStrings) {
+			handler.field(column, field);
+			column++;
+		}
+		field.clear();
+		return column;
+	}
+
+	/**
+	 * Receives the fields of a delimited text file, see
+	 * {@link FileUtil#read(File, CharMatcher, int, boolean, FieldHandler)}.
+	 */
+	public interface FieldHandler {
+		/**
+		 * @param column
+		 *            zero-based column of the field in its row
+		 * @param value
+		 *            trimmed field, only valid until this method returns
+		 */
+		void field(int column, CharSequence value);
+
+		/**
+		 * @param columns
+		 *            number of fields in the row
+		 */
+		void endOfRow(int columns);
+	}
+
+	/**
+	 * Growable, reusable character buffer holding the field being parsed.
+	 */
+	private static final class Field implements CharSequence {
+		private char[] chars;
+		private int start = 0;
+		private int end = 0;
+
+		private Field(int capacity) {
+			chars = new char[capacity];
+		}
+
+		private void append(char c) {
+			if (end == chars.length) {
+				chars = Arrays.copyOf(chars, chars.length * 2);
+			}
+			chars[end++] = c;
+		}
+
+		private void trim(CharMatcher whitespace) {
+			while (start < end && whitespace.matches(chars[start])) {
+				start++;
+			}
+			while (end > start && whitespace.matches(chars[end - 1])) {
+				end--;
+			}
+		}
+
+		private void clear() {
+			start = 0;
+			end = 0;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return chars[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return new String(chars, start + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, start, end - start);
+		}
+	}
+
 	public static String readFirstLine(File file) throws IOException {
 		BufferedReader br = null;
 		String ret = null;
@@ -0,0 +1,227 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+import static com.sgcharts.bcrecommender.SimilarityMatrix.EMPTY;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sufficient statistics of cosine similarity shared by all training sets of a
+ * k-fold validation.
+ * <p>
+ * The per-pair sums (dot product and squared norms over common raters) are
+ * additive over co-ratings. A co-rating of two items by the same user belongs
+ * to the training set of fold k unless one of its two ratings is in fold k.
+ * So in a single pass over all ratings, accumulate the total sums, and for
+ * each fold the sums of co-ratings that touch that fold. The sums of the
+ * training set of fold k are then "total minus held-out fold k", computed on
+ * the fly at lookup. A k-fold run costs about one build instead of k, and the
+ * scores are exactly those of building each training set from scratch.
+ *
+ */
+final class FoldStats {
+	private static final Logger log = LoggerFactory.getLogger(FoldStats.class);
+	private final PairStats total;
+	private final PairStats[] heldOut;
+
+	private FoldStats(PairStats total, PairStats[] heldOut) {
+		this.total = total;
+		this.heldOut = heldOut;
+	}
+
+	/**
+	 * @param folds
+	 *            ratings of each fold; a user rates an item at most once
+	 *            over all folds
+	 * @param userCount
+	 *            number of user ids
+	 * @return sums of all ratings and of each fold
+	 */
+	static FoldStats of(List<Ratings> folds, int userCount) {
+		if (folds == null || folds.isEmpty()) {
+			log.error("folds must not be null or empty");
+			throw new IllegalArgumentException();
+		}
+		final int k = folds.size();
+		if (k > Byte.MAX_VALUE) {
+			log.error("too many folds. k={}", k);
+			throw new IllegalArgumentException();
+		}
+		// Bucket every rating by user, remembering its fold
+		int[] ptr = new int[userCount + 1];
+		int size = 0;
+		for (Ratings fold : folds) {
+			for (int i = 0; i < fold.size(); i++) {
+				ptr[fold.user(i) + 1]++;
+			}
+			size += fold.size();
+		}
+		for (int u = 0; u < userCount; u++) {
+			ptr[u + 1] += ptr[u];
+		}
+		int[] items = new int[size];
+		byte[] ratings = new byte[size];
+		byte[] foldOf = new byte[size];
+		int[] next = new int[userCount];
+		System.arraycopy(ptr, 0, next, 0, userCount);
+		int p;
+		for (int f = 0; f < k; f++) {
+			Ratings fold = folds.get(f);
+			for (int i = 0; i < fold.size(); i++) {
+				p = next[fold.user(i)]++;
+				items[p] = fold.item(i);
+				ratings[p] = (byte) fold.rating(i);
+				foldOf[p] = (byte) f;
+			}
+		}
+		PairStats total = new PairStats();
+		PairStats[] heldOut = new PairStats[k];
+		for (int f = 0; f < k; f++) {
+			heldOut[f] = new PairStats();
+		}
+		long key;
+		int a;
+		int b;
+		int dot;
+		int aNorm;
+		int bNorm;
+		int firstNorm;
+		int secondNorm;
+		for (int u = 0; u < userCount; u++) {
+			for (int i = ptr[u]; i < ptr[u + 1]; i++) {
+				a = ratings[i];
+				aNorm = a * a;
+				for (int j = i + 1; j < ptr[u + 1]; j++) {
+					b = ratings[j];
+					bNorm = b * b;
+					dot = a * b;
+					key = pairKey(items[i], items[j]);
+					// Orient the norms by pair key: first norm belongs to the
+					// smaller item id.
+					if (items[i] < items[j]) {
+						firstNorm = aNorm;
+						secondNorm = bNorm;
+					} else {
+						firstNorm = bNorm;
+						secondNorm = aNorm;
+					}
+					total.add(key, dot, firstNorm, secondNorm);
+					heldOut[foldOf[i]].add(key, dot, firstNorm, secondNorm);
+					if (foldOf[j] != foldOf[i]) {
+						heldOut[foldOf[j]].add(key, dot, firstNorm, secondNorm);
+					}
+				}
+			}
+		}
+		return new FoldStats(total, heldOut);
+	}
+
+	/**
+	 * @return number of folds
+	 */
+	int folds() {
+		return heldOut.length;
+	}
+
+	/**
+	 * @return number of bytes held by all sums
+	 */
+	long memoryBytes() {
+		long ret = total.memoryBytes();
+		for (PairStats s : heldOut) {
+			ret += s.memoryBytes();
+		}
+		return ret;
+	}
+
+	/**
+	 * @param k
+	 *            fold held out for testing, zero-based
+	 * @return similarity model of the training set of fold k
+	 */
+	TrainingSimilarity similarity(int k) {
+		if (k < 0 || k >= heldOut.length) {
+			log.error("fold out of range. k={} folds={}", k, heldOut.length);
+			throw new IllegalArgumentException();
+		}
+		return new TrainingSimilarity(total, heldOut[k]);
+	}
+
+	/**
+	 * Cosine similarity of the training set of one fold, computed on the fly
+	 * from the total sums minus the sums of the held-out fold.
+	 *
+	 */
+	static final class TrainingSimilarity implements ItemSimilarity, PairSource {
+		private final PairStats total;
+		private final PairStats heldOut;
+
+		private TrainingSimilarity(PairStats total, PairStats heldOut) {
+			this.total = total;
+			this.heldOut = heldOut;
+		}
+
+		/**
+		 * @return similarity score, or NaN if no co-rating of the pair is
+		 *         left in the training set
+		 */
+		private float similarity(long key, int slot) {
+			int dot = total.dot(slot);
+			int firstNorm = total.firstNorm(slot);
+			int secondNorm = total.secondNorm(slot);
+			int h = heldOut.find(key);
+			if (h >= 0) {
+				dot -= heldOut.dot(h);
+				firstNorm -= heldOut.firstNorm(h);
+				secondNorm -= heldOut.secondNorm(h);
+			}
+			// Ratings are positive, so the dot product is zero only if the
+			// items have no common rater.
+			if (dot == 0) {
+				return Float.NaN;
+			}
+			return SimilarityBuilder.cosineSimilarity(dot, firstNorm,
+					secondNorm);
+		}
+
+		@Override
+		public float get(int item, int other) {
+			long key = pairKey(item, other);
+			int slot = total.find(key);
+			if (slot < 0) {
+				return Float.NaN;
+			}
+			return similarity(key, slot);
+		}
+
+		@Override
+		public void forEach(Visitor visitor) {
+			long key;
+			float sim;
+			for (int slot = 0; slot < total.capacity(); slot++) {
+				key = total.key(slot);
+				if (key == EMPTY) {
+					continue;
+				}
+				sim = similarity(key, slot);
+				if (!Float.isNaN(sim)) {
+					visitor.visit(key, sim);
+				}
+			}
+		}
+
+		/**
+		 * Sums are shared by all folds.
+		 *
+		 * @return number of bytes held by the total sums and the sums of this
+		 *         fold
+		 */
+		@Override
+		public long memoryBytes() {
+			return total.memoryBytes() + heldOut.memoryBytes();
+		}
+	}
+}
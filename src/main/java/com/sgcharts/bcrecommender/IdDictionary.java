@@ -0,0 +1,237 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two-way mapping between string keys (user ids or ISBNs) and dense integer
+ * ids in the range [0, size). Keys are lower-cased once when they are encoded,
+ * so ids are case-insensitive.
+ * <p>
+ * Ids are assigned in order of first appearance. Everything downstream of
+ * ingest works on the integer ids; the original keys are only needed for
+ * logging and output.
+ * <p>
+ * Keys are looked up as {@link CharSequence}, so a parser can pass a reusable
+ * buffer: a String is only allocated the first time a key is seen. Lookups
+ * are served by an open-addressing hash table with linear probing that hashes
+ * and compares the lower-cased characters in place.
+ *
+ */
+final class IdDictionary {
+	private static final Logger log = LoggerFactory.getLogger(IdDictionary.class);
+	/**
+	 * Returned by {@link #get(CharSequence)} when the key has not been encoded
+	 */
+	static final int NO_ID = -1;
+	private static final float MAX_LOAD_FACTOR = 0.5F;
+	/**
+	 * Lower-casing ASCII letters one char at a time gives the same result as
+	 * {@link String#toLowerCase()}, except in locales with special casing
+	 * rules for the letter I.
+	 */
+	private static final boolean ASCII_FAST_PATH = !Arrays.asList("tr", "az",
+			"lt")
+		.contains(Locale.getDefault()
+			.getLanguage());
+	/**
+	 * Slot of the hash table to id, or NO_ID if the slot is empty
+	 */
+	private int[] table;
+	private int mask;
+	/**
+	 * Id to lower-cased key
+	 */
+	private String[] keys;
+	private int[] hashes;
+	private int size = 0;
+
+	IdDictionary() {
+		this(16);
+	}
+
+	IdDictionary(int expectedSize) {
+		if (expectedSize < 0) {
+			log.error("expected size must not be negative. expectedSize={}",
+					expectedSize);
+			throw new IllegalArgumentException();
+		}
+		keys = new String[Math.max(16, expectedSize)];
+		hashes = new int[keys.length];
+		allocate(Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1);
+	}
+
+	private void allocate(int capacity) {
+		table = new int[capacity];
+		Arrays.fill(table, NO_ID);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Returns the id of the key, assigning the next free id if the key is new.
+	 *
+	 * @param key
+	 *            user id or ISBN
+	 * @return dense integer id
+	 */
+	int id(CharSequence key) {
+		if (key == null) {
+			log.error("key must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (!isAsciiFastPath(key)) {
+			key = key.toString()
+				.toLowerCase();
+		}
+		int h = lowerCaseHash(key);
+		int i = slot(key, h);
+		if (table[i] != NO_ID) {
+			return table[i];
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		keys[size] = lowerCase(key);
+		hashes[size] = h;
+		table[i] = size;
+		size++;
+		if (size > MAX_LOAD_FACTOR * table.length) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	/**
+	 * Returns the id of the key without assigning a new one.
+	 *
+	 * @param key
+	 *            user id or ISBN
+	 * @return dense integer id, or {@link #NO_ID} if the key is unknown
+	 */
+	int get(CharSequence key) {
+		if (key == null) {
+			return NO_ID;
+		}
+		if (!isAsciiFastPath(key)) {
+			key = key.toString()
+				.toLowerCase();
+		}
+		return table[slot(key, lowerCaseHash(key))];
+	}
+
+	/**
+	 * @param id
+	 *            dense integer id
+	 * @return lower-cased key that was encoded as this id
+	 */
+	String key(int id) {
+		if (id < 0 || id >= size) {
+			log.error("id out of range. id={} size={}", id, size);
+			throw new IllegalArgumentException();
+		}
+		return keys[id];
+	}
+
+	/**
+	 * @return number of distinct keys
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all keys, so that ids are assigned from 0 again.
+	 */
+	void clear() {
+		Arrays.fill(table, NO_ID);
+		Arrays.fill(keys, 0, size, null);
+		size = 0;
+	}
+
+	private static boolean isAsciiFastPath(CharSequence key) {
+		if (!ASCII_FAST_PATH) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (key.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char lowerCase(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * @return same value as <code>key.toLowerCase().hashCode()</code> for
+	 *         ASCII keys
+	 */
+	private static int lowerCaseHash(CharSequence key) {
+		int h = 0;
+		for (int i = 0; i < key.length(); i++) {
+			h = 31 * h + lowerCase(key.charAt(i));
+		}
+		return h;
+	}
+
+	private static String lowerCase(CharSequence key) {
+		char[] chars = new char[key.length()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = lowerCase(key.charAt(i));
+		}
+		return new String(chars);
+	}
+
+	private static boolean equalsLowerCase(String lower, CharSequence key) {
+		if (lower.length() != key.length()) {
+			return false;
+		}
+		for (int i = 0; i < lower.length(); i++) {
+			if (lower.charAt(i) != lowerCase(key.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int spread(int h) {
+		return (int) SimilarityMatrix.mix(h);
+	}
+
+	/**
+	 * @return slot holding the key, or the empty slot where it would be
+	 *         inserted
+	 */
+	private int slot(CharSequence key, int h) {
+		int i = spread(h) & mask;
+		int id;
+		while ((id = table[i]) != NO_ID) {
+			if (hashes[id] == h && equalsLowerCase(keys[id], key)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void rehash() {
+		allocate(table.length * 2);
+		int i;
+		for (int id = 0; id < size; id++) {
+			i = spread(hashes[id]) & mask;
+			while (table[i] != NO_ID) {
+				i = (i + 1) & mask;
+			}
+			table[i] = id;
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+import static com.sgcharts.bcrecommender.SimilarityMatrix.EMPTY;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Similarity model that is updated rating by rating, instead of being rebuilt
+ * from the whole rating matrix.
+ * <p>
+ * The per-pair sums of {@link SimilarityBuilder} (dot product, and the
+ * squared norm of each item over the common raters) are kept as running sums
+ * in {@link PairStats}, and the cosine score of a pair is computed from its
+ * sums when it is looked up. A rating of item i by user u only changes the
+ * sums of the pairs (i, j) where j is another item rated by u, so an event
+ * costs time proportional to the size of the user's profile. Because the
+ * ratings are integers, the sums are exact and every score is bit-for-bit the
+ * same as in a similarity matrix built from scratch on the same ratings.
+ * <p>
+ * The model also keeps the ratings of each user, so that predictions can be
+ * made from the current ratings.
+ * <p>
+ * Not thread-safe: events must be applied by a single writer, and lookups
+ * must not run concurrently with an event.
+ *
+ */
+final class IncrementalSimilarity implements ItemSimilarity, PairSource,
+		UserRatings {
+	private static final Logger log = LoggerFactory.getLogger(IncrementalSimilarity.class);
+	private final PairStats sums;
+	/**
+	 * Items and ratings of each user, in ascending order of item id
+	 */
+	private int[][] userItems;
+	private byte[][] userRatings;
+	private int[] userSizes;
+	private int userCount;
+	private int itemCount;
+	/**
+	 * Number of pairs with at least one common rater
+	 */
+	private int size;
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private IncrementalSimilarity(PairStats sums, int userCount, int itemCount) {
+		this.sums = sums;
+		this.userCount = userCount;
+		this.itemCount = itemCount;
+		this.size = sums.size();
+		userItems = new int[Math.max(userCount, 16)][];
+		userRatings = new byte[userItems.length][];
+		userSizes = new int[userItems.length];
+	}
+
+	/**
+	 * @param ratingTable
+	 *            initial ratings
+	 * @return model of the initial ratings, to which new ratings can be added
+	 */
+	static IncrementalSimilarity of(RatingMatrix ratingTable) {
+		IncrementalSimilarity ret = new IncrementalSimilarity(
+				SimilarityBuilder.pairStats(ratingTable),
+				ratingTable.userCount(), ratingTable.itemCount());
+		int from;
+		int n;
+		for (int u = 0; u < ratingTable.userCount(); u++) {
+			from = ratingTable.userFrom(u);
+			n = ratingTable.userRatingCount(u);
+			ret.userItems[u] = new int[Math.max(n, 4)];
+			ret.userRatings[u] = new byte[ret.userItems[u].length];
+			for (int i = 0; i < n; i++) {
+				ret.userItems[u][i] = ratingTable.userItem(from + i);
+				ret.userRatings[u][i] = (byte) ratingTable.userRating(from + i);
+			}
+			ret.userSizes[u] = n;
+		}
+		return ret;
+	}
+
+	/**
+	 * Add a rating, or change an existing rating of the item by the user. A
+	 * change is applied as the retraction of the old rating plus the addition
+	 * of the new one.
+	 *
+	 * @param uid
+	 *            user id; new users may be added
+	 * @param isbn
+	 *            item id; new items may be added
+	 * @param rating
+	 *            rating in the range [1, 127]
+	 * @return number of item pairs updated
+	 */
+	int rate(int uid, int isbn, int rating) {
+		if (rating < 1 || rating > Byte.MAX_VALUE) {
+			log.error("rating must be in [1, {}]. rating={}", Byte.MAX_VALUE,
+					rating);
+			throw new IllegalArgumentException();
+		}
+		if (uid < 0 || isbn < 0) {
+			log.error("ids must not be negative. uid={}, isbn={}", uid, isbn);
+			throw new IllegalArgumentException();
+		}
+		long start = System.nanoTime();
+		ensureUser(uid);
+		itemCount = Math.max(itemCount, isbn + 1);
+		int position = position(uid, isbn);
+		int old = RatingMatrix.NO_RATING;
+		if (position >= 0) {
+			old = userRatings[uid][position];
+		}
+		int ret = update(uid, isbn, old, rating);
+		if (position >= 0) {
+			userRatings[uid][position] = (byte) rating;
+		} else {
+			insert(uid, -(position + 1), isbn, rating);
+		}
+		latency.record((System.nanoTime() - start) / 1000);
+		return ret;
+	}
+
+	/**
+	 * Remove the rating of the item by the user.
+	 *
+	 * @param uid
+	 *            user id
+	 * @param isbn
+	 *            item id
+	 * @return number of item pairs updated; 0 if the user has not rated the
+	 *         item
+	 */
+	int retract(int uid, int isbn) {
+		long start = System.nanoTime();
+		if (uid < 0 || uid >= userCount || isbn < 0) {
+			return 0;
+		}
+		int position = position(uid, isbn);
+		if (position < 0) {
+			return 0;
+		}
+		int ret = update(uid, isbn, userRatings[uid][position],
+				RatingMatrix.NO_RATING);
+		int n = --userSizes[uid];
+		System.arraycopy(userItems[uid], position + 1, userItems[uid],
+				position, n - position);
+		System.arraycopy(userRatings[uid], position + 1, userRatings[uid],
+				position, n - position);
+		latency.record((System.nanoTime() - start) / 1000);
+		return ret;
+	}
+
+	/**
+	 * Replace the user's rating of the item in the sums of every pair of the
+	 * item and another item rated by the user. {@link RatingMatrix#NO_RATING}
+	 * (0) stands for no rating, so its products are zero.
+	 *
+	 * @return number of item pairs updated
+	 */
+	private int update(int uid, int isbn, int oldRating, int newRating) {
+		int[] items = userItems[uid];
+		byte[] ratings = userRatings[uid];
+		int n = userSizes[uid];
+		int dot;
+		int norm;
+		int otherNorm;
+		int other;
+		int otherRating;
+		int ret = 0;
+		for (int i = 0; i < n; i++) {
+			other = items[i];
+			if (other == isbn) {
+				continue;
+			}
+			otherRating = ratings[i];
+			dot = (newRating - oldRating) * otherRating;
+			norm = newRating * newRating - oldRating * oldRating;
+			// The other item gains or loses a common rater only when the
+			// rating is added or retracted, not when it changes.
+			otherNorm = 0;
+			if (oldRating == RatingMatrix.NO_RATING) {
+				otherNorm = otherRating * otherRating;
+			} else if (newRating == RatingMatrix.NO_RATING) {
+				otherNorm = -otherRating * otherRating;
+			}
+			if (isbn < other) {
+				add(pairKey(isbn, other), dot, norm, otherNorm);
+			} else {
+				add(pairKey(other, isbn), dot, otherNorm, norm);
+			}
+			ret++;
+		}
+		return ret;
+	}
+
+	private void add(long key, int dot, int firstNorm, int secondNorm) {
+		int slot = sums.add(key, dot, firstNorm, secondNorm);
+		// Norms are sums of squared ratings over the common raters, so they
+		// are zero exactly when the pair has no common rater.
+		int after = sums.firstNorm(slot);
+		int before = after - firstNorm;
+		if (before == 0 && after != 0) {
+			size++;
+		} else if (before != 0 && after == 0) {
+			size--;
+		}
+	}
+
+	/**
+	 * @return position of the item in the user's profile, or (-(insertion
+	 *         point) - 1) if the user has not rated it
+	 */
+	private int position(int uid, int isbn) {
+		return Arrays.binarySearch(userItems[uid], 0, userSizes[uid], isbn);
+	}
+
+	private void insert(int uid, int position, int isbn, int rating) {
+		int n = userSizes[uid];
+		if (n == userItems[uid].length) {
+			userItems[uid] = Arrays.copyOf(userItems[uid], n * 2);
+			userRatings[uid] = Arrays.copyOf(userRatings[uid], n * 2);
+		}
+		System.arraycopy(userItems[uid], position, userItems[uid],
+				position + 1, n - position);
+		System.arraycopy(userRatings[uid], position, userRatings[uid],
+				position + 1, n - position);
+		userItems[uid][position] = isbn;
+		userRatings[uid][position] = (byte) rating;
+		userSizes[uid] = n + 1;
+	}
+
+	private void ensureUser(int uid) {
+		if (uid >= userItems.length) {
+			int capacity = Math.max(uid + 1, userItems.length * 2);
+			userItems = Arrays.copyOf(userItems, capacity);
+			userRatings = Arrays.copyOf(userRatings, capacity);
+			userSizes = Arrays.copyOf(userSizes, capacity);
+		}
+		for (int u = userCount; u <= uid; u++) {
+			if (userItems[u] == null) {
+				userItems[u] = new int[4];
+				userRatings[u] = new byte[4];
+			}
+		}
+		userCount = Math.max(userCount, uid + 1);
+	}
+
+	/**
+	 * @param uid
+	 *            user id
+	 * @param isbn
+	 *            item id
+	 * @return rating, or {@link RatingMatrix#NO_RATING} if the user has not
+	 *         rated the item
+	 */
+	@Override
+	public int rating(int uid, int isbn) {
+		if (uid < 0 || uid >= userCount) {
+			return RatingMatrix.NO_RATING;
+		}
+		int position = position(uid, isbn);
+		if (position < 0) {
+			return RatingMatrix.NO_RATING;
+		}
+		return userRatings[uid][position];
+	}
+
+	/**
+	 * @return similarity score, or NaN if the pair has no common rater
+	 */
+	@Override
+	public float get(int item, int other) {
+		if (item == other) {
+			return Float.NaN;
+		}
+		int slot = sums.find(pairKey(item, other));
+		if (slot < 0 || sums.firstNorm(slot) == 0) {
+			return Float.NaN;
+		}
+		return SimilarityBuilder.cosineSimilarity(sums.dot(slot),
+				sums.firstNorm(slot), sums.secondNorm(slot));
+	}
+
+	/**
+	 * Visit every item pair with at least one common rater, in no particular
+	 * order.
+	 */
+	@Override
+	public void forEach(Visitor visitor) {
+		long key;
+		for (int i = 0; i < sums.capacity(); i++) {
+			key = sums.key(i);
+			if (key != EMPTY && sums.firstNorm(i) != 0) {
+				visitor.visit(key, SimilarityBuilder.cosineSimilarity(
+						sums.dot(i), sums.firstNorm(i), sums.secondNorm(i)));
+			}
+		}
+	}
+
+	/**
+	 * @return number of item pairs with at least one common rater
+	 */
+	int size() {
+		return size;
+	}
+
+	@Override
+	public int userCount() {
+		return userCount;
+	}
+
+	@Override
+	public int userRatingCount(int uid) {
+		if (uid < 0 || uid >= userCount) {
+			return 0;
+		}
+		return userSizes[uid];
+	}
+
+	@Override
+	public int ratedItem(int uid, int k) {
+		return userItems[uid][k];
+	}
+
+	@Override
+	public int ratedItemRating(int uid, int k) {
+		return userRatings[uid][k];
+	}
+
+	/**
+	 * @return one more than the largest item id seen
+	 */
+	int itemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * @return latency of each rating, and of each retraction of an existing
+	 *         rating, in microseconds
+	 */
+	LatencyHistogram latency() {
+		return latency;
+	}
+
+	/**
+	 * Pair sums and user profiles.
+	 */
+	@Override
+	public long memoryBytes() {
+		long ret = sums.memoryBytes();
+		for (int u = 0; u < userCount; u++) {
+			ret += 5L * userItems[u].length;
+		}
+		return ret;
+	}
+}
@@ -1,15 +1,11 @@
 package com.sgcharts.bcrecommender;
 
-import java.util.Map;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableTable;
-
-import static com.sgcharts.bcrecommender.StringUtil.concat;
 
 /**
  * Helper class for item-based collaborative filtering on the book crossing
@@ -18,6 +14,10 @@ import static com.sgcharts.bcrecommender.StringUtil.concat;
  */
 final class ItemCf {
 	private static final Logger log = LoggerFactory.getLogger(ItemCf.class);
+	/**
+	 * Written by the batch predict when no prediction is made for a request
+	 */
+	static final int NO_PREDICTION = 0;
 
 	private ItemCf() {
 		// Not meant to be instantiated
@@ -47,49 +47,70 @@ final class ItemCf {
 	 * </ul>
 	 * 
 	 * @param uid
-	 *            user id for which prediction is made
+	 *            id of the user for which prediction is made
 	 * @param isbn
-	 *            book id for which prediction is made
+	 *            id of the book for which prediction is made
 	 * @param ratingTable
-	 *            rating matrix where rows are books and column are users
+	 *            ratings of each user, e.g. the rating matrix
 	 * @param simMatrix
-	 *            item-item similarity matrix (books)
+	 *            item-item similarity matrix (books), or a pruned
+	 *            neighbourhood model
 	 * @param minRatings
 	 *            minimum number of ratings required to make a prediction
 	 * @return Optionally returns a predicted rating as integer in the range
 	 *         [1,10] inclusive.
 	 */
-	static Optional<Integer> predict(String uid, String isbn,
-									 ImmutableTable<String, String, Integer> ratingTable,
-									 Map<String, Float> simMatrix, int minRatings) {
-		ImmutableMap<String, Integer> ratings = ratingTable.column(uid);
-		if (ratings.isEmpty()) {
+	static Optional<Integer> predict(int uid, int isbn,
+									 UserRatings ratingTable,
+									 ItemSimilarity simMatrix, int minRatings) {
+		if (!JfrEvents.AVAILABLE) {
+			return predictRating(uid, isbn, ratingTable, simMatrix, minRatings);
+		}
+		JfrEvents.Predict event = new JfrEvents.Predict();
+		event.begin();
+		Optional<Integer> ret = predictRating(uid, isbn, ratingTable,
+				simMatrix, minRatings);
+		event.end();
+		if (event.shouldCommit()) {
+			event.uid = uid;
+			event.isbn = isbn;
+			event.userRatings = ratingTable.userRatingCount(uid);
+			event.predicted = ret.isPresent();
+			event.commit();
+		}
+		return ret;
+	}
+
+	private static Optional<Integer> predictRating(int uid, int isbn,
+			UserRatings ratingTable, ItemSimilarity simMatrix, int minRatings) {
+		int nRatings = ratingTable.userRatingCount(uid);
+		if (nRatings == 0) {
 			// User has not rated any items, so cannot make prediction.
 			return Optional.absent();
 		}
-		if (ratings.size() < minRatings) {
+		if (nRatings < minRatings) {
 			// User has rated too few items to make an accurate prediction.
 			return Optional.absent();
 		}
 		Integer ret;
 		float p;
-		Integer rating = ratings.get(isbn);
-		if (rating != null) {
+		int rating = ratingTable.rating(uid, isbn);
+		if (rating != RatingMatrix.NO_RATING) {
 			log.warn(
 					"user has already rated this item, so no prediction was made.\nuid={} isbn={}",
 					uid, isbn);
 			return Optional.absent();
 		}
-		String ratedIsbn;
+		int ratedIsbn;
 		float nu = 0;
 		float de = 0;
-		Float sim;
+		float sim;
 		int count = 0;
-		for (Map.Entry<String, Integer> entry : ratings.entrySet()) {
-			ratedIsbn = entry.getKey();
-			rating = entry.getValue();
-			sim = simMatrix.get(pairKey(isbn, ratedIsbn));
-			if (sim == null) {
+		for (int k = 0; k < nRatings; k++) {
+			ratedIsbn = ratingTable.ratedItem(uid, k);
+			rating = ratingTable.ratedItemRating(uid, k);
+			sim = simMatrix.get(isbn, ratedIsbn);
+			if (Float.isNaN(sim)) {
 				log.debug(
 						"similarity score is not available for item pair={},{}",
 						isbn, ratedIsbn);
@@ -110,17 +131,195 @@ final class ItemCf {
 			log.warn("predicted rating must be greater than zero");
 			return Optional.absent();
 		}
-		ret = Math.round(p);
+		ret = round(p);
+		return Optional.of(ret);
+	}
+
+	/**
+	 * Batch version of
+	 * {@link #predict(int, int, UserRatings, ItemSimilarity, int)}, giving
+	 * the same predictions. Requests are grouped by user, so that the checks
+	 * on the user and the bounds of the user's ratings are done once per
+	 * user; all target items of the user are then scored together, walking
+	 * the user's ratings once per rated item rather than once per target.
+	 * 
+	 * @param uids
+	 *            user id of each request
+	 * @param isbns
+	 *            book id of each request
+	 * @param from
+	 *            first request, inclusive
+	 * @param to
+	 *            last request, exclusive
+	 * @param ratingTable
+	 *            rating matrix where rows are books and column are users
+	 * @param simMatrix
+	 *            item-item similarity matrix (books), or a pruned
+	 *            neighbourhood model
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 * @param predictions
+	 *            receives the predicted rating of request i at index i, or
+	 *            {@link #NO_PREDICTION}
+	 * @return number of predictions made
+	 */
+	static int predict(int[] uids, int[] isbns, int from, int to,
+			RatingMatrix ratingTable, ItemSimilarity simMatrix, int minRatings,
+			int[] predictions) {
+		return predict(uids, isbns, from, to, ratingTable, simMatrix,
+				minRatings, predictions, null);
+	}
+
+	/**
+	 * Batch predict that also counts similarity lookups and the reasons why
+	 * requests were skipped.
+	 * 
+	 * @param stats
+	 *            counts of the batch are added to it, or null
+	 * @return number of predictions made
+	 * @see #predict(int[], int[], int, int, RatingMatrix, ItemSimilarity, int,
+	 *      int[])
+	 */
+	static int predict(int[] uids, int[] isbns, int from, int to,
+			RatingMatrix ratingTable, ItemSimilarity simMatrix, int minRatings,
+			int[] predictions, PredictStats stats) {
+		if (from < 0 || to > uids.length || to > isbns.length
+				|| to > predictions.length || from > to) {
+			log.error("invalid range. from={} to={}", from, to);
+			throw new IllegalArgumentException();
+		}
+		JfrEvents.PredictBatch event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.PredictBatch();
+			event.begin();
+		}
+		final int n = to - from;
+		// Sort requests by user, keeping the request index in the low bits
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = ((long) uids[from + i] << 32) | (from + i);
+		}
+		Arrays.sort(order);
+		// Scratch space for the targets of one user
+		int[] targets = new int[n];
+		float[] nu = new float[n];
+		float[] de = new float[n];
+		int[] counts = new int[n];
+		PredictStats batch = new PredictStats();
+		int ret = 0;
+		int start = 0;
+		int end;
+		int uid;
+		int nTargets;
+		int ratedIsbn;
+		int rating;
+		int isbn;
+		int request;
+		float sim;
+		float p;
+		while (start < n) {
+			uid = (int) (order[start] >> 32);
+			end = start + 1;
+			while (end < n && (int) (order[end] >> 32) == uid) {
+				end++;
+			}
+			nTargets = end - start;
+			int nRatings = ratingTable.userRatingCount(uid);
+			if (nRatings == 0 || nRatings < minRatings) {
+				for (int t = start; t < end; t++) {
+					predictions[(int) order[t]] = NO_PREDICTION;
+				}
+				if (nRatings == 0) {
+					batch.noRatings += nTargets;
+				} else {
+					batch.fewRatings += nTargets;
+				}
+				start = end;
+				continue;
+			}
+			for (int t = 0; t < nTargets; t++) {
+				targets[t] = isbns[(int) order[start + t]];
+				nu[t] = 0;
+				de[t] = 0;
+				counts[t] = 0;
+			}
+			final int rowTo = ratingTable.userTo(uid);
+			batch.similarityLookups += (long) nRatings * nTargets;
+			for (int i = ratingTable.userFrom(uid); i < rowTo; i++) {
+				ratedIsbn = ratingTable.userItem(i);
+				rating = ratingTable.userRating(i);
+				for (int t = 0; t < nTargets; t++) {
+					sim = simMatrix.get(targets[t], ratedIsbn);
+					if (Float.isNaN(sim)) {
+						batch.similarityMisses++;
+						continue;
+					}
+					nu[t] += sim * rating;
+					de[t] += sim;
+					counts[t]++;
+				}
+			}
+			for (int t = 0; t < nTargets; t++) {
+				request = (int) order[start + t];
+				isbn = targets[t];
+				predictions[request] = NO_PREDICTION;
+				// Counted in the stats, so logged only at debug level
+				if (ratingTable.userPosition(uid, isbn) >= 0) {
+					log.debug(
+							"user has already rated this item, so no prediction was made.\nuid={} isbn={}",
+							uid, isbn);
+					batch.alreadyRated++;
+					continue;
+				}
+				if (counts[t] < minRatings) {
+					batch.fewNeighbours++;
+					continue;
+				}
+				p = nu[t] / de[t];
+				if (p == 0) {
+					log.debug("predicted rating must be greater than zero. uid={} isbn={}",
+							uid, isbn);
+					batch.zeroPredictions++;
+					continue;
+				}
+				predictions[request] = round(p);
+				ret++;
+			}
+			start = end;
+		}
+		if (stats != null) {
+			stats.add(batch);
+		}
+		if (event != null) {
+			event.requests = n;
+			event.predictions = ret;
+			event.similarityLookups = batch.similarityLookups;
+			event.similarityMisses = batch.similarityMisses;
+			event.commit();
+		}
+		return ret;
+	}
+
+	/**
+	 * Round the weighted average to the nearest rating, half up. Ratings
+	 * below 1 are rounded up to 1, the lowest explicit rating.
+	 * 
+	 * @param p
+	 *            weighted average of the user's ratings, greater than zero
+	 * @return predicted rating in the range [1,10] inclusive
+	 */
+	static int round(float p) {
+		int ret = Math.round(p);
 		if (ret == 0) {
 			ret = 1;
 		}
-		return Optional.of(ret);
+		return ret;
 	}
 
 	/**
 	 * Returns a key to lookup the similarity score in a hash table. The order
-	 * of arguments does not matter because the book ids are sorted before
-	 * concatenating them to give the key.
+	 * of arguments does not matter because the smaller book id is always
+	 * packed into the high 32 bits of the key.
 	 * 
 	 * @param isbn1
 	 *            first book id
@@ -128,11 +327,73 @@ final class ItemCf {
 	 *            second book id
 	 * @return key to lookup similarity score
 	 */
-	static String pairKey(String isbn1, String isbn2) {
-		final Character separator = ' ';
-		if (isbn1.compareTo(isbn2) <= 0) {
-			return concat(isbn1, separator, isbn2);
+	static long pairKey(int isbn1, int isbn2) {
+		if (isbn1 <= isbn2) {
+			return ((long) isbn1 << 32) | (isbn2 & 0xFFFFFFFFL);
+		}
+		return ((long) isbn2 << 32) | (isbn1 & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param pairKey
+	 *            key returned by {@link #pairKey(int, int)}
+	 * @return the smaller book id of the pair
+	 */
+	static int firstItem(long pairKey) {
+		return (int) (pairKey >>> 32);
+	}
+
+	/**
+	 * @param pairKey
+	 *            key returned by {@link #pairKey(int, int)}
+	 * @return the larger book id of the pair
+	 */
+	static int secondItem(long pairKey) {
+		return (int) pairKey;
+	}
+
+	/**
+	 * Counts of a batch predict: similarity lookups, and requests skipped by
+	 * reason.
+	 */
+	static final class PredictStats {
+		/**
+		 * Similarity scores looked up
+		 */
+		long similarityLookups;
+		/**
+		 * Lookups of item pairs without a score
+		 */
+		long similarityMisses;
+		/**
+		 * Requests of users without ratings
+		 */
+		long noRatings;
+		/**
+		 * Requests of users with fewer ratings than the minimum
+		 */
+		long fewRatings;
+		/**
+		 * Requests of items the user has already rated
+		 */
+		long alreadyRated;
+		/**
+		 * Requests where fewer rated items than the minimum have a score
+		 */
+		long fewNeighbours;
+		/**
+		 * Requests where the weighted average is zero
+		 */
+		long zeroPredictions;
+
+		void add(PredictStats other) {
+			similarityLookups += other.similarityLookups;
+			similarityMisses += other.similarityMisses;
+			noRatings += other.noRatings;
+			fewRatings += other.fewRatings;
+			alreadyRated += other.alreadyRated;
+			fewNeighbours += other.fewNeighbours;
+			zeroPredictions += other.zeroPredictions;
 		}
-		return concat(isbn2, separator, isbn1);
 	}
 }
@@ -1,29 +1,23 @@
 package com.sgcharts.bcrecommender;
 
-import static com.sgcharts.bcrecommender.ItemCf.pairKey;
 import static com.sgcharts.bcrecommender.ItemCf.predict;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sgcharts.bcrecommender.FileUtil;
-import com.sgcharts.bcrecommender.MathUtil;
-
-import com.google.common.base.CharMatcher;
-import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableTable;
-import com.google.common.collect.Sets;
-import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 
 /**
  * k-fold validation for item-based collaborative filtering on the book crossing
@@ -46,7 +40,110 @@ public final class ItemCfValidator {
 	 * prediction. The higher this threshold, the fewer predictions made.
 	 */
 	private static final int MIN_RATINGS_COUNT = Integer.parseInt(System.getProperty("toy.min-ratings"));
-	private static List<List<List<String>>> folds = new ArrayList<>(K_FOLDS);
+	/**
+	 * Number of threads used to build the similarity matrix. Defaults to the
+	 * number of available processors.
+	 */
+	private static final int THREADS = Integer.getInteger("toy.threads",
+			Runtime.getRuntime()
+				.availableProcessors());
+	/**
+	 * Number of threads used to parse the ratings file. If more than 1, the
+	 * file is memory-mapped and parsed in chunks. Defaults to 1.
+	 */
+	private static final int INGEST_THREADS = Integer.getInteger(
+			"toy.ingest-threads", 1);
+	/**
+	 * Optional path of a binary cache of the cleaned, id-encoded ratings. The
+	 * cache is loaded instead of parsing the ratings file, unless the ratings
+	 * file has changed since the cache was written.
+	 */
+	private static final String RATINGS_CACHE_PATH = System.getProperty("toy.ratings-cache");
+	/**
+	 * Optional comma-separated list of neighbourhood sizes K. For each K, a
+	 * neighbour index that keeps only the K most similar items of each item
+	 * is also tested, to compare accuracy and memory against the full
+	 * similarity matrix.
+	 */
+	private static final int[] NEIGHBOURS = ints(System.getProperty(
+			"toy.neighbours", ""));
+	/**
+	 * Neighbours less similar than this are dropped from the neighbour index.
+	 */
+	private static final float MIN_SIMILARITY = Float.parseFloat(System.getProperty(
+			"toy.min-similarity", "0"));
+	/**
+	 * If true, similarity matrices are built as a sparse matrix product, see
+	 * {@link SpGemmSimilarityBuilder}. Scores are the same.
+	 */
+	private static final boolean SPGEMM = Boolean.getBoolean("toy.spgemm");
+	/**
+	 * Number of LSH bands. If positive, an approximate similarity matrix is
+	 * also built from MinHash/LSH candidate pairs and tested, reporting its
+	 * recall of the co-rated pairs and its build time against the exact
+	 * build. Defaults to 0 (disabled).
+	 */
+	private static final int LSH_BANDS = Integer.getInteger("toy.lsh-bands", 0);
+	/**
+	 * Number of MinHash values per LSH band.
+	 */
+	private static final int LSH_ROWS = Integer.getInteger("toy.lsh-rows", 1);
+	/**
+	 * LSH buckets of more items than this are skipped, see
+	 * {@link MinHashLsh}.
+	 */
+	private static final int LSH_MAX_BUCKET = Integer.getInteger(
+			"toy.lsh-max-bucket", MinHashLsh.DEFAULT_MAX_BUCKET);
+	/**
+	 * Optional directory of persisted similarity models. A model is saved
+	 * under the fingerprint of its training set, and is memory-mapped instead
+	 * of rebuilt when the same training set is seen again.
+	 */
+	private static final String MODEL_DIR = System.getProperty("toy.model-dir");
+	/**
+	 * Optional seed of the shuffle before splitting into folds, so that folds
+	 * (and their persisted models) can be reproduced across runs.
+	 */
+	private static final Long SEED = Long.getLong("toy.seed");
+	/**
+	 * If true, compute the sufficient statistics of all folds in one pass and
+	 * derive the similarity of each training set from them, instead of
+	 * building a similarity matrix per fold.
+	 */
+	private static final boolean SHARED_FOLDS = Boolean.getBoolean("toy.shared-folds");
+	/**
+	 * Maximum number of folds tested at the same time. Defaults to 1.
+	 */
+	private static final int PARALLEL_FOLDS = Integer.getInteger("toy.parallel-folds", 1);
+	/**
+	 * Fraction of the maximum heap that concurrent folds may reserve for their
+	 * similarity matrices.
+	 */
+	private static final double MEMORY_FRACTION = Double.parseDouble(System.getProperty(
+			"toy.memory-fraction", "0.8"));
+	/**
+	 * Optional path of the metrics report of the run: CSV if the file name
+	 * ends with .csv, else JSON.
+	 */
+	private static final String METRICS_PATH = System.getProperty("toy.metrics");
+	/**
+	 * Timers and counters of each phase, exported to {@link #METRICS_PATH}
+	 */
+	private static final Metrics metrics = new Metrics();
+	/**
+	 * Test-set predictions are scored in parallel on this pool.
+	 */
+	private static final ForkJoinPool SCORING_POOL = new ForkJoinPool(THREADS);
+	private static MemoryScheduler scheduler;
+	private static List<Ratings> folds = new ArrayList<>(K_FOLDS);
+	/**
+	 * Dictionary of user ids, assigned at ingest
+	 */
+	private static final IdDictionary users = new IdDictionary();
+	/**
+	 * Dictionary of book ids (ISBN), assigned at ingest
+	 */
+	private static final IdDictionary items = new IdDictionary();
 	/**
 	 * Remaining number of ratings after preprocessing. These ratings will be
 	 * divided into k folds.
@@ -58,258 +155,601 @@ public final class ItemCfValidator {
 	}
 
 	public static void main(String[] args) throws IOException {
-		long startTime = System.currentTimeMillis();
+		Metrics.Timer timer = metrics.timer("main");
+		long startTime = timer.start();
 		log.info("Main: started...");
 		extract();
+		scheduler = MemoryScheduler.ofHeap(MEMORY_FRACTION);
 		validate();
-		long elapsedTime = System.currentTimeMillis() - startTime;
-		log.info("Main: completed ({}s)", elapsedTime / 1000);
+		long elapsedTime = timer.stop(startTime);
+		log.info("Main: completed ({}ms)", elapsedTime / 1000000);
+		if (METRICS_PATH != null) {
+			metrics.write(new File(METRICS_PATH));
+		}
 	}
 
 	/**
-	 * Put ratings in a table so that it can be looked up by either books (rows)
-	 * or users (columns) in O(1) time.
+	 * Put ratings in a sparse matrix so that it can be looked up by either
+	 * books (rows) or users (columns) without boxing.
 	 * 
 	 * @param data
-	 *            list of lines representing the training set
+	 *            ratings in the training set
 	 * @return table of ratings where rows are books and columns are users
 	 */
-	private static ImmutableTable<String, String, Integer> ratingTable(
-			List<List<String>> data) {
-		long startTime = System.currentTimeMillis();
+	private static RatingMatrix ratingTable(Ratings data) {
+		Metrics.Timer timer = metrics.timer("ratingTable");
+		long startTime = timer.start();
 		log.info("ratingTable: started...");
-		ImmutableTable.Builder<String, String, Integer> ratingTableBuilder = ImmutableTable.builder();
-		String isbn;
-		String uid;
-		Integer rating;
-		for (List<String> tokens : data) {
-			uid = tokens.get(0)
-				.toLowerCase();
-			isbn = tokens.get(1)
-				.toLowerCase();
-			rating = Integer.parseInt(tokens.get(2));
-			ratingTableBuilder.put(isbn, uid, rating);
-		}
-		long elapsedTime = System.currentTimeMillis() - startTime;
-		log.info("ratingTable: completed ({}s)", elapsedTime / 1000);
-		return ratingTableBuilder.build();
+		RatingMatrix ret = RatingMatrix.of(data, users.size(), items.size());
+		log.info("ratingTable: {} ratings, {} bytes", ret.size(),
+				ret.memoryBytes());
+		long elapsedTime = timer.stop(startTime);
+		log.info("ratingTable: completed ({}ms)", elapsedTime / 1000000);
+		return ret;
 	}
 
 	/**
 	 * Run k-fold validation, testing each fold and report the results.
 	 */
-	private static void validate() {
-		List<List<String>> trainSet;
-		List<List<String>> testSet;
+	private static void validate() throws IOException {
+		// One row of sums per model: the full similarity matrix, followed by
+		// one neighbour index per K, and the LSH similarity matrix if enabled.
+		final int nModels = NEIGHBOURS.length + 1 + (LSH_BANDS > 0 ? 1 : 0);
+		double[] sumMae = new double[nModels];
+		double[] sumRmse = new double[nModels];
+		long[] sumMemory = new long[nModels];
+		int[] predictionCount = new int[nModels];
+		int[] skippedCount = new int[nModels];
+		String[] labels = new String[nModels];
+		FoldStats foldStats = null;
+		if (SHARED_FOLDS) {
+			foldStats = foldStats();
+		}
+		List<List<Result>> results = validateFolds(foldStats);
 		Result r;
-		double sumMae = 0;
-		double sumRmse = 0;
-		int predictionCount = 0;
-		int skippedCount = 0;
 		for (int k = 0; k < K_FOLDS; k++) {
-			trainSet = new ArrayList<>(ratingCount);
-			testSet = folds.get(k);
-			for (int i = 0; i < K_FOLDS; i++) {
-				if (i == k) {
-					continue;
+			for (int m = 0; m < nModels; m++) {
+				r = results.get(k)
+					.get(m);
+				labels[m] = r.label;
+				sumMae[m] += r.meanAbsoluteError;
+				sumRmse[m] += r.rootMeanSquaredError;
+				sumMemory[m] += r.memoryBytes;
+				predictionCount[m] += r.predictionCount;
+				skippedCount[m] += r.skippedCount;
+			}
+		}
+		for (int m = 0; m < nModels; m++) {
+			log.info(
+					"=====\n{}-fold validation results ({}):\naverage meanAbsoluteError={}\naverage rootMeanSquaredError={}\ntotal #predictions={}\ntotal #skipped={}\naverage memoryBytes={}\n=====",
+					K_FOLDS, labels[m], sumMae[m] / K_FOLDS,
+					sumRmse[m] / K_FOLDS, predictionCount[m], skippedCount[m],
+					sumMemory[m] / K_FOLDS);
+			String name = "total." + StringUtil.slug(labels[m]);
+			metrics.value(name + ".averageMeanAbsoluteError")
+				.add(sumMae[m] / K_FOLDS);
+			metrics.value(name + ".averageRootMeanSquaredError")
+				.add(sumRmse[m] / K_FOLDS);
+			metrics.counter(name + ".predictions")
+				.add(predictionCount[m]);
+			metrics.counter(name + ".skipped")
+				.add(skippedCount[m]);
+		}
+	}
+
+	/**
+	 * Test each fold, running up to {@link #PARALLEL_FOLDS} folds at the same
+	 * time.
+	 * 
+	 * @param foldStats
+	 *            statistics shared by all folds, or null
+	 * @return test results of each fold, in fold order
+	 * @throws IOException
+	 */
+	private static List<List<Result>> validateFolds(final FoldStats foldStats)
+			throws IOException {
+		List<List<Result>> ret = new ArrayList<>(K_FOLDS);
+		if (PARALLEL_FOLDS == 1) {
+			for (int k = 0; k < K_FOLDS; k++) {
+				ret.add(validateFold(k, foldStats));
+			}
+			return ret;
+		}
+		log.info("validateFolds: {} folds at a time, memory budget={} bytes",
+				PARALLEL_FOLDS, scheduler.budget());
+		List<Callable<List<Result>>> tasks = new ArrayList<>(K_FOLDS);
+		for (int k = 0; k < K_FOLDS; k++) {
+			final int fold = k;
+			tasks.add(new Callable<List<Result>>() {
+				@Override
+				public List<Result> call() throws IOException {
+					return validateFold(fold, foldStats);
 				}
-				trainSet.addAll(folds.get(i));
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_FOLDS);
+		try {
+			for (Future<List<Result>> f : executor.invokeAll(tasks)) {
+				ret.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while validating folds");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			log.error("failed to validate fold", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return ret;
+	}
+
+	/**
+	 * Test one fold, training on the remaining folds.
+	 * 
+	 * @param k
+	 *            fold held out for testing, zero-based
+	 * @param foldStats
+	 *            statistics shared by all folds, or null
+	 * @return test results of the full similarity matrix, followed by the
+	 *         results of each neighbour index and of the LSH similarity matrix
+	 * @throws IOException
+	 */
+	private static List<Result> validateFold(int k, FoldStats foldStats)
+			throws IOException {
+		Ratings trainSet = new Ratings(ratingCount);
+		Ratings testSet = folds.get(k);
+		for (int i = 0; i < K_FOLDS; i++) {
+			if (i == k) {
+				continue;
 			}
-			r = validate(trainSet, testSet);
-			sumMae += r.meanAbsoluteError;
-			sumRmse += r.rootMeanSquaredError;
-			predictionCount += r.predictionCount;
-			skippedCount += r.skippedCount;
+			trainSet.addAll(folds.get(i));
+		}
+		List<Result> ret = validate(trainSet, testSet,
+				foldStats == null ? null : foldStats.similarity(k));
+		for (Result r : ret) {
 			log.info(
-					"=====\nResults for k={}:\nmeanAbsoluteError={}\nrootMeanSquaredError={}\n#predictions={}\n#skipped={}\n=====",
-					k + 1, r.meanAbsoluteError, r.rootMeanSquaredError,
-					r.predictionCount, r.skippedCount);
+					"=====\nResults for k={} ({}):\nmeanAbsoluteError={}\nrootMeanSquaredError={}\n#predictions={}\n#skipped={}\nmemoryBytes={}\n=====",
+					k + 1, r.label, r.meanAbsoluteError, r.rootMeanSquaredError,
+					r.predictionCount, r.skippedCount, r.memoryBytes);
+			String name = "fold" + (k + 1) + "." + StringUtil.slug(r.label);
+			metrics.value(name + ".meanAbsoluteError")
+				.add(r.meanAbsoluteError);
+			metrics.value(name + ".rootMeanSquaredError")
+				.add(r.rootMeanSquaredError);
+			metrics.counter(name + ".predictions")
+				.add(r.predictionCount);
+			metrics.counter(name + ".skipped")
+				.add(r.skippedCount);
 		}
-		log.info(
-				"=====\n{}-fold validation results:\naverage meanAbsoluteError={}\naverage rootMeanSquaredError={}\ntotal #predictions={}\ntotal #skipped={}\n=====",
-				K_FOLDS, sumMae / K_FOLDS, sumRmse / K_FOLDS, predictionCount,
-				skippedCount);
+		return ret;
 	}
 
 	/**
 	 * Given a training set, build a rating table and similarity matrix for
-	 * predicting ratings in the testing set.
+	 * predicting ratings in the testing set. If neighbourhood sizes are
+	 * given, also test a neighbour index for each size.
+	 * <p>
+	 * The estimated footprint of the similarity matrix is reserved with the
+	 * memory scheduler before it is built, so that concurrent folds do not
+	 * run out of heap.
 	 * 
 	 * @param trainSet
-	 *            list of lines representing the training set
+	 *            ratings in the training set
 	 * @param testSet
-	 *            list of lines representing the testing set
-	 * @return test results
+	 *            ratings in the testing set
+	 * @param shared
+	 *            similarity of the training set derived from the statistics
+	 *            shared by all folds, or null to build it from the training
+	 *            set
+	 * @return test results of the full similarity matrix, followed by the
+	 *         results of each neighbour index
 	 */
-	private static Result validate(List<List<String>> trainSet,
-			List<List<String>> testSet) {
-		long startTime = System.currentTimeMillis();
+	private static List<Result> validate(Ratings trainSet, Ratings testSet,
+			FoldStats.TrainingSimilarity shared) throws IOException {
+		Metrics.Timer timer = metrics.timer("validate");
+		long startTime = timer.start();
 		log.info("validate: started...");
-		ImmutableTable<String, String, Integer> ratingTable = ratingTable(trainSet);
-		Map<String, Float> simMatrix = similarityMatrix(ratingTable);
-		List<Double> predictions = new ArrayList<>(testSet.size());
-		List<Double> actuals = new ArrayList<>(testSet.size());
-		String isbn;
-		String uid;
-		Double a;
-		Double p;
-		Optional<Integer> op;
-		int skipped = 0;
-		for (List<String> tokens : testSet) {
-			uid = tokens.get(0)
-				.toLowerCase();
-			isbn = tokens.get(1)
-				.toLowerCase();
-			a = Double.parseDouble(tokens.get(2));
-			op = predict(uid, isbn, ratingTable, simMatrix, MIN_RATINGS_COUNT);
-			if (!op.isPresent()) {
-				skipped++;
-				continue;
+		RatingMatrix ratingTable = ratingTable(trainSet);
+		List<Result> ret = new ArrayList<>(NEIGHBOURS.length + 1);
+		long estimate = shared == null ? estimateModelBytes(ratingTable) : 0;
+		try {
+			scheduler.acquire(estimate);
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while waiting for memory");
+			throw new IllegalStateException(e);
+		}
+		try {
+			if (shared != null) {
+				test(testSet, ratingTable, shared, ret);
+			} else if (MODEL_DIR == null) {
+				SimilarityMatrix simMatrix = similarityMatrix(ratingTable);
+				test(testSet, ratingTable, simMatrix, ret);
+			} else {
+				try (SimilarityFile simMatrix = similarityFile(trainSet,
+						ratingTable)) {
+					test(testSet, ratingTable, simMatrix, ret);
+				}
 			}
-			actuals.add(a);
-			p = (double) op.get();
-			predictions.add(p);
-			log.debug("a={}, p={}", a, p);
+		} finally {
+			scheduler.release(estimate);
+		}
+		long elapsedTime = timer.stop(startTime);
+		log.info("validate: completed ({}ms)", elapsedTime / 1000000);
+		return ret;
+	}
+
+	/**
+	 * Upper bound of the heap needed to build the similarity matrix: the
+	 * number of distinct pairs is at most the number of co-ratings, and both
+	 * the pair sums (20 bytes per slot) and the similarity matrix (12 bytes
+	 * per slot) are held at the same time.
+	 * 
+	 * @param ratingTable
+	 *            rating table of the training set
+	 * @return estimated number of bytes
+	 */
+	private static long estimateModelBytes(RatingMatrix ratingTable) {
+		long pairs = 0;
+		for (long w : SimilarityBuilder.pairWork(ratingTable)) {
+			pairs += w;
+		}
+		int capacity = SimilarityMatrix.capacityFor((int) Math.min(pairs,
+				1 << 29));
+		return (20L + 12L) * capacity;
+	}
+
+	/**
+	 * Test the similarity model, followed by a neighbour index for each
+	 * neighbourhood size, and the LSH similarity matrix if enabled.
+	 * 
+	 * @param testSet
+	 *            ratings in the testing set
+	 * @param ratingTable
+	 *            rating table of the training set
+	 * @param simMatrix
+	 *            full similarity model of the training set
+	 * @param results
+	 *            test results are added to this list
+	 */
+	private static <T extends ItemSimilarity & PairSource> void test(
+			Ratings testSet, RatingMatrix ratingTable, T simMatrix,
+			List<Result> results) {
+		results.add(test(testSet, ratingTable, simMatrix, "all neighbours"));
+		NeighbourIndex index;
+		for (int k : NEIGHBOURS) {
+			index = neighbourIndex(simMatrix, k);
+			results.add(test(testSet, ratingTable, index,
+					String.format("k=%d neighbours", k)));
+		}
+		if (LSH_BANDS > 0) {
+			results.add(testLsh(testSet, ratingTable));
+		}
+	}
+
+	/**
+	 * Build the similarity matrix from MinHash/LSH candidate pairs, compare
+	 * it with the exact build, and test it. Both builds are timed on one
+	 * thread.
+	 * 
+	 * @param testSet
+	 *            ratings in the testing set
+	 * @param ratingTable
+	 *            rating table of the training set
+	 * @return test results of the LSH similarity matrix
+	 */
+	private static Result testLsh(Ratings testSet, RatingMatrix ratingTable) {
+		log.info("lsh: started... bands={} rows={} maxBucket={}", LSH_BANDS,
+				LSH_ROWS, LSH_MAX_BUCKET);
+		Metrics.Timer exactTimer = metrics.timer("lsh.exactBuild");
+		long startTime = exactTimer.start();
+		int truePairs = SimilarityBuilder.similarityMatrix(ratingTable)
+			.size();
+		long exactTime = exactTimer.stop(startTime) / 1000000;
+		Metrics.Timer lshTimer = metrics.timer("lsh.build");
+		startTime = lshTimer.start();
+		SimilarityMatrix simMatrix = MinHashLsh.similarityMatrix(ratingTable,
+				LSH_BANDS, LSH_ROWS, LSH_MAX_BUCKET, SEED == null ? 0 : SEED);
+		long lshTime = lshTimer.stop(startTime) / 1000000;
+		metrics.counter("lsh.truePairs")
+			.add(truePairs);
+		metrics.counter("lsh.pairs")
+			.add(simMatrix.size());
+		log.info(
+				"lsh: recall={} ({} of {} co-rated pairs), build {}ms vs exact {}ms (speedup={})",
+				simMatrix.size() / (double) Math.max(truePairs, 1),
+				simMatrix.size(), truePairs, lshTime, exactTime,
+				exactTime / (double) Math.max(lshTime, 1));
+		return test(testSet, ratingTable, simMatrix, String.format(
+				"lsh bands=%d rows=%d maxBucket=%d", LSH_BANDS, LSH_ROWS,
+				LSH_MAX_BUCKET));
+	}
+
+	/**
+	 * Predict every rating in the testing set. The testing set is split into
+	 * chunks that are scored in parallel as batches, each with its own error
+	 * sums; the sums are merged in chunk order.
+	 * 
+	 * @param testSet
+	 *            ratings in the testing set
+	 * @param ratingTable
+	 *            rating table of the training set
+	 * @param simMatrix
+	 *            similarity model of the training set
+	 * @param label
+	 *            name of the similarity model
+	 * @return test results
+	 */
+	private static Result test(final Ratings testSet,
+			final RatingMatrix ratingTable, final ItemSimilarity simMatrix,
+			String label) {
+		final int size = testSet.size();
+		final int chunk = Math.max(1024, size / (THREADS * 4) + 1);
+		List<Callable<ErrorSums>> tasks = new ArrayList<>();
+		for (int from = 0; from < size; from += chunk) {
+			final int start = from;
+			final int end = Math.min(size, from + chunk);
+			tasks.add(new Callable<ErrorSums>() {
+				@Override
+				public ErrorSums call() {
+					return test(testSet, start, end, ratingTable, simMatrix);
+				}
+			});
+		}
+		ErrorSums sums = new ErrorSums();
+		long startTime = System.nanoTime();
+		try {
+			for (Future<ErrorSums> f : SCORING_POOL.invokeAll(tasks)) {
+				sums.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while testing");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			log.error("failed to test", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+		log.info("test: {} requests scored in {}ms ({} predictions/s) ({})",
+				size, elapsedTime / 1000000,
+				Math.round(size / Math.max(elapsedTime / 1e9, 1e-9)), label);
+		String name = "predict." + StringUtil.slug(label);
+		metrics.timer(name)
+			.record(elapsedTime);
+		metrics.counter(name + ".requests")
+			.add(size);
+		metrics.counter(name + ".similarityLookups")
+			.add(sums.stats.similarityLookups);
+		metrics.counter(name + ".similarityMisses")
+			.add(sums.stats.similarityMisses);
+		metrics.counter(name + ".skipped.noRatings")
+			.add(sums.stats.noRatings);
+		metrics.counter(name + ".skipped.fewRatings")
+			.add(sums.stats.fewRatings);
+		metrics.counter(name + ".skipped.alreadyRated")
+			.add(sums.stats.alreadyRated);
+		metrics.counter(name + ".skipped.fewNeighbours")
+			.add(sums.stats.fewNeighbours);
+		metrics.counter(name + ".skipped.zeroPrediction")
+			.add(sums.stats.zeroPredictions);
+		if (sums.count == 0) {
+			// Error is undefined without predictions
+			log.error("no predictions were made. label={} skipped={}", label,
+					sums.skipped);
+			throw new IllegalArgumentException();
 		}
-		double[] predictionsArr = Doubles.toArray(predictions);
-		double[] actualsArr = Doubles.toArray(actuals);
 		Result result = new Result();
-		result.meanAbsoluteError = MathUtil.meanAbsoluteError(predictionsArr,
-				actualsArr);
-		result.rootMeanSquaredError = MathUtil.rootMeanSquaredError(
-				predictionsArr, actualsArr);
-		result.predictionCount = predictionsArr.length;
-		result.skippedCount = skipped;
-		long elapsedTime = System.currentTimeMillis() - startTime;
-		log.info("validate: completed ({}s)", elapsedTime / 1000);
+		result.label = label;
+		result.meanAbsoluteError = sums.absoluteError / sums.count;
+		result.rootMeanSquaredError = Math.sqrt(sums.squaredError / sums.count);
+		result.predictionCount = sums.count;
+		result.skippedCount = sums.skipped;
+		result.memoryBytes = simMatrix.memoryBytes();
 		return result;
 	}
 
+	/**
+	 * Predict the ratings in [from, to) of the testing set, in one batch.
+	 * 
+	 * @return error sums of the chunk
+	 */
+	private static ErrorSums test(Ratings testSet, int from, int to,
+			RatingMatrix ratingTable, ItemSimilarity simMatrix) {
+		ErrorSums ret = new ErrorSums();
+		final int n = to - from;
+		int[] uids = new int[n];
+		int[] isbns = new int[n];
+		for (int i = 0; i < n; i++) {
+			uids[i] = testSet.user(from + i);
+			isbns[i] = testSet.item(from + i);
+		}
+		int[] predictions = new int[n];
+		long startTime = System.nanoTime();
+		predict(uids, isbns, 0, n, ratingTable, simMatrix, MIN_RATINGS_COUNT,
+				predictions, ret.stats);
+		// Latency of a batch, per request
+		metrics.histogram("predict.batchNanosPerRequest")
+			.record((System.nanoTime() - startTime) / Math.max(n, 1));
+		int a;
+		int p;
+		for (int i = 0; i < n; i++) {
+			p = predictions[i];
+			if (p == ItemCf.NO_PREDICTION) {
+				ret.skipped++;
+				continue;
+			}
+			a = testSet.rating(from + i);
+			ret.add(p, a);
+			// Skip the key lookups and boxing unless debugging
+			if (log.isDebugEnabled()) {
+				log.debug("uid={} isbn={} a={}, p={}", users.key(uids[i]),
+						items.key(isbns[i]), a, p);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Keep only the k most similar items of each item.
+	 * 
+	 * @param simMatrix
+	 *            full similarity model
+	 * @param k
+	 *            maximum number of neighbours per item
+	 * @return neighbour index
+	 */
+	private static NeighbourIndex neighbourIndex(PairSource simMatrix,
+			int k) {
+		Metrics.Timer timer = metrics.timer("neighbourIndex");
+		long startTime = timer.start();
+		log.info("neighbourIndex: started... k={} minSimilarity={}", k,
+				MIN_SIMILARITY);
+		NeighbourIndex ret = NeighbourIndex.of(simMatrix, items.size(), k,
+				MIN_SIMILARITY);
+		log.info("neighbourIndex: {} neighbours, {} bytes", ret.size(),
+				ret.memoryBytes());
+		long elapsedTime = timer.stop(startTime);
+		log.info("neighbourIndex: completed ({}ms)", elapsedTime / 1000000);
+		return ret;
+	}
+
 	/**
 	 * Given a rating table, build an item-item similarity matrix.
 	 * <p>
-	 * Similarity scores are stored as Float type to save space.
+	 * Similarity scores are stored as float type to save space. Only item
+	 * pairs that share at least one rater are visited, see
+	 * {@link SimilarityBuilder}.
 	 * 
 	 * @param ratingTable
-	 * @return Map of item-pair key to its similarity score.
-	 */
-	private static Map<String, Float> similarityMatrix(
-			ImmutableTable<String, String, Integer> ratingTable) {
-		long startTime = System.currentTimeMillis();
-		log.info("similarityMatrix: started...");
-		final int simMatrixExpectedSize = 50_000_000;
-		Map<String, Float> simMatrix = new HashMap<>(simMatrixExpectedSize,
-				0.99F);
-		ImmutableSet<String> itemsSet = ratingTable.rowKeySet();
-		final String[] items = itemsSet.toArray(new String[itemsSet.size()]);
-		ImmutableMap<String, Map<String, Integer>> itemMap = ratingTable.rowMap();
-		Map<String, Integer> uidToRating;
-		Map<String, Integer> otherUidToRating;
-		Set<String> raters;
-		Set<String> otherRaters;
-		Set<String> commonRaters;
-		Float sim;
-		String isbn;
-		String otherIsbn;
-		String pair;
-		int progress = 0;
-		final int progressInterval = 1_000_000;
-		// Loop only the upper triangle of the item-item matrix.
-		// Skip the lower triangle as their similarity scores have already been
-		// computed.
-		// This still takes O(n^2) time but practically, this reduces run time
-		// by two-thirds as compared to a full nested loop. Performance gains
-		// from not having to check whether similarity score has already been
-		// computed, despite the lookup taking O(1) time.
-		// One possibe reason is that the similarity matrix hash table is huge,
-		// thus increasing the chance of
-		// key collision and the lookup time is greater than O(1) time in an
-		// imperfect hash table.
-		for (int i = 0; i < items.length; i++) {
-			for (int j = i + 1; j < items.length; j++) {
-				isbn = items[i];
-				uidToRating = itemMap.get(isbn);
-				// this item has at least 1 rating
-				raters = uidToRating.keySet();
-				otherIsbn = items[j];
-				otherUidToRating = itemMap.get(otherIsbn);
-				// other item has at least 1 rating
-				otherRaters = otherUidToRating.keySet();
-				// Intersect raters of this item vs. other item
-				commonRaters = Sets.intersection(raters, otherRaters);
-				if (commonRaters.isEmpty()) {
-					// No raters in common; skip
-					continue;
-				}
-				pair = pairKey(isbn, otherIsbn);
-				sim = cosineSimilarity(commonRaters, uidToRating,
-						otherUidToRating);
-				log.debug("sim={} isbn={} otherIsbn={}", sim, isbn, otherIsbn);
-				if (++progress % progressInterval == 0) {
-					log.info("{}M sim computed", progress / progressInterval);
-				}
-				simMatrix.put(pair, sim);
-			}
-		}
-		log.info("{} sim computed", progress);
-		long elapsedTime = System.currentTimeMillis() - startTime;
-		log.info("similarityMatrix: completed ({}s)", elapsedTime / 1000);
+	 * @return similarity matrix
+	 */
+	private static SimilarityMatrix similarityMatrix(
+			RatingMatrix ratingTable) {
+		Metrics.Timer timer = metrics.timer("similarityMatrix");
+		long startTime = timer.start();
+		log.info("similarityMatrix: started... threads={} spgemm={}", THREADS,
+				SPGEMM);
+		// Counted by the build itself, as folds build concurrently
+		Metrics.Counter coRatings = new Metrics.Counter();
+		SimilarityMatrix simMatrix = SPGEMM ? SpGemmSimilarityBuilder.similarityMatrix(
+				ratingTable, THREADS, coRatings)
+				: SimilarityBuilder.similarityMatrix(ratingTable, THREADS,
+						coRatings);
+		long elapsedTime = timer.stop(startTime);
+		// Co-ratings visited are the intersections tried; distinct pairs are
+		// the non-empty ones.
+		long visited = coRatings.get();
+		metrics.counter("similarityMatrix.coRatingsVisited")
+			.add(visited);
+		metrics.counter("similarityMatrix.pairs")
+			.add(simMatrix.size());
+		log.info("{} sim computed, {} co-ratings visited ({} pairs/s)",
+				simMatrix.size(), visited, Math.round(simMatrix.size()
+						/ Math.max(elapsedTime / 1e9, 1e-9)));
+		log.info("similarityMatrix: {}", simMatrix.stats());
+		log.info("similarityMatrix: completed ({}ms)", elapsedTime / 1000000);
 		return simMatrix;
 	}
 
 	/**
-	 * Use cosine similarity to measure the similarity between two items. For
-	 * speed and effectiveness, cosine similarity is recommended for item-based
-	 * collaborative filtering in Ekstrand et al (2010).
+	 * Accumulate the per-pair sums of all ratings, and of each fold.
 	 * 
-	 * @param raters
-	 *            Set of raters that are common to both items.
-	 * @param uidToRating
-	 *            Map of user id to rating for the first item
-	 * @param otherUidToRating
-	 *            Map of user id to rating for the second item
-	 * @return cosine similarity between two books
-	 */
-	private static float cosineSimilarity(Set<String> raters,
-			Map<String, Integer> uidToRating,
-			Map<String, Integer> otherUidToRating) {
-		int size = raters.size();
-		double[] ratings = new double[size];
-		double[] otherRatings = new double[size];
-		int i = 0;
-		for (String rater : raters) {
-			ratings[i] = (double) uidToRating.get(rater);
-			otherRatings[i] = (double) otherUidToRating.get(rater);
-			i++;
+	 * @return statistics shared by all folds
+	 */
+	private static FoldStats foldStats() {
+		Metrics.Timer timer = metrics.timer("foldStats");
+		long startTime = timer.start();
+		log.info("foldStats: started...");
+		FoldStats ret = FoldStats.of(folds, users.size());
+		log.info("foldStats: {} bytes", ret.memoryBytes());
+		long elapsedTime = timer.stop(startTime);
+		log.info("foldStats: completed ({}ms)", elapsedTime / 1000000);
+		return ret;
+	}
+
+	/**
+	 * Open the persisted similarity model of the training set, building and
+	 * saving it first if it does not exist. The model is streamed into the
+	 * file as a sparse matrix product, so it is never held in the heap as a
+	 * whole, see
+	 * {@link SpGemmSimilarityBuilder#write(RatingMatrix, long, File, int)}.
+	 * 
+	 * @param trainSet
+	 *            ratings in the training set
+	 * @param ratingTable
+	 *            rating table of the training set
+	 * @return memory-mapped similarity model
+	 * @throws IOException
+	 */
+	private static SimilarityFile similarityFile(Ratings trainSet,
+			RatingMatrix ratingTable) throws IOException {
+		long fingerprint = trainSet.fingerprint();
+		File file = new File(MODEL_DIR, String.format("%016x.sim", fingerprint));
+		if (file.exists()) {
+			Metrics.Timer timer = metrics.timer("similarityFile.open");
+			long startTime = timer.start();
+			SimilarityFile ret = SimilarityFile.open(file);
+			if (ret.fingerprint() == fingerprint
+					&& ret.itemCount() == items.size()) {
+				long elapsedTime = timer.stop(startTime);
+				log.info("similarityFile: reused {} ({}ms)", file,
+						elapsedTime / 1000000);
+				return ret;
+			}
+			ret.close();
+			log.warn("similarityFile: {} does not match the training set, rebuilding",
+					file);
 		}
-		log.debug("ratings={}\notherRatings={}", ratings, otherRatings);
-		return (float) MathUtil.cosineSimilarity(ratings, otherRatings);
+		Metrics.Timer timer = metrics.timer("similarityFile.build");
+		long startTime = timer.start();
+		new File(MODEL_DIR).mkdirs();
+		long pairs = SpGemmSimilarityBuilder.write(ratingTable, fingerprint,
+				file, THREADS);
+		long elapsedTime = timer.stop(startTime);
+		metrics.counter("similarityMatrix.pairs")
+			.add(pairs);
+		log.info("similarityFile: built {}, {} pairs ({}ms)", file, pairs,
+				elapsedTime / 1000000);
+		return SimilarityFile.open(file);
 	}
 
 	/**
-	 * Import the ratings file and divide the data into k folds. Preprocessing:
-	 * remove implicit ratings.
+	 * Import the ratings file and divide the data into k folds. The file is
+	 * streamed: implicit ratings are removed and user ids and ISBNs are
+	 * encoded as dense integer ids while reading.
 	 * 
 	 * @throws IOException
 	 */
 	private static void extract() throws IOException {
-		long startTime = System.currentTimeMillis();
+		Metrics.Timer timer = metrics.timer("extract");
+		long startTime = timer.start();
 		log.info("Extract: started...");
-		final int nHeaderRows = 1;
-		final CharMatcher separator = CharMatcher.anyOf("\";\\");
-		final boolean omitEmptyStrings = true;
-		List<List<String>> in = FileUtil.read(RATINGS_INPUT_FILE_PATH,
-				separator, nHeaderRows, omitEmptyStrings);
-		log.info("ratings size={}, before removing implicit ratings", in.size());
-		in = removeImplicitRatings(in);
-		ratingCount = in.size();
+		File cacheFile = null;
+		if (RATINGS_CACHE_PATH != null) {
+			cacheFile = new File(RATINGS_CACHE_PATH);
+		}
+		RatingsCache cache = RatingsCache.loadOrRead(cacheFile, new File(
+				RATINGS_INPUT_FILE_PATH), INGEST_THREADS, users, items);
+		Ratings ratings = cache.ratings();
+		long rowCount = cache.rowCount();
+		log.info("ratings size={}, before removing implicit ratings", rowCount);
+		ratingCount = ratings.size();
 		log.info("ratings size={}, after removing implicit ratings",
 				ratingCount);
-		log.debug("{}", in);
+		log.info("#users={}, #books={}", users.size(), items.size());
 		// Randomly reshuffle the dataset before splitting into folds
-		Collections.shuffle(in);
+		ratings.shuffle(SEED == null ? new Random() : new Random(SEED));
 		int size = ratingCount / K_FOLDS;
-		List<List<String>> fold;
+		Ratings fold;
 		int i = 0;
 		int j = size;
 		for (int k = 0; k < K_FOLDS; k++) {
@@ -318,31 +758,33 @@ public final class ItemCfValidator {
 			} else {
 				j = i + size;
 			}
-			fold = in.subList(i, j);
+			fold = ratings.copyOfRange(i, j);
 			folds.add(fold);
 			i = j;
 		}
-		long elapsedTime = System.currentTimeMillis() - startTime;
-		log.info("Extract: completed ({}s)", elapsedTime / 1000);
+		metrics.counter("extract.rows")
+			.add(rowCount);
+		metrics.counter("extract.ratings")
+			.add(ratingCount);
+		metrics.counter("extract.users")
+			.add(users.size());
+		metrics.counter("extract.books")
+			.add(items.size());
+		long elapsedTime = timer.stop(startTime);
+		log.info("Extract: completed ({}ms)", elapsedTime / 1000000);
 	}
 
 	/**
-	 * Discard implicit ratings that are expressed by 0 on the rating scale.
-	 * 
-	 * @param ratings
-	 * @return
-	 */
-	private static List<List<String>> removeImplicitRatings(
-			List<List<String>> ratings) {
-		List<List<String>> ret = new ArrayList<>(ratings.size());
-		int rating;
-		for (List<String> tokens : ratings) {
-			rating = Integer.parseInt(tokens.get(2));
-			if (rating != 0) {
-				ret.add(tokens);
-			}
+	 * @param s
+	 *            comma-separated integers, may be empty
+	 * @return integers in the order given
+	 */
+	private static int[] ints(String s) {
+		List<Integer> ret = new ArrayList<>();
+		for (String token : StringUtil.split(s, StringUtil.COMMA, true)) {
+			ret.add(Integer.parseInt(token));
 		}
-		return ret;
+		return Ints.toArray(ret);
 	}
 
 	/**
@@ -350,6 +792,10 @@ public final class ItemCfValidator {
 	 * 
 	 */
 	private static class Result {
+		/**
+		 * Name of the similarity model tested
+		 */
+		private String label;
 		private double meanAbsoluteError = 0;
 		private double rootMeanSquaredError = 0;
 		/**
@@ -360,6 +806,39 @@ public final class ItemCfValidator {
 		 * Number of test items skipped because prediction could not be made
 		 */
 		private int skippedCount = 0;
+		/**
+		 * Memory held by the similarity model
+		 */
+		private long memoryBytes = 0;
+	}
+
+	/**
+	 * Error sums of a chunk of the testing set. Predicted and actual ratings
+	 * are integers, so the sums are exact and do not depend on how the testing
+	 * set is chunked.
+	 * 
+	 */
+	private static class ErrorSums {
+		private double absoluteError = 0;
+		private double squaredError = 0;
+		private int count = 0;
+		private int skipped = 0;
+		private final ItemCf.PredictStats stats = new ItemCf.PredictStats();
+
+		private void add(int predicted, int actual) {
+			double e = predicted - actual;
+			absoluteError += Math.abs(e);
+			squaredError += e * e;
+			count++;
+		}
+
+		private void add(ErrorSums other) {
+			absoluteError += other.absoluteError;
+			squaredError += other.squaredError;
+			count += other.count;
+			skipped += other.skipped;
+			stats.add(other.stats);
+		}
 	}
 
 }
@@ -0,0 +1,27 @@
+package com.sgcharts.bcrecommender;
+
+/**
+ * Read-only view of item-item similarity scores, as used by
+ * {@link ItemCf#predict}.
+ *
+ */
+interface ItemSimilarity {
+
+	/**
+	 * Returns the similarity of <code>other</code> to <code>item</code>. For
+	 * a full similarity matrix the order of arguments does not matter; a
+	 * pruned model only keeps the neighbourhood of <code>item</code>.
+	 *
+	 * @param item
+	 *            item whose neighbourhood is searched
+	 * @param other
+	 *            neighbour
+	 * @return similarity score, or NaN if the pair has no score
+	 */
+	float get(int item, int other);
+
+	/**
+	 * @return approximate number of bytes held by the model
+	 */
+	long memoryBytes();
+}
@@ -0,0 +1,152 @@
+package com.sgcharts.bcrecommender;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the similarity build, prediction and file
+ * reading hot paths. Start a recording with e.g.
+ * <code>-XX:StartFlightRecording=filename=run.jfr,settings=profile</code> and
+ * summarize it with {@link JfrSummary}.
+ * <p>
+ * Events are emitted at the granularity of a batch (a build, a work unit of
+ * pairs, a batch of predictions, a file chunk), so they are cheap enough to
+ * leave on. The only per-request event, {@link Predict}, is recorded only when
+ * it takes longer than its threshold. No stack traces are recorded.
+ * <p>
+ * On a runtime image without the <code>jdk.jfr</code> module (e.g. one built
+ * by jlink), {@link #AVAILABLE} is false and callers must not create events,
+ * so that the event classes are never loaded.
+ *
+ */
+final class JfrEvents {
+	/**
+	 * Prefix of the names of all events of this package
+	 */
+	static final String PREFIX = "bcrecommender.";
+	/**
+	 * True if this JVM has the Flight Recorder API
+	 */
+	static final boolean AVAILABLE = available();
+
+	private JfrEvents() {
+		// Not meant to be instantiated
+	}
+
+	private static boolean available() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Name(PREFIX + "SimilarityBuild")
+	@Label("Similarity Build")
+	@Description("Build of the item-item similarity matrix")
+	@Category({ "BC Recommender", "Similarity" })
+	@StackTrace(false)
+	static final class SimilarityBuild extends Event {
+		@Label("Items")
+		int items;
+		@Label("Users")
+		int users;
+		@Label("Ratings")
+		long ratings;
+		@Label("Pairs")
+		@Description("Distinct item pairs with a common rater")
+		long pairs;
+		@Label("Threads")
+		int threads;
+	}
+
+	@Name(PREFIX + "PairStatsBatch")
+	@Label("Pair Stats Batch")
+	@Description("Cosine sums of the pairs whose first item is in a range of items")
+	@Category({ "BC Recommender", "Similarity" })
+	@StackTrace(false)
+	static final class PairStatsBatch extends Event {
+		@Label("From Item")
+		int fromItem;
+		@Label("To Item")
+		int toItem;
+		@Label("Co-ratings")
+		@Description("Co-rated pairs visited")
+		long coRatings;
+		@Label("Pairs")
+		@Description("Distinct item pairs")
+		long pairs;
+	}
+
+	@Name(PREFIX + "PredictBatch")
+	@Label("Predict Batch")
+	@Description("Batch of rating predictions, grouped by user")
+	@Category({ "BC Recommender", "Prediction" })
+	@StackTrace(false)
+	static final class PredictBatch extends Event {
+		@Label("Requests")
+		int requests;
+		@Label("Predictions")
+		int predictions;
+		@Label("Similarity Lookups")
+		long similarityLookups;
+		@Label("Similarity Misses")
+		long similarityMisses;
+	}
+
+	@Name(PREFIX + "Predict")
+	@Label("Predict")
+	@Description("Prediction of one rating that took longer than the threshold")
+	@Category({ "BC Recommender", "Prediction" })
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static final class Predict extends Event {
+		@Label("User")
+		int uid;
+		@Label("Item")
+		int isbn;
+		@Label("User Ratings")
+		int userRatings;
+		@Label("Predicted")
+		boolean predicted;
+	}
+
+	@Name(PREFIX + "FileRead")
+	@Label("File Read")
+	@Description("Read of a delimited text file")
+	@Category({ "BC Recommender", "Ingest" })
+	@StackTrace(false)
+	static final class FileRead extends Event {
+		@Label("Path")
+		String path;
+		@Label("Size")
+		@DataAmount
+		long bytes;
+		@Label("Rows")
+		long rows;
+		@Label("Chunks")
+		int chunks;
+	}
+
+	@Name(PREFIX + "FileChunk")
+	@Label("File Chunk")
+	@Description("Parse of one memory-mapped chunk of a file")
+	@Category({ "BC Recommender", "Ingest" })
+	@StackTrace(false)
+	static final class FileChunk extends Event {
+		@Label("Chunk")
+		int chunk;
+		@Label("Size")
+		@DataAmount
+		long bytes;
+		@Label("Rows")
+		long rows;
+	}
+}
@@ -0,0 +1,341 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes a Flight Recorder recording into per-phase hotspots, where a
+ * phase is one of the event types of {@link JfrEvents}. For each phase it
+ * reports:
+ * <ul>
+ * <li>count, total and maximum duration of the events</li>
+ * <li>totals of the numeric fields, and per-second rates of the long fields,
+ * which count work done, e.g. pairs</li>
+ * <li>GC pause time that overlaps the events</li>
+ * <li>the methods most often on top of the stack in the execution samples
+ * taken on the event's thread while the event was in progress</li>
+ * </ul>
+ * Needs Java 11 or later. Usage:
+ * <code>java -cp ... com.sgcharts.bcrecommender.JfrSummary run.jfr [top]</code>
+ *
+ */
+public final class JfrSummary {
+	private static final Logger log = LoggerFactory.getLogger(JfrSummary.class);
+	private static final int DEFAULT_TOP = 5;
+	private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+	private static final String GARBAGE_COLLECTION = "jdk.GarbageCollection";
+
+	private JfrSummary() {
+		// Not meant to be instantiated
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			log.error("usage: JfrSummary <recording.jfr> [top]");
+			throw new IllegalArgumentException();
+		}
+		int top = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOP;
+		System.out.print(summarize(Paths.get(args[0]), top));
+	}
+
+	/**
+	 * @param recording
+	 *            recording file
+	 * @param top
+	 *            number of hot methods reported per phase
+	 * @return report, one block per phase in descending order of total
+	 *         duration
+	 * @throws IOException
+	 */
+	static String summarize(Path recording, int top) throws IOException {
+		Map<String, Phase> phases = new TreeMap<>();
+		// Events of each thread, sorted by start time after the first pass
+		Map<Long, List<Window>> windows = new HashMap<>();
+		Map<Long, Long> maxDurations = new HashMap<>();
+		List<long[]> pauses = new ArrayList<>();
+		// First pass: phase events and GC pauses
+		try (RecordingFile in = new RecordingFile(recording)) {
+			RecordedEvent e;
+			String name;
+			while (in.hasMoreEvents()) {
+				e = in.readEvent();
+				name = e.getEventType()
+					.getName();
+				if (name.equals(GARBAGE_COLLECTION)) {
+					pauses.add(new long[] { nanos(e.getStartTime()),
+							nanos(e.getEndTime()),
+							e.getDuration("sumOfPauses")
+								.toNanos() });
+					continue;
+				}
+				if (!name.startsWith(JfrEvents.PREFIX)) {
+					continue;
+				}
+				Phase phase = phases.get(name);
+				if (phase == null) {
+					phase = new Phase(name);
+					phases.put(name, phase);
+				}
+				phase.add(e);
+				Window w = new Window(phase, nanos(e.getStartTime()),
+						nanos(e.getEndTime()));
+				RecordedThread thread = e.getThread();
+				if (thread == null) {
+					continue;
+				}
+				long tid = thread.getJavaThreadId();
+				List<Window> list = windows.get(tid);
+				if (list == null) {
+					list = new ArrayList<>();
+					windows.put(tid, list);
+				}
+				list.add(w);
+				Long max = maxDurations.get(tid);
+				if (max == null || w.end - w.start > max) {
+					maxDurations.put(tid, w.end - w.start);
+				}
+				phase.windows.add(w);
+			}
+		}
+		for (List<Window> list : windows.values()) {
+			Collections.sort(list, new Comparator<Window>() {
+				@Override
+				public int compare(Window a, Window b) {
+					return Long.compare(a.start, b.start);
+				}
+			});
+		}
+		// GC pauses overlapping each phase, counted once per phase and GC
+		for (long[] pause : pauses) {
+			for (Phase phase : phases.values()) {
+				for (Window w : phase.windows) {
+					if (w.start <= pause[1] && pause[0] <= w.end) {
+						phase.gcPauseNanos += pause[2];
+						break;
+					}
+				}
+			}
+		}
+		// Second pass: attribute execution samples to the phases in progress
+		// on the sampled thread
+		try (RecordingFile in = new RecordingFile(recording)) {
+			RecordedEvent e;
+			while (in.hasMoreEvents()) {
+				e = in.readEvent();
+				if (!e.getEventType()
+					.getName()
+					.equals(EXECUTION_SAMPLE)) {
+					continue;
+				}
+				RecordedThread thread = e.getThread("sampledThread");
+				RecordedStackTrace stack = e.getStackTrace();
+				if (thread == null || stack == null || stack.getFrames()
+					.isEmpty()) {
+					continue;
+				}
+				List<Window> list = windows.get(thread.getJavaThreadId());
+				if (list == null) {
+					continue;
+				}
+				long t = nanos(e.getStartTime());
+				long earliest = t - maxDurations.get(thread.getJavaThreadId());
+				String method = method(stack.getFrames()
+					.get(0));
+				Set<Phase> seen = new HashSet<>();
+				for (int i = lastStartingBefore(list, t); i >= 0
+						&& list.get(i).start >= earliest; i--) {
+					Window w = list.get(i);
+					if (w.end >= t && seen.add(w.phase)) {
+						w.phase.sample(method);
+					}
+				}
+			}
+		}
+		List<Phase> sorted = new ArrayList<>(phases.values());
+		Collections.sort(sorted, new Comparator<Phase>() {
+			@Override
+			public int compare(Phase a, Phase b) {
+				return Long.compare(b.totalNanos, a.totalNanos);
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		for (Phase phase : sorted) {
+			phase.appendTo(sb, top);
+		}
+		return sb.toString();
+	}
+
+	private static long nanos(Instant instant) {
+		return instant.getEpochSecond() * 1000000000L + instant.getNano();
+	}
+
+	private static String method(RecordedFrame frame) {
+		return frame.getMethod()
+			.getType()
+			.getName() + "."
+				+ frame.getMethod()
+					.getName();
+	}
+
+	/**
+	 * @return index of the last window that starts at or before t, or -1
+	 */
+	private static int lastStartingBefore(List<Window> list, long t) {
+		int lo = 0;
+		int hi = list.size() - 1;
+		int mid;
+		int ret = -1;
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			if (list.get(mid).start <= t) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Interval of one phase event on one thread.
+	 */
+	private static final class Window {
+		private final Phase phase;
+		private final long start;
+		private final long end;
+
+		private Window(Phase phase, long start, long end) {
+			this.phase = phase;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Totals of the events of one type.
+	 */
+	private static final class Phase {
+		private final String name;
+		private final List<Window> windows = new ArrayList<>();
+		/**
+		 * Sums of the numeric fields, in declaration order
+		 */
+		private final Map<String, Long> fieldSums = new LinkedHashMap<>();
+		/**
+		 * Long fields count work done, e.g. pairs or rows, so they are also
+		 * reported per second; int fields are sizes or settings.
+		 */
+		private final Set<String> amounts = new HashSet<>();
+		private final Map<String, Integer> methodSamples = new HashMap<>();
+		private long count = 0;
+		private long totalNanos = 0;
+		private long maxNanos = 0;
+		private long gcPauseNanos = 0;
+		private long samples = 0;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		private void add(RecordedEvent e) {
+			long d = e.getDuration()
+				.toNanos();
+			count++;
+			totalNanos += d;
+			maxNanos = Math.max(maxNanos, d);
+			String type;
+			for (ValueDescriptor field : e.getFields()) {
+				type = field.getTypeName();
+				if (!type.equals("int") && !type.equals("long")
+						|| field.getName()
+							.equals("duration")
+						|| field.getName()
+							.equals("startTime")) {
+					continue;
+				}
+				// Ids and ranges are not additive
+				if (field.getName()
+					.equals("uid")
+						|| field.getName()
+							.equals("isbn")
+						|| field.getName()
+							.endsWith("Item")
+						|| field.getName()
+							.equals("chunk")) {
+					continue;
+				}
+				if (type.equals("long")) {
+					amounts.add(field.getName());
+				}
+				Long sum = fieldSums.get(field.getName());
+				fieldSums.put(field.getName(), (sum == null ? 0 : sum)
+						+ ((Number) e.getValue(field.getName())).longValue());
+			}
+		}
+
+		private void sample(String method) {
+			samples++;
+			Integer n = methodSamples.get(method);
+			methodSamples.put(method, n == null ? 1 : n + 1);
+		}
+
+		private void appendTo(StringBuilder sb, int top) {
+			sb.append(String.format(Locale.ROOT,
+					"%s: count=%d total=%.1fms max=%.1fms gcPause=%.1fms samples=%d%n",
+					name, count, totalNanos / 1e6, maxNanos / 1e6,
+					gcPauseNanos / 1e6, samples));
+			double seconds = Math.max(totalNanos / 1e9, 1e-9);
+			for (Map.Entry<String, Long> e : fieldSums.entrySet()) {
+				if (amounts.contains(e.getKey())) {
+					sb.append(String.format(Locale.ROOT, "  %s=%d (%.0f/s)%n",
+							e.getKey(), e.getValue(), e.getValue() / seconds));
+				} else {
+					sb.append(String.format(Locale.ROOT, "  %s=%d%n",
+							e.getKey(), e.getValue()));
+				}
+			}
+			List<Map.Entry<String, Integer>> methods = new ArrayList<>(
+					methodSamples.entrySet());
+			Collections.sort(methods,
+					new Comparator<Map.Entry<String, Integer>>() {
+						@Override
+						public int compare(Map.Entry<String, Integer> a,
+								Map.Entry<String, Integer> b) {
+							int c = Integer.compare(b.getValue(), a.getValue());
+							return c != 0 ? c : a.getKey()
+								.compareTo(b.getKey());
+						}
+					});
+			for (int i = 0; i < Math.min(top, methods.size()); i++) {
+				sb.append(String.format(Locale.ROOT, "  %5.1f%% %s%n", 100.0
+						* methods.get(i)
+							.getValue() / samples, methods.get(i)
+					.getKey()));
+			}
+		}
+	}
+}
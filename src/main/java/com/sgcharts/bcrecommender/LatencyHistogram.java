@@ -0,0 +1,105 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock-free histogram of latencies in microseconds (or of any non-negative
+ * values), for percentiles such as p50 and p99 under concurrent recording.
+ * <p>
+ * Buckets are log-linear: values below 32 have a bucket each, and each power
+ * of two above that is split into 16 equal buckets, so a recorded value is
+ * off by less than 1/16 (about 6%). All of the range of a long fits in a fixed
+ * array of counters.
+ *
+ */
+final class LatencyHistogram {
+	private static final Logger log = LoggerFactory.getLogger(LatencyHistogram.class);
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * @param micros
+	 *            non-negative value
+	 * @return bucket of the value
+	 */
+	static int bucket(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+				+ (int) (micros >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @param bucket
+	 *            bucket index
+	 * @return smallest value in the bucket
+	 */
+	static long lowestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		return sub << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @param micros
+	 *            latency in microseconds; negative values are recorded as 0
+	 */
+	void record(long micros) {
+		counts.incrementAndGet(bucket(Math.max(0, micros)));
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	long count() {
+		long ret = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			ret += counts.get(b);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param percentile
+	 *            in the range (0, 100]
+	 * @return smallest bucket value at or above the given percentile of the
+	 *         recorded values, or 0 if nothing was recorded
+	 */
+	long percentile(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			log.error("percentile must be in (0, 100]. percentile={}",
+					percentile);
+			throw new IllegalArgumentException();
+		}
+		// Snapshot, so that the rank and the walk see the same counts
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			snapshot[b] = counts.get(b);
+			total += snapshot[b];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * total);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += snapshot[b];
+			if (seen >= rank) {
+				return lowestValue(b);
+			}
+		}
+		return lowestValue(BUCKETS - 1);
+	}
+}
@@ -88,11 +88,198 @@ public final class MathUtil {
 			log.error("array must not be null or empty");
 			throw new IllegalArgumentException();
 		}
-		int sum = 0;
+		double sum = 0;
 		for (int i = 0; i < arr.length; i++) {
 			sum += arr[i] * arr[i];
 		}
 		return Math.sqrt(sum);
 	}
 
+	/**
+	 * Dot product of two sparse vectors, each given as a slice of ids sorted
+	 * in ascending order and the values at those ids. Only ids present in
+	 * both slices contribute.
+	 * 
+	 * @param firstIds
+	 *            ids of the first vector, sorted within the slice
+	 * @param firstValues
+	 *            values of the first vector, parallel to the ids
+	 * @param firstFrom
+	 *            start of the first slice, inclusive
+	 * @param firstTo
+	 *            end of the first slice, exclusive
+	 * @param secondIds
+	 *            ids of the second vector, sorted within the slice
+	 * @param secondValues
+	 *            values of the second vector, parallel to the ids
+	 * @param secondFrom
+	 *            start of the second slice, inclusive
+	 * @param secondTo
+	 *            end of the second slice, exclusive
+	 * @return dot product over the common ids
+	 */
+	public static long sparseDotProduct(int[] firstIds, byte[] firstValues,
+			int firstFrom, int firstTo, int[] secondIds, byte[] secondValues,
+			int secondFrom, int secondTo) {
+		long ret = 0;
+		int i = firstFrom;
+		int j = secondFrom;
+		int a;
+		int b;
+		while (i < firstTo && j < secondTo) {
+			a = firstIds[i];
+			b = secondIds[j];
+			if (a < b) {
+				i++;
+			} else if (a > b) {
+				j++;
+			} else {
+				ret += firstValues[i] * secondValues[j];
+				i++;
+				j++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Sums needed for the cosine similarity of two sparse vectors over their
+	 * common ids, in one merge-join pass: the dot product, and the squared
+	 * norm of each vector. Slices are given as in
+	 * {@link #sparseDotProduct(int[], byte[], int, int, int[], byte[], int, int)}.
+	 * Takes time linear in the length of both slices, and does not allocate.
+	 * 
+	 * @param sums
+	 *            receives the dot product, squared norm of the first vector
+	 *            and squared norm of the second vector, at indices 0 - 2
+	 * @return number of common ids
+	 */
+	public static int sparseSums(int[] firstIds, byte[] firstValues,
+			int firstFrom, int firstTo, int[] secondIds, byte[] secondValues,
+			int secondFrom, int secondTo, long[] sums) {
+		if (sums == null || sums.length < 3) {
+			log.error("sums must hold 3 values");
+			throw new IllegalArgumentException();
+		}
+		long dot = 0;
+		long firstNorm = 0;
+		long secondNorm = 0;
+		int count = 0;
+		int i = firstFrom;
+		int j = secondFrom;
+		int a;
+		int b;
+		int x;
+		int y;
+		while (i < firstTo && j < secondTo) {
+			a = firstIds[i];
+			b = secondIds[j];
+			if (a < b) {
+				i++;
+			} else if (a > b) {
+				j++;
+			} else {
+				x = firstValues[i];
+				y = secondValues[j];
+				dot += x * y;
+				firstNorm += x * x;
+				secondNorm += y * y;
+				count++;
+				i++;
+				j++;
+			}
+		}
+		sums[0] = dot;
+		sums[1] = firstNorm;
+		sums[2] = secondNorm;
+		return count;
+	}
+
+	/**
+	 * Same as
+	 * {@link #sparseSums(int[], byte[], int, int, int[], byte[], int, int, long[])}
+	 * , but walks the shorter slice and gallops (exponential then binary
+	 * search) through the longer one. Takes time O(m log(n / m)) for slices of
+	 * length m &lt;= n, so it is faster when one slice is much longer than the
+	 * other.
+	 * 
+	 * @param sums
+	 *            receives the dot product, squared norm of the first vector
+	 *            and squared norm of the second vector, at indices 0 - 2
+	 * @return number of common ids
+	 */
+	public static int sparseSumsGalloping(int[] firstIds, byte[] firstValues,
+			int firstFrom, int firstTo, int[] secondIds, byte[] secondValues,
+			int secondFrom, int secondTo, long[] sums) {
+		if (sums == null || sums.length < 3) {
+			log.error("sums must hold 3 values");
+			throw new IllegalArgumentException();
+		}
+		if (firstTo - firstFrom > secondTo - secondFrom) {
+			int ret = gallop(secondIds, secondValues, secondFrom, secondTo,
+					firstIds, firstValues, firstFrom, firstTo, sums);
+			long norm = sums[1];
+			sums[1] = sums[2];
+			sums[2] = norm;
+			return ret;
+		}
+		return gallop(firstIds, firstValues, firstFrom, firstTo, secondIds,
+				secondValues, secondFrom, secondTo, sums);
+	}
+
+	/**
+	 * Galloping intersection where the first slice is the shorter one.
+	 */
+	private static int gallop(int[] shortIds, byte[] shortValues,
+			int shortFrom, int shortTo, int[] longIds, byte[] longValues,
+			int longFrom, int longTo, long[] sums) {
+		long dot = 0;
+		long shortNorm = 0;
+		long longNorm = 0;
+		int count = 0;
+		int j = longFrom;
+		int id;
+		int bound;
+		int lo;
+		int hi;
+		int mid;
+		int x;
+		int y;
+		for (int i = shortFrom; i < shortTo && j < longTo; i++) {
+			id = shortIds[i];
+			if (longIds[j] < id) {
+				// Exponential search for a range [lo, hi) that holds the
+				// first id >= id, then binary search within it.
+				bound = 1;
+				while (j + bound < longTo && longIds[j + bound] < id) {
+					bound <<= 1;
+				}
+				lo = j + (bound >> 1) + 1;
+				hi = Math.min(j + bound, longTo);
+				while (lo < hi) {
+					mid = (lo + hi) >>> 1;
+					if (longIds[mid] < id) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				j = lo;
+			}
+			if (j < longTo && longIds[j] == id) {
+				x = shortValues[i];
+				y = longValues[j];
+				dot += x * y;
+				shortNorm += x * x;
+				longNorm += y * y;
+				count++;
+				j++;
+			}
+		}
+		sums[0] = dot;
+		sums[1] = shortNorm;
+		sums[2] = longNorm;
+		return count;
+	}
+
 }
@@ -0,0 +1,73 @@
+package com.sgcharts.bcrecommender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how much memory concurrent tasks may hold at once. A task reserves
+ * its estimated footprint before allocating, and waits while the reservations
+ * of running tasks would exceed the budget. A task is always admitted when no
+ * other task is running, even if its estimate exceeds the budget, so that
+ * progress is guaranteed.
+ *
+ */
+final class MemoryScheduler {
+	private static final Logger log = LoggerFactory.getLogger(MemoryScheduler.class);
+	private final long budget;
+	private long reserved = 0;
+
+	/**
+	 * @param budget
+	 *            number of bytes that running tasks may reserve in total
+	 */
+	MemoryScheduler(long budget) {
+		if (budget < 1) {
+			log.error("budget must be positive. budget={}", budget);
+			throw new IllegalArgumentException();
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * Budget of a fraction of the maximum heap size, less the heap in use.
+	 *
+	 * @param fraction
+	 *            fraction of the maximum heap size
+	 * @return scheduler
+	 */
+	static MemoryScheduler ofHeap(double fraction) {
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		return new MemoryScheduler(Math.max(1,
+				(long) (rt.maxMemory() * fraction) - used));
+	}
+
+	/**
+	 * Block until the bytes can be reserved.
+	 *
+	 * @param bytes
+	 *            estimated footprint of the task
+	 * @throws InterruptedException
+	 */
+	synchronized void acquire(long bytes) throws InterruptedException {
+		while (reserved > 0 && reserved + bytes > budget) {
+			log.info("waiting for memory. requested={} reserved={} budget={}",
+					bytes, reserved, budget);
+			wait();
+		}
+		reserved += bytes;
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes reserved by {@link #acquire(long)}
+	 */
+	synchronized void release(long bytes) {
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	long budget() {
+		return budget;
+	}
+}
@@ -0,0 +1,328 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.StringUtil.appendJsonString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of named counters, timers, values and histograms, exported as a
+ * JSON or CSV report so that runs can be compared mechanically.
+ * <p>
+ * Metrics are created on first use and updated without locking, so they can
+ * be shared by concurrent folds and scoring threads. Names are reported in
+ * sorted order.
+ *
+ */
+final class Metrics {
+	private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, Value> values = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @return counter of the given name, created if it does not exist
+	 */
+	Counter counter(String name) {
+		Counter ret = counters.get(name);
+		if (ret == null) {
+			Counter created = new Counter();
+			ret = counters.putIfAbsent(name, created);
+			if (ret == null) {
+				ret = created;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return timer of the given name, created if it does not exist
+	 */
+	Timer timer(String name) {
+		Timer ret = timers.get(name);
+		if (ret == null) {
+			Timer created = new Timer();
+			ret = timers.putIfAbsent(name, created);
+			if (ret == null) {
+				ret = created;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return value of the given name, created if it does not exist
+	 */
+	Value value(String name) {
+		Value ret = values.get(name);
+		if (ret == null) {
+			Value created = new Value();
+			ret = values.putIfAbsent(name, created);
+			if (ret == null) {
+				ret = created;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return histogram of the given name, created if it does not exist
+	 */
+	LatencyHistogram histogram(String name) {
+		LatencyHistogram ret = histograms.get(name);
+		if (ret == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			ret = histograms.putIfAbsent(name, created);
+			if (ret == null) {
+				ret = created;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return report of all metrics as a JSON object, with one member per
+	 *         kind of metric
+	 */
+	String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"counters\": {");
+		String sep = "\n    ";
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(": ")
+				.append(e.getValue()
+					.get());
+			sep = ",\n    ";
+		}
+		sb.append("\n  },\n  \"timers\": {");
+		sep = "\n    ";
+		Timer t;
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			t = e.getValue();
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(String.format(Locale.ROOT,
+					": {\"count\": %d, \"totalNanos\": %d, \"maxNanos\": %d, \"p50Nanos\": %d, \"p99Nanos\": %d}",
+					t.count(), t.totalNanos(), t.maxNanos(), t.histogram()
+						.percentile(50), t.histogram()
+						.percentile(99)));
+			sep = ",\n    ";
+		}
+		sb.append("\n  },\n  \"values\": {");
+		sep = "\n    ";
+		for (Map.Entry<String, Value> e : values.entrySet()) {
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(": ")
+				.append(json(e.getValue()
+					.get()));
+			sep = ",\n    ";
+		}
+		sb.append("\n  },\n  \"histograms\": {");
+		sep = "\n    ";
+		LatencyHistogram h;
+		for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+			h = e.getValue();
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(String.format(Locale.ROOT,
+					": {\"count\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d}",
+					h.count(), h.percentile(50), h.percentile(90),
+					h.percentile(99)));
+			sep = ",\n    ";
+		}
+		return sb.append("\n  }\n}\n")
+			.toString();
+	}
+
+	private static String json(double d) {
+		if (Double.isNaN(d) || Double.isInfinite(d)) {
+			return "null";
+		}
+		return Double.toString(d);
+	}
+
+	/**
+	 * @return report of all metrics as CSV, one row per metric and statistic:
+	 *         <code>kind,name,statistic,value</code>
+	 */
+	String toCsv() {
+		StringBuilder sb = new StringBuilder("kind,name,statistic,value\n");
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			csv(sb, "counter", e.getKey(), "count", e.getValue()
+				.get());
+		}
+		Timer t;
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			t = e.getValue();
+			csv(sb, "timer", e.getKey(), "count", t.count());
+			csv(sb, "timer", e.getKey(), "totalNanos", t.totalNanos());
+			csv(sb, "timer", e.getKey(), "maxNanos", t.maxNanos());
+			csv(sb, "timer", e.getKey(), "p50Nanos", t.histogram()
+				.percentile(50));
+			csv(sb, "timer", e.getKey(), "p99Nanos", t.histogram()
+				.percentile(99));
+		}
+		for (Map.Entry<String, Value> e : values.entrySet()) {
+			csv(sb, "value", e.getKey(), "value", e.getValue()
+				.get());
+		}
+		LatencyHistogram h;
+		for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+			h = e.getValue();
+			csv(sb, "histogram", e.getKey(), "count", h.count());
+			csv(sb, "histogram", e.getKey(), "p50", h.percentile(50));
+			csv(sb, "histogram", e.getKey(), "p90", h.percentile(90));
+			csv(sb, "histogram", e.getKey(), "p99", h.percentile(99));
+		}
+		return sb.toString();
+	}
+
+	private static void csv(StringBuilder sb, String kind, String name,
+			String statistic, Object value) {
+		sb.append(kind)
+			.append(',');
+		// Quote names that would break the row
+		if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+			sb.append('"')
+				.append(name.replace("\"", "\"\""))
+				.append('"');
+		} else {
+			sb.append(name);
+		}
+		sb.append(',')
+			.append(statistic)
+			.append(',')
+			.append(value)
+			.append('\n');
+	}
+
+	/**
+	 * Write the report to a file: CSV if the file name ends with
+	 * <code>.csv</code>, else JSON.
+	 *
+	 * @param file
+	 *            report file
+	 * @throws IOException
+	 */
+	void write(File file) throws IOException {
+		String report = file.getName()
+			.endsWith(".csv") ? toCsv() : toJson();
+		try (Writer out = Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			out.write(report);
+		}
+		log.info("metrics: written to {}", file);
+	}
+
+	/**
+	 * Monotonic count of events.
+	 */
+	static final class Counter {
+		private final LongAdder count = new LongAdder();
+
+		void increment() {
+			count.increment();
+		}
+
+		void add(long n) {
+			count.add(n);
+		}
+
+		long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * Durations in nanoseconds: count, total, maximum and a histogram for
+	 * percentiles.
+	 */
+	static final class Timer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		/**
+		 * @return start time, to be passed to {@link #stop(long)}
+		 */
+		long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * Record the time elapsed since the start.
+		 *
+		 * @param start
+		 *            start time returned by {@link #start()}
+		 * @return elapsed time in nanoseconds
+		 */
+		long stop(long start) {
+			long ret = System.nanoTime() - start;
+			record(ret);
+			return ret;
+		}
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			histogram.record(nanos);
+			long max;
+			do {
+				max = maxNanos.get();
+			} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		long totalNanos() {
+			return totalNanos.sum();
+		}
+
+		long maxNanos() {
+			return maxNanos.get();
+		}
+
+		/**
+		 * @return histogram of the durations in nanoseconds
+		 */
+		LatencyHistogram histogram() {
+			return histogram;
+		}
+	}
+
+	/**
+	 * Sum of real-valued observations, e.g. an error or a ratio. Set once for
+	 * a single observation.
+	 */
+	static final class Value {
+		private final DoubleAdder sum = new DoubleAdder();
+
+		void add(double d) {
+			sum.add(d);
+		}
+
+		double get() {
+			return sum.sum();
+		}
+	}
+}
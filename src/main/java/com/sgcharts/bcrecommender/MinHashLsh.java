@@ -0,0 +1,201 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+import static com.sgcharts.bcrecommender.SimilarityMatrix.mix;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Approximate similarity matrix: candidate item pairs are generated by
+ * locality-sensitive hashing of the items' rater sets, and the exact cosine
+ * similarity is computed only for the candidates.
+ * <p>
+ * Each item gets a MinHash signature of <code>bands * rows</code> values,
+ * where each value is the minimum of one hash function over the item's
+ * raters. Two items agree on a value with probability equal to the Jaccard
+ * similarity of their rater sets, so two items with Jaccard similarity s share
+ * at least one band of <code>rows</code> values with probability
+ * <code>1 - (1 - s^rows)^bands</code>. Items sharing a band are candidates.
+ * More bands raise the recall of low-overlap pairs; more rows per band cut
+ * the number of candidates.
+ * <p>
+ * Pairing every item of a bucket with every other costs the square of the
+ * bucket size. Rater degrees are skewed, so a prolific rater is the minimum
+ * of many items at once and puts them all in one bucket. Buckets of more
+ * than <code>maxBucket</code> items are therefore skipped, as is usual in LSH
+ * candidate generation; a pair in a skipped bucket is still found if it
+ * shares another band.
+ * <p>
+ * Scores of the pairs found are exactly the scores of
+ * {@link SimilarityBuilder}; pairs that are missed have no score.
+ *
+ */
+final class MinHashLsh {
+	private static final Logger log = LoggerFactory.getLogger(MinHashLsh.class);
+	/**
+	 * Signature value of an item without raters
+	 */
+	private static final int NO_RATERS = Integer.MAX_VALUE;
+	/**
+	 * Buckets of more items than this are skipped by default
+	 */
+	static final int DEFAULT_MAX_BUCKET = 100;
+
+	private MinHashLsh() {
+		// Not meant to be instantiated
+	}
+
+	/**
+	 * Build the similarity matrix of the candidate pairs, skipping buckets of
+	 * more than {@link #DEFAULT_MAX_BUCKET} items.
+	 *
+	 * @see #similarityMatrix(RatingMatrix, int, int, int, long)
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			int bands, int rows, long seed) {
+		return similarityMatrix(ratingTable, bands, rows, DEFAULT_MAX_BUCKET,
+				seed);
+	}
+
+	/**
+	 * Build the similarity matrix of the candidate pairs.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param bands
+	 *            number of bands
+	 * @param rows
+	 *            number of signature values per band
+	 * @param maxBucket
+	 *            buckets of more items than this are skipped
+	 * @param seed
+	 *            seed of the hash functions
+	 * @return similarity matrix of the candidate pairs that have at least one
+	 *         common rater
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			int bands, int rows, int maxBucket, long seed) {
+		if (bands < 1 || rows < 1) {
+			log.error("bands and rows must be at least 1. bands={}, rows={}",
+					bands, rows);
+			throw new IllegalArgumentException();
+		}
+		if (maxBucket < 2) {
+			log.error("maxBucket must be at least 2. maxBucket={}", maxBucket);
+			throw new IllegalArgumentException();
+		}
+		final int itemCount = ratingTable.itemCount();
+		final int nHashes = bands * rows;
+		int[] signatures = signatures(ratingTable, nHashes, seed);
+		SimilarityMatrix ret = new SimilarityMatrix();
+		// Candidates without a common rater, so that they are not scored
+		// again when they share another band
+		SimilarityMatrix rejected = new SimilarityMatrix();
+		long[] sums = new long[3];
+		long[] buckets = new long[itemCount];
+		long candidates = 0;
+		long skipped = 0;
+		int n;
+		int from;
+		int to;
+		int item;
+		int other;
+		long key;
+		float score;
+		for (int b = 0; b < bands; b++) {
+			// Sort the items by the hash of their band, so that each bucket
+			// is a run of equal hashes.
+			n = 0;
+			for (int i = 0; i < itemCount; i++) {
+				if (signatures[i * nHashes] != NO_RATERS) {
+					buckets[n++] = ((long) bandHash(signatures, i * nHashes + b
+							* rows, rows) << 32)
+							| i;
+				}
+			}
+			Arrays.sort(buckets, 0, n);
+			for (from = 0; from < n; from = to) {
+				to = from + 1;
+				while (to < n && buckets[to] >>> 32 == buckets[from] >>> 32) {
+					to++;
+				}
+				if (to - from > maxBucket) {
+					skipped++;
+					continue;
+				}
+				for (int p = from; p < to; p++) {
+					item = (int) buckets[p];
+					for (int q = p + 1; q < to; q++) {
+						other = (int) buckets[q];
+						key = pairKey(item, other);
+						if (!Float.isNaN(ret.get(key))
+								|| !Float.isNaN(rejected.get(key))) {
+							continue;
+						}
+						candidates++;
+						score = SimilarityBuilder.cosineSimilarity(
+								ratingTable, item, other, sums);
+						if (Float.isNaN(score)) {
+							rejected.put(key, 0);
+						} else {
+							ret.put(key, score);
+						}
+					}
+				}
+			}
+		}
+		log.info("{} candidate pairs scored, {} with common raters, {} buckets of more than {} items skipped",
+				candidates, ret.size(), skipped, maxBucket);
+		return ret;
+	}
+
+	/**
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param nHashes
+	 *            number of hash functions
+	 * @param seed
+	 *            seed of the hash functions
+	 * @return MinHash signatures, <code>nHashes</code> values per item in item
+	 *         order; items without raters have {@link #NO_RATERS} values
+	 */
+	static int[] signatures(RatingMatrix ratingTable, int nHashes, long seed) {
+		final int itemCount = ratingTable.itemCount();
+		int[] ret = new int[itemCount * nHashes];
+		Arrays.fill(ret, NO_RATERS);
+		long[] seeds = new long[nHashes];
+		for (int h = 0; h < nHashes; h++) {
+			seeds[h] = mix(seed + h);
+		}
+		int to;
+		int user;
+		int base;
+		int hash;
+		for (int item = 0; item < itemCount; item++) {
+			base = item * nHashes;
+			to = ratingTable.itemTo(item);
+			for (int p = ratingTable.itemFrom(item); p < to; p++) {
+				user = ratingTable.itemUser(p);
+				for (int h = 0; h < nHashes; h++) {
+					// Clear the sign bit, so no hash equals NO_RATERS
+					hash = (int) mix(seeds[h] ^ user) & (NO_RATERS - 1);
+					if (hash < ret[base + h]) {
+						ret[base + h] = hash;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static int bandHash(int[] signatures, int from, int rows) {
+		long h = rows;
+		for (int r = 0; r < rows; r++) {
+			h = mix(h * 31 + signatures[from + r]);
+		}
+		return (int) (h >>> 32) & Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,282 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.firstItem;
+import static com.sgcharts.bcrecommender.ItemCf.secondItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neighbourhood-pruned similarity model: for each item, keep only its K most
+ * similar items whose similarity is at least a minimum threshold. This puts an
+ * upper bound on the size of the neighbourhood S in the prediction formula of
+ * Ekstrand et al (2010).
+ * <p>
+ * Neighbours are held in compressed sparse row form: the neighbours of item i
+ * are at positions [ptr[i], ptr[i+1]), sorted by item id so that a neighbour
+ * can be found by binary search. Memory scales with K times the number of
+ * items, instead of the number of item pairs.
+ * <p>
+ * Unlike {@link SimilarityMatrix}, the model is not symmetric: j may be one of
+ * the K nearest neighbours of i but not the other way round.
+ *
+ */
+final class NeighbourIndex implements ItemSimilarity {
+	private static final Logger log = LoggerFactory.getLogger(NeighbourIndex.class);
+	private final int k;
+	private final float minSimilarity;
+	private final int[] ptr;
+	private final int[] neighbours;
+	private final float[] similarities;
+
+	private NeighbourIndex(int k, float minSimilarity, int[] ptr,
+			int[] neighbours, float[] similarities) {
+		this.k = k;
+		this.minSimilarity = minSimilarity;
+		this.ptr = ptr;
+		this.neighbours = neighbours;
+		this.similarities = similarities;
+	}
+
+	/**
+	 * Select the K nearest neighbours of every item with one bounded min-heap
+	 * per item, in a single pass over the similarity matrix. Ties are broken in
+	 * favour of the smaller item id, so the result is deterministic.
+	 *
+	 * @param simMatrix
+	 *            full similarity model
+	 * @param itemCount
+	 *            number of item ids
+	 * @param k
+	 *            maximum number of neighbours per item
+	 * @param minSimilarity
+	 *            neighbours less similar than this are dropped
+	 * @return neighbour index
+	 */
+	static NeighbourIndex of(PairSource simMatrix, int itemCount,
+			final int k, final float minSimilarity) {
+		if (simMatrix == null) {
+			log.error("similarity matrix must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (k < 1) {
+			log.error("k must be at least 1. k={}", k);
+			throw new IllegalArgumentException();
+		}
+		if ((long) itemCount * k > Integer.MAX_VALUE) {
+			log.error("k is too large. k={} itemCount={}", k, itemCount);
+			throw new IllegalArgumentException();
+		}
+		final int[] sizes = new int[itemCount];
+		final int[] heapItems = new int[itemCount * k];
+		final float[] heapSims = new float[itemCount * k];
+		simMatrix.forEach(new PairSource.Visitor() {
+			@Override
+			public void visit(long key, float value) {
+				if (value < minSimilarity) {
+					return;
+				}
+				int item = firstItem(key);
+				int other = secondItem(key);
+				offer(heapItems, heapSims, sizes, item * k, item, k, other,
+						value);
+				offer(heapItems, heapSims, sizes, other * k, other, k, item,
+						value);
+			}
+		});
+		int[] ptr = new int[itemCount + 1];
+		for (int i = 0; i < itemCount; i++) {
+			ptr[i + 1] = ptr[i] + sizes[i];
+		}
+		int size = ptr[itemCount];
+		int[] neighbours = new int[size];
+		float[] similarities = new float[size];
+		for (int i = 0; i < itemCount; i++) {
+			System.arraycopy(heapItems, i * k, neighbours, ptr[i], sizes[i]);
+			System.arraycopy(heapSims, i * k, similarities, ptr[i], sizes[i]);
+			sortByItem(neighbours, similarities, ptr[i], ptr[i + 1]);
+		}
+		return new NeighbourIndex(k, minSimilarity, ptr, neighbours,
+				similarities);
+	}
+
+	/**
+	 * @return true if (item a, score a) ranks below (item b, score b)
+	 */
+	private static boolean worse(int a, float aSim, int b, float bSim) {
+		return aSim < bSim || (aSim == bSim && a > b);
+	}
+
+	/**
+	 * Offer a candidate neighbour to the bounded min-heap of an item. The root
+	 * of the heap is the worst of the K neighbours kept so far.
+	 */
+	private static void offer(int[] items, float[] sims, int[] sizes,
+			int base, int item, int k, int candidate, float sim) {
+		int n = sizes[item];
+		if (n < k) {
+			// Sift up
+			int i = n;
+			int parent;
+			while (i > 0) {
+				parent = (i - 1) >>> 1;
+				if (!worse(candidate, sim, items[base + parent],
+						sims[base + parent])) {
+					break;
+				}
+				items[base + i] = items[base + parent];
+				sims[base + i] = sims[base + parent];
+				i = parent;
+			}
+			items[base + i] = candidate;
+			sims[base + i] = sim;
+			sizes[item] = n + 1;
+			return;
+		}
+		if (!worse(items[base], sims[base], candidate, sim)) {
+			return;
+		}
+		// Replace the root and sift down
+		int i = 0;
+		int child;
+		while ((child = 2 * i + 1) < n) {
+			if (child + 1 < n && worse(items[base + child + 1],
+					sims[base + child + 1], items[base + child],
+					sims[base + child])) {
+				child++;
+			}
+			if (!worse(items[base + child], sims[base + child], candidate,
+					sim)) {
+				break;
+			}
+			items[base + i] = items[base + child];
+			sims[base + i] = sims[base + child];
+			i = child;
+		}
+		items[base + i] = candidate;
+		sims[base + i] = sim;
+	}
+
+	/**
+	 * Insertion sort by item id; a row holds at most K entries.
+	 */
+	private static void sortByItem(int[] items, float[] sims, int from,
+			int to) {
+		int item;
+		float sim;
+		int j;
+		for (int i = from + 1; i < to; i++) {
+			item = items[i];
+			sim = sims[i];
+			j = i - 1;
+			while (j >= from && items[j] > item) {
+				items[j + 1] = items[j];
+				sims[j + 1] = sims[j];
+				j--;
+			}
+			items[j + 1] = item;
+			sims[j + 1] = sim;
+		}
+	}
+
+	/**
+	 * Binary search the neighbourhood of <code>item</code>.
+	 */
+	@Override
+	public float get(int item, int other) {
+		if (item < 0 || item >= ptr.length - 1) {
+			return Float.NaN;
+		}
+		int lo = ptr[item];
+		int hi = ptr[item + 1] - 1;
+		int mid;
+		int midItem;
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			midItem = neighbours[mid];
+			if (midItem < other) {
+				lo = mid + 1;
+			} else if (midItem > other) {
+				hi = mid - 1;
+			} else {
+				return similarities[mid];
+			}
+		}
+		return Float.NaN;
+	}
+
+	int itemCount() {
+		return ptr.length - 1;
+	}
+
+	/**
+	 * Reverse the neighbour lists: row j of the result holds the items that
+	 * have j among their neighbours, sorted by item id, with the same
+	 * similarity scores. So <code>transpose().get(j, i)</code> equals
+	 * <code>get(i, j)</code>, and the items whose prediction depends on a
+	 * rating of j can be enumerated from row j.
+	 *
+	 * @return transposed index; rows may hold more than K items
+	 */
+	NeighbourIndex transpose() {
+		final int itemCount = itemCount();
+		int[] tPtr = new int[itemCount + 1];
+		for (int p = 0; p < neighbours.length; p++) {
+			tPtr[neighbours[p] + 1]++;
+		}
+		for (int i = 1; i < tPtr.length; i++) {
+			tPtr[i] += tPtr[i - 1];
+		}
+		int[] next = new int[itemCount];
+		System.arraycopy(tPtr, 0, next, 0, itemCount);
+		int[] tNeighbours = new int[neighbours.length];
+		float[] tSimilarities = new float[neighbours.length];
+		int q;
+		// Visiting items in ascending order sorts each transposed row
+		for (int item = 0; item < itemCount; item++) {
+			for (int p = ptr[item]; p < ptr[item + 1]; p++) {
+				q = next[neighbours[p]]++;
+				tNeighbours[q] = item;
+				tSimilarities[q] = similarities[p];
+			}
+		}
+		return new NeighbourIndex(k, minSimilarity, tPtr, tNeighbours,
+				tSimilarities);
+	}
+
+	int neighbourFrom(int item) {
+		return ptr[item];
+	}
+
+	int neighbourTo(int item) {
+		return ptr[item + 1];
+	}
+
+	int neighbour(int position) {
+		return neighbours[position];
+	}
+
+	float similarity(int position) {
+		return similarities[position];
+	}
+
+	/**
+	 * @return total number of neighbours over all items
+	 */
+	int size() {
+		return neighbours.length;
+	}
+
+	int k() {
+		return k;
+	}
+
+	float minSimilarity() {
+		return minSimilarity;
+	}
+
+	@Override
+	public long memoryBytes() {
+		return 4L * (ptr.length + neighbours.length + similarities.length);
+	}
+}
@@ -0,0 +1,30 @@
+package com.sgcharts.bcrecommender;
+
+/**
+ * A similarity model whose item pairs can be enumerated, e.g. to select the
+ * nearest neighbours of every item or to persist the model.
+ *
+ */
+interface PairSource {
+
+	/**
+	 * Visit every item pair once.
+	 *
+	 * @param visitor
+	 *            called once per item pair
+	 */
+	void forEach(Visitor visitor);
+
+	/**
+	 * Callback for {@link PairSource#forEach(Visitor)}.
+	 */
+	interface Visitor {
+		/**
+		 * @param key
+		 *            pair key, see {@link ItemCf#pairKey(int, int)}
+		 * @param value
+		 *            similarity score
+		 */
+		void visit(long key, float value);
+	}
+}
@@ -0,0 +1,221 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.SimilarityMatrix.EMPTY;
+import static com.sgcharts.bcrecommender.SimilarityMatrix.capacityFor;
+import static com.sgcharts.bcrecommender.SimilarityMatrix.mix;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per item-pair sums needed for cosine similarity, accumulated over the common
+ * raters of both items: the dot product, and the squared norm of each item.
+ * The first item is the one with the smaller id (high 32 bits of the pair
+ * key).
+ * <p>
+ * Stored as an open-addressing hash table with linear probing, like
+ * {@link SimilarityMatrix}, so accumulation does not allocate per pair.
+ *
+ */
+final class PairStats {
+	private static final Logger log = LoggerFactory.getLogger(PairStats.class);
+	private static final float MAX_LOAD_FACTOR = 0.75F;
+	private long[] keys;
+	private int[] dots;
+	private int[] firstNorms;
+	private int[] secondNorms;
+	private int mask;
+	private int size = 0;
+
+	PairStats() {
+		this(16);
+	}
+
+	PairStats(int expectedSize) {
+		if (expectedSize < 0) {
+			log.error("expected size must not be negative. expectedSize={}",
+					expectedSize);
+			throw new IllegalArgumentException();
+		}
+		allocate(capacityFor(expectedSize));
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		dots = new int[capacity];
+		firstNorms = new int[capacity];
+		secondNorms = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		int i = (int) mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != EMPTY && k != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Add a co-rating of two items by the same user.
+	 *
+	 * @param key
+	 *            pair key
+	 * @param rating
+	 *            user's rating of the first item
+	 * @param otherRating
+	 *            user's rating of the second item
+	 */
+	void add(long key, int rating, int otherRating) {
+		add(key, rating * otherRating, rating * rating,
+				otherRating * otherRating);
+	}
+
+	/**
+	 * Add partial sums of an item pair.
+	 *
+	 * @param key
+	 *            pair key
+	 * @param dot
+	 *            dot product
+	 * @param firstNorm
+	 *            squared norm of the first item
+	 * @param secondNorm
+	 *            squared norm of the second item
+	 * @return slot holding the key
+	 */
+	int add(long key, int dot, int firstNorm, int secondNorm) {
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+				rehash(keys.length << 1);
+				i = slot(key);
+			}
+			keys[i] = key;
+			size++;
+		}
+		dots[i] += dot;
+		firstNorms[i] += firstNorm;
+		secondNorms[i] += secondNorm;
+		return i;
+	}
+
+	private void rehash(int capacity) {
+		if (capacity > (1 << 30)) {
+			log.error("pair stats table is full. size={}", size);
+			throw new IllegalStateException();
+		}
+		long[] oldKeys = keys;
+		int[] oldDots = dots;
+		int[] oldFirstNorms = firstNorms;
+		int[] oldSecondNorms = secondNorms;
+		allocate(capacity);
+		int j;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				dots[j] = oldDots[i];
+				firstNorms[j] = oldFirstNorms[i];
+				secondNorms[j] = oldSecondNorms[i];
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            pair key
+	 * @return slot holding the key, or -1 if the pair has no sums
+	 */
+	int find(long key) {
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			return -1;
+		}
+		return i;
+	}
+
+	/**
+	 * @return number of slots; slots are numbered [0, capacity)
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 *            slot index
+	 * @return pair key in the slot, or {@link SimilarityMatrix#EMPTY}
+	 */
+	long key(int slot) {
+		return keys[slot];
+	}
+
+	int dot(int slot) {
+		return dots[slot];
+	}
+
+	int firstNorm(int slot) {
+		return firstNorms[slot];
+	}
+
+	int secondNorm(int slot) {
+		return secondNorms[slot];
+	}
+
+	/**
+	 * @return number of item pairs
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all pairs, keeping the capacity.
+	 */
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(dots, 0);
+		Arrays.fill(firstNorms, 0);
+		Arrays.fill(secondNorms, 0);
+		size = 0;
+	}
+
+	/**
+	 * @return number of bytes held by the arrays
+	 */
+	long memoryBytes() {
+		return (8L + 4L * 3) * keys.length;
+	}
+
+	/**
+	 * Compute the cosine similarity of every item pair.
+	 *
+	 * @return similarity matrix
+	 */
+	SimilarityMatrix toSimilarityMatrix() {
+		SimilarityMatrix ret = new SimilarityMatrix(size);
+		putSimilarities(ret);
+		return ret;
+	}
+
+	/**
+	 * Compute the cosine similarity of every item pair and put it in the
+	 * given similarity matrix.
+	 *
+	 * @param target
+	 *            similarity matrix
+	 */
+	void putSimilarities(SimilarityMatrix target) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				target.put(keys[i], SimilarityBuilder.cosineSimilarity(dots[i],
+						firstNorms[i], secondNorms[i]));
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches predictions and top-N recommendations, so that repeated requests for
+ * popular users and items skip the scan of the user's neighbourhood.
+ * <p>
+ * The cache is bounded by weight: a prediction weighs 1 and a list of
+ * recommendations weighs 1 plus its length. Guava evicts entries in
+ * approximately least-recently-used order once the weight is exceeded.
+ * Concurrent requests for the same key compute the value only once.
+ * <p>
+ * Each user has a generation number, which is part of the key of every entry
+ * of the user. {@link #invalidate(int)} increments the generation, so all
+ * entries of the user are missed from then on in constant time; the orphaned
+ * entries are evicted as they age. The ratings of the user must be updated
+ * before the call, so that a value computed from stale ratings can only be
+ * stored under the old generation.
+ * <p>
+ * A new rating also changes the similarity of the rated item to the other
+ * items of the user, which the cached entries of other users are not
+ * invalidated for. Eviction by weight does not bound how long they are
+ * served, as it drops the least recently used entries and keeps the popular
+ * ones. When the model takes new ratings, entries should therefore expire a
+ * fixed time after they were computed: an entry of another user then uses
+ * similarities at most that old.
+ *
+ */
+final class PredictionCache {
+	private static final Logger log = LoggerFactory.getLogger(PredictionCache.class);
+	private final LoadingCache<Key, Object> cache;
+	private final AtomicIntegerArray generations;
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	/**
+	 * @param ratingTable
+	 *            ratings of each user, e.g. the rating matrix
+	 * @param model
+	 *            similarity model used for predictions
+	 * @param recommender
+	 *            recommender on the same ratings
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 * @param maxWeight
+	 *            maximum total weight of the cached entries
+	 */
+	PredictionCache(UserRatings ratingTable, ItemSimilarity model,
+			Recommender recommender, int minRatings, long maxWeight) {
+		this(ratingTable, model, recommender, minRatings, maxWeight, 0,
+				Ticker.systemTicker());
+	}
+
+	/**
+	 * @param ratingTable
+	 *            ratings of each user, e.g. the rating matrix
+	 * @param model
+	 *            similarity model used for predictions
+	 * @param recommender
+	 *            recommender on the same ratings
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 * @param maxWeight
+	 *            maximum total weight of the cached entries
+	 * @param expireNanos
+	 *            entries are dropped this long after they were computed; 0
+	 *            keeps them until they are evicted or invalidated
+	 * @param ticker
+	 *            time source of the expiry
+	 */
+	PredictionCache(final UserRatings ratingTable, final ItemSimilarity model,
+			final Recommender recommender, final int minRatings,
+			long maxWeight, long expireNanos, Ticker ticker) {
+		if (ratingTable == null || model == null || recommender == null
+				|| ticker == null) {
+			log.error("arguments must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (maxWeight < 0) {
+			log.error("maxWeight must not be negative. maxWeight={}", maxWeight);
+			throw new IllegalArgumentException();
+		}
+		if (expireNanos < 0) {
+			log.error("expireNanos must not be negative. expireNanos={}",
+					expireNanos);
+			throw new IllegalArgumentException();
+		}
+		generations = new AtomicIntegerArray(ratingTable.userCount());
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+		if (expireNanos > 0) {
+			builder.expireAfterWrite(expireNanos, TimeUnit.NANOSECONDS)
+				.ticker(ticker);
+		}
+		cache = builder.maximumWeight(maxWeight)
+			.weigher(new Weigher<Key, Object>() {
+				@Override
+				public int weigh(Key key, Object value) {
+					if (value instanceof List) {
+						return 1 + ((List<?>) value).size();
+					}
+					return 1;
+				}
+			})
+			.recordStats()
+			.build(new CacheLoader<Key, Object>() {
+				@Override
+				public Object load(Key key) {
+					if (key.item != Key.RECOMMEND) {
+						return ItemCf.predict(key.uid, key.item, ratingTable,
+								model, minRatings);
+					}
+					return recommender.recommend(key.uid, key.n);
+				}
+			});
+	}
+
+	/**
+	 * @see ItemCf#predict(int, int, UserRatings, ItemSimilarity, int)
+	 */
+	@SuppressWarnings("unchecked")
+	Optional<Integer> predict(int uid, int isbn) {
+		return (Optional<Integer>) get(new Key(uid, generations.get(uid), isbn,
+				0));
+	}
+
+	/**
+	 * @see Recommender#recommend(int, int)
+	 */
+	@SuppressWarnings("unchecked")
+	List<Recommender.Recommendation> recommend(int uid, int n) {
+		if (n < 0) {
+			log.error("n must not be negative. n={}", n);
+			throw new IllegalArgumentException();
+		}
+		return (List<Recommender.Recommendation>) get(new Key(uid,
+				generations.get(uid), Key.RECOMMEND, n));
+	}
+
+	private Object get(Key key) {
+		try {
+			return cache.get(key);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			// Loaders throw only unchecked exceptions
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	/**
+	 * Drop the cached predictions and recommendations of the user, after the
+	 * ratings of the user have changed.
+	 *
+	 * @param uid
+	 *            user id
+	 */
+	void invalidate(int uid) {
+		generations.incrementAndGet(uid);
+		invalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * Drop all entries, after the similarity model has changed.
+	 */
+	void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * @return hit, miss and eviction counts
+	 */
+	CacheStats stats() {
+		return cache.stats();
+	}
+
+	/**
+	 * @return number of calls to {@link #invalidate(int)}
+	 */
+	long invalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * @return approximate number of entries
+	 */
+	long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Prediction of an item, or recommendations of n items, for a user at a
+	 * generation.
+	 */
+	private static final class Key {
+		private static final int RECOMMEND = -1;
+		private final int uid;
+		private final int generation;
+		private final int item;
+		private final int n;
+
+		private Key(int uid, int generation, int item, int n) {
+			this.uid = uid;
+			this.generation = generation;
+			this.item = item;
+			this.n = n;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = ((long) uid << 32) | (item & 0xFFFFFFFFL);
+			h += 31L * (31L * generation + n);
+			return (int) SimilarityMatrix.mix(h);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return uid == other.uid && generation == other.generation
+					&& item == other.item && n == other.n;
+		}
+	}
+}
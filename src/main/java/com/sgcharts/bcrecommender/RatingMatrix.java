@@ -0,0 +1,332 @@
+package com.sgcharts.bcrecommender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable sparse rating matrix, stored in compressed sparse row (CSR) form
+ * twice: once by item (rows are books, as in the original rating table) and
+ * once by user (the columns of the rating table).
+ * <p>
+ * Within each row, indices are sorted in ascending order so that two rows can
+ * be intersected with a merge-join. Ratings are stored as bytes because
+ * explicit ratings fit in 1 - 10.
+ * <p>
+ * Entries of a row are addressed by position: e.g. for an item, iterate
+ * <code>itemFrom(item) &lt;= p &lt; itemTo(item)</code> and read
+ * <code>itemUser(p)</code> and <code>itemRating(p)</code>.
+ *
+ */
+final class RatingMatrix implements UserRatings {
+	private static final Logger log = LoggerFactory.getLogger(RatingMatrix.class);
+	/**
+	 * Returned by {@link #rating(int, int)} when the user has not rated the item
+	 */
+	static final int NO_RATING = 0;
+	/**
+	 * Item rows are intersected by galloping through the longer row when it
+	 * is this many times longer than the shorter one.
+	 */
+	static final int GALLOP_RATIO = 16;
+	private final int userCount;
+	private final int itemCount;
+	/**
+	 * Item view: raters of item i are at positions [itemPtr[i],
+	 * itemPtr[i+1])
+	 */
+	private final int[] itemPtr;
+	private final int[] itemUsers;
+	private final byte[] itemRatings;
+	/**
+	 * User view: items rated by user u are at positions [userPtr[u],
+	 * userPtr[u+1])
+	 */
+	private final int[] userPtr;
+	private final int[] userItems;
+	private final byte[] userRatings;
+
+	private RatingMatrix(int userCount, int itemCount, int[] itemPtr,
+			int[] itemUsers, byte[] itemRatings, int[] userPtr, int[] userItems,
+			byte[] userRatings) {
+		this.userCount = userCount;
+		this.itemCount = itemCount;
+		this.itemPtr = itemPtr;
+		this.itemUsers = itemUsers;
+		this.itemRatings = itemRatings;
+		this.userPtr = userPtr;
+		this.userItems = userItems;
+		this.userRatings = userRatings;
+	}
+
+	/**
+	 * Build both views with counting sorts in O(#ratings + #users + #items)
+	 * time.
+	 *
+	 * @param ratings
+	 *            list of ratings
+	 * @param userCount
+	 *            number of user ids; every user id must be less than this
+	 * @param itemCount
+	 *            number of item ids; every item id must be less than this
+	 * @return rating matrix
+	 */
+	static RatingMatrix of(Ratings ratings, int userCount, int itemCount) {
+		if (ratings == null) {
+			log.error("ratings must not be null");
+			throw new IllegalArgumentException();
+		}
+		final int size = ratings.size();
+		// Bucket by item in input order
+		int[] ptr = new int[itemCount + 1];
+		int item;
+		int user;
+		for (int i = 0; i < size; i++) {
+			item = ratings.item(i);
+			user = ratings.user(i);
+			if (item < 0 || item >= itemCount || user < 0 || user >= userCount) {
+				log.error("id out of range. user={} item={} userCount={} itemCount={}",
+						user, item, userCount, itemCount);
+				throw new IllegalArgumentException();
+			}
+			ptr[item + 1]++;
+		}
+		prefixSum(ptr);
+		int[] users = new int[size];
+		byte[] values = new byte[size];
+		int[] next = ptr.clone();
+		int p;
+		for (int i = 0; i < size; i++) {
+			p = next[ratings.item(i)]++;
+			users[p] = ratings.user(i);
+			values[p] = (byte) ratings.rating(i);
+		}
+		// Transpose items -> users: visiting items in ascending order sorts
+		// each user row.
+		int[] userPtr = new int[userCount + 1];
+		int[] userItems = new int[size];
+		byte[] userRatings = new byte[size];
+		transpose(ptr, users, values, userPtr, userItems, userRatings);
+		// Transpose users -> items: visiting users in ascending order sorts
+		// each item row.
+		int[] itemPtr = new int[itemCount + 1];
+		int[] itemUsers = new int[size];
+		byte[] itemRatings = new byte[size];
+		transpose(userPtr, userItems, userRatings, itemPtr, itemUsers,
+				itemRatings);
+		for (int u = 0; u < userCount; u++) {
+			for (p = userPtr[u] + 1; p < userPtr[u + 1]; p++) {
+				if (userItems[p] == userItems[p - 1]) {
+					log.error("duplicate rating. user={} item={}", u,
+							userItems[p]);
+					throw new IllegalArgumentException();
+				}
+			}
+		}
+		return new RatingMatrix(userCount, itemCount, itemPtr, itemUsers,
+				itemRatings, userPtr, userItems, userRatings);
+	}
+
+	private static void prefixSum(int[] ptr) {
+		for (int i = 1; i < ptr.length; i++) {
+			ptr[i] += ptr[i - 1];
+		}
+	}
+
+	private static void transpose(int[] ptr, int[] indices, byte[] values,
+			int[] outPtr, int[] outIndices, byte[] outValues) {
+		final int rows = ptr.length - 1;
+		for (int p = 0; p < indices.length; p++) {
+			outPtr[indices[p] + 1]++;
+		}
+		prefixSum(outPtr);
+		int[] next = new int[outPtr.length - 1];
+		System.arraycopy(outPtr, 0, next, 0, next.length);
+		int q;
+		for (int r = 0; r < rows; r++) {
+			for (int p = ptr[r]; p < ptr[r + 1]; p++) {
+				q = next[indices[p]]++;
+				outIndices[q] = r;
+				outValues[q] = values[p];
+			}
+		}
+	}
+
+	/**
+	 * @return number of user ids, including users with no ratings
+	 */
+	@Override
+	public int userCount() {
+		return userCount;
+	}
+
+	/**
+	 * @return number of item ids, including items with no ratings
+	 */
+	int itemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * @return number of ratings
+	 */
+	int size() {
+		return itemUsers.length;
+	}
+
+	int itemFrom(int item) {
+		return itemPtr[item];
+	}
+
+	int itemTo(int item) {
+		return itemPtr[item + 1];
+	}
+
+	int itemUser(int position) {
+		return itemUsers[position];
+	}
+
+	int itemRating(int position) {
+		return itemRatings[position];
+	}
+
+	int userFrom(int user) {
+		return userPtr[user];
+	}
+
+	int userTo(int user) {
+		return userPtr[user + 1];
+	}
+
+	int userItem(int position) {
+		return userItems[position];
+	}
+
+	int userRating(int position) {
+		return userRatings[position];
+	}
+
+	@Override
+	public int ratedItem(int user, int k) {
+		return userItems[userPtr[user] + k];
+	}
+
+	@Override
+	public int ratedItemRating(int user, int k) {
+		return userRatings[userPtr[user] + k];
+	}
+
+	/**
+	 * @param user
+	 *            user id, may be out of range
+	 * @return number of items rated by the user, zero if the user id is
+	 *         unknown
+	 */
+	@Override
+	public int userRatingCount(int user) {
+		if (user < 0 || user >= userCount) {
+			return 0;
+		}
+		return userPtr[user + 1] - userPtr[user];
+	}
+
+	/**
+	 * @param item
+	 *            item id, may be out of range
+	 * @return number of users who rated the item, zero if the item id is
+	 *         unknown
+	 */
+	int itemRatingCount(int item) {
+		if (item < 0 || item >= itemCount) {
+			return 0;
+		}
+		return itemPtr[item + 1] - itemPtr[item];
+	}
+
+	/**
+	 * Look up the user's rating of the item.
+	 *
+	 * @param user
+	 *            user id
+	 * @param item
+	 *            item id
+	 * @return rating, or {@link #NO_RATING} if the user has not rated the item
+	 */
+	@Override
+	public int rating(int user, int item) {
+		int p = userPosition(user, item);
+		if (p < 0) {
+			return NO_RATING;
+		}
+		return userRatings[p];
+	}
+
+	/**
+	 * Binary search the user row for the item.
+	 *
+	 * @param user
+	 *            user id
+	 * @param item
+	 *            item id
+	 * @return position of the item in the user view, or -1 if the user has not
+	 *         rated the item
+	 */
+	int userPosition(int user, int item) {
+		if (user < 0 || user >= userCount) {
+			return -1;
+		}
+		int lo = userPtr[user];
+		int hi = userPtr[user + 1] - 1;
+		int mid;
+		int midItem;
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			midItem = userItems[mid];
+			if (midItem < item) {
+				lo = mid + 1;
+			} else if (midItem > item) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sums needed for the cosine similarity of two items over their common
+	 * raters, by intersecting the item rows. Gallops through the longer row
+	 * if it is more than {@link #GALLOP_RATIO} times the length of the
+	 * shorter one.
+	 *
+	 * @param item
+	 *            first item id
+	 * @param other
+	 *            second item id
+	 * @param sums
+	 *            receives the dot product, squared norm of the first item and
+	 *            squared norm of the second item, at indices 0 - 2
+	 * @return number of common raters
+	 */
+	int coRatingSums(int item, int other, long[] sums) {
+		final int from = itemPtr[item];
+		final int to = itemPtr[item + 1];
+		final int otherFrom = itemPtr[other];
+		final int otherTo = itemPtr[other + 1];
+		final int n = to - from;
+		final int otherN = otherTo - otherFrom;
+		if (n > GALLOP_RATIO * otherN || otherN > GALLOP_RATIO * n) {
+			return MathUtil.sparseSumsGalloping(itemUsers, itemRatings, from,
+					to, itemUsers, itemRatings, otherFrom, otherTo, sums);
+		}
+		return MathUtil.sparseSums(itemUsers, itemRatings, from, to,
+				itemUsers, itemRatings, otherFrom, otherTo, sums);
+	}
+
+	/**
+	 * @return approximate number of bytes held by the arrays of both views
+	 */
+	long memoryBytes() {
+		return 4L * (itemPtr.length + itemUsers.length + userPtr.length
+				+ userItems.length) + itemRatings.length + userRatings.length;
+	}
+}
@@ -0,0 +1,162 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Growable list of (user id, item id, rating) triples, stored column-wise in
+ * primitive arrays. User and item ids are the dense ids assigned by
+ * {@link IdDictionary}. Explicit ratings (1 - 10) fit in a byte.
+ *
+ */
+final class Ratings {
+	private static final Logger log = LoggerFactory.getLogger(Ratings.class);
+	private int[] users;
+	private int[] items;
+	private byte[] ratings;
+	private int size = 0;
+
+	Ratings() {
+		this(16);
+	}
+
+	Ratings(int initialCapacity) {
+		if (initialCapacity < 0) {
+			log.error("initial capacity must not be negative. initialCapacity={}",
+					initialCapacity);
+			throw new IllegalArgumentException();
+		}
+		users = new int[initialCapacity];
+		items = new int[initialCapacity];
+		ratings = new byte[initialCapacity];
+	}
+
+	/**
+	 * Wrap columns of equal length, without copying.
+	 *
+	 * @param users
+	 *            user ids
+	 * @param items
+	 *            item ids
+	 * @param ratings
+	 *            ratings
+	 */
+	Ratings(int[] users, int[] items, byte[] ratings) {
+		if (users.length != items.length || users.length != ratings.length) {
+			log.error("columns must have the same length. users={} items={} ratings={}",
+					users.length, items.length, ratings.length);
+			throw new IllegalArgumentException();
+		}
+		this.users = users;
+		this.items = items;
+		this.ratings = ratings;
+		size = users.length;
+	}
+
+	void add(int user, int item, int rating) {
+		if (rating < Byte.MIN_VALUE || rating > Byte.MAX_VALUE) {
+			log.error("rating does not fit in a byte. rating={}", rating);
+			throw new IllegalArgumentException();
+		}
+		if (size == users.length) {
+			int capacity = Math.max(16, size + (size >> 1));
+			users = Arrays.copyOf(users, capacity);
+			items = Arrays.copyOf(items, capacity);
+			ratings = Arrays.copyOf(ratings, capacity);
+		}
+		users[size] = user;
+		items[size] = item;
+		ratings[size] = (byte) rating;
+		size++;
+	}
+
+	void addAll(Ratings other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.users[i], other.items[i], other.ratings[i]);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int user(int index) {
+		return users[index];
+	}
+
+	int item(int index) {
+		return items[index];
+	}
+
+	int rating(int index) {
+		return ratings[index];
+	}
+
+	/**
+	 * Randomly permute the triples in place (Fisher-Yates shuffle).
+	 *
+	 * @param random
+	 *            source of randomness
+	 */
+	void shuffle(Random random) {
+		int j;
+		for (int i = size - 1; i > 0; i--) {
+			j = random.nextInt(i + 1);
+			swap(i, j);
+		}
+	}
+
+	private void swap(int i, int j) {
+		int u = users[i];
+		users[i] = users[j];
+		users[j] = u;
+		int it = items[i];
+		items[i] = items[j];
+		items[j] = it;
+		byte r = ratings[i];
+		ratings[i] = ratings[j];
+		ratings[j] = r;
+	}
+
+	/**
+	 * Copy a range of triples into a new list.
+	 *
+	 * @param from
+	 *            start index, inclusive
+	 * @param to
+	 *            end index, exclusive
+	 * @return new list holding the triples in [from, to)
+	 */
+	Ratings copyOfRange(int from, int to) {
+		if (from < 0 || to > size || from > to) {
+			log.error("invalid range. from={} to={} size={}", from, to, size);
+			throw new IllegalArgumentException();
+		}
+		Ratings ret = new Ratings(0);
+		ret.users = Arrays.copyOfRange(users, from, to);
+		ret.items = Arrays.copyOfRange(items, from, to);
+		ret.ratings = Arrays.copyOfRange(ratings, from, to);
+		ret.size = to - from;
+		return ret;
+	}
+
+	/**
+	 * Order-independent hash of the triples, used to recognise a training set
+	 * that a persisted model was built from.
+	 *
+	 * @return 64-bit fingerprint
+	 */
+	long fingerprint() {
+		long ret = size;
+		long triple;
+		for (int i = 0; i < size; i++) {
+			triple = ((long) users[i] << 32) ^ ((long) items[i] << 8)
+					^ ratings[i];
+			ret += SimilarityMatrix.mix(triple + 0x9E3779B97F4A7C15L);
+		}
+		return ret;
+	}
+}
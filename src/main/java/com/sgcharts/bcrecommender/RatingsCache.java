@@ -0,0 +1,370 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cleaned, id-encoded ratings and their id dictionaries, cached in a binary
+ * columnar file so that repeated runs skip parsing the text ratings file. The
+ * cache records the length and modification time of the text file it was
+ * made from, and is ignored when either has changed.
+ * <p>
+ * Layout (big-endian):
+ * <ul>
+ * <li>header: magic, version, rating count, user count, item count, reserved
+ * (4 bytes each), followed by source file length, source file modification
+ * time and number of rows read from the source (8 bytes each)</li>
+ * <li>ratings: user ids (4 bytes each), then item ids (4 bytes each), then
+ * ratings (1 byte each)</li>
+ * <li>dictionaries, users then items: for each key in id order, the offset
+ * of its first char (key count + 1 ints), followed by the chars of all keys
+ * (2 bytes each)</li>
+ * </ul>
+ *
+ */
+final class RatingsCache {
+	private static final Logger log = LoggerFactory.getLogger(RatingsCache.class);
+	/**
+	 * "BXRC"
+	 */
+	static final int MAGIC = 0x42585243;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 48;
+	/**
+	 * Sections are mapped in pieces of at most this many bytes, to stay under
+	 * the 2GB limit of a single buffer.
+	 */
+	private static final int PIECE_BYTES = 1 << 28;
+	private final Ratings ratings;
+	private final long rowCount;
+
+	/**
+	 * A file with the magic and version of a ratings cache whose body is
+	 * truncated or corrupt, so that it is safe to replace.
+	 */
+	static final class DamagedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		DamagedException(String message) {
+			super(message);
+		}
+	}
+
+	private RatingsCache(Ratings ratings, long rowCount) {
+		this.ratings = ratings;
+		this.rowCount = rowCount;
+	}
+
+	/**
+	 * @return explicit ratings, in the order they were read from the source
+	 */
+	Ratings ratings() {
+		return ratings;
+	}
+
+	/**
+	 * @return number of rows read from the source, including implicit ratings
+	 */
+	long rowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Write the cache of a source file.
+	 *
+	 * @param file
+	 *            cache file, replaced if it exists
+	 * @param source
+	 *            text ratings file the ratings were read from
+	 * @param ratings
+	 *            explicit ratings
+	 * @param rowCount
+	 *            number of rows read from the source
+	 * @param users
+	 *            dictionary of user ids
+	 * @param items
+	 *            dictionary of ISBNs
+	 * @throws IOException
+	 */
+	static void write(File file, File source, Ratings ratings, long rowCount,
+			IdDictionary users, IdDictionary items) throws IOException {
+		if (file == null || source == null || ratings == null || users == null
+				|| items == null) {
+			log.error("arguments must not be null");
+			throw new IllegalArgumentException();
+		}
+		long startTime = System.currentTimeMillis();
+		File tmp = new File(file.getPath() + ".tmp");
+		final int size = ratings.size();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			out.writeInt(users.size());
+			out.writeInt(items.size());
+			out.writeInt(0);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeLong(rowCount);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ratings.user(i));
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ratings.item(i));
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeByte(ratings.rating(i));
+			}
+			writeDictionary(out, users);
+			writeDictionary(out, items);
+		}
+		// Readers never see a partly written cache
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("write: saved {} ratings to {} ({}ms)", size, file,
+				elapsedTime);
+	}
+
+	private static void writeDictionary(DataOutputStream out,
+			IdDictionary dictionary) throws IOException {
+		int offset = 0;
+		out.writeInt(offset);
+		for (int id = 0; id < dictionary.size(); id++) {
+			offset += dictionary.key(id)
+				.length();
+			out.writeInt(offset);
+		}
+		for (int id = 0; id < dictionary.size(); id++) {
+			out.writeChars(dictionary.key(id));
+		}
+	}
+
+	/**
+	 * Load the cache of a book crossing ratings file if it is usable, else
+	 * read the ratings file and (re)write the cache. A damaged cache, e.g.
+	 * one truncated by a full disk, is rebuilt like a stale one, but a file
+	 * that is not a ratings cache is never overwritten.
+	 *
+	 * @param file
+	 *            cache file, or null to always read the source
+	 * @param source
+	 *            text ratings file in the book crossing format, see
+	 *            {@link RatingsReader#SEPARATOR}
+	 * @param nThreads
+	 *            number of threads used to parse the source
+	 * @param users
+	 *            empty dictionary of user ids
+	 * @param items
+	 *            empty dictionary of ISBNs
+	 * @return ratings and number of rows read from the source
+	 * @throws IOException
+	 *             if the source cannot be read, or the cache file cannot be
+	 *             read or is not a ratings cache
+	 */
+	static RatingsCache loadOrRead(File file, File source, int nThreads,
+			IdDictionary users, IdDictionary items) throws IOException {
+		if (file != null) {
+			RatingsCache ret = null;
+			try {
+				ret = load(file, source, users, items);
+			} catch (DamagedException e) {
+				log.warn("loadOrRead: cannot load ratings cache {}, reading {}",
+						file, source, e);
+				// Keys of a partly read cache
+				users.clear();
+				items.clear();
+			}
+			if (ret != null) {
+				return ret;
+			}
+		}
+		RatingsReader reader = new RatingsReader(users, items);
+		Ratings ratings = reader.read(source, RatingsReader.SEPARATOR,
+				RatingsReader.HEADER_ROWS, true, nThreads);
+		if (file != null) {
+			write(file, source, ratings, reader.rowCount(), users, items);
+		}
+		return new RatingsCache(ratings, reader.rowCount());
+	}
+
+	/**
+	 * Load the cache of a source file, encoding its keys into the given
+	 * dictionaries with the same ids as when the cache was written.
+	 *
+	 * @param file
+	 *            cache file
+	 * @param source
+	 *            text ratings file the cache was made from
+	 * @param users
+	 *            empty dictionary of user ids
+	 * @param items
+	 *            empty dictionary of ISBNs
+	 * @return cached ratings, or null if there is no usable cache, i.e. the
+	 *         cache file does not exist, was written by another version, or
+	 *         the source has changed since it was written
+	 * @throws DamagedException
+	 *             if the cache file is a ratings cache of this version but is
+	 *             truncated or corrupt
+	 * @throws IOException
+	 *             if the cache file cannot be read or is not a ratings cache
+	 */
+	static RatingsCache load(File file, File source, IdDictionary users,
+			IdDictionary items) throws IOException {
+		if (file == null || source == null || users == null || items == null) {
+			log.error("arguments must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (users.size() != 0 || items.size() != 0) {
+			log.error("dictionaries must be empty. #users={} #items={}",
+					users.size(), items.size());
+			throw new IllegalArgumentException();
+		}
+		if (!file.isFile()) {
+			log.info("load: no ratings cache at {}", file);
+			return null;
+		}
+		long startTime = System.currentTimeMillis();
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("not a ratings cache: " + file);
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_BYTES);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("not a ratings cache: " + file);
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				log.info("load: ratings cache version {} is not {}, ignored: {}",
+						version, VERSION, file);
+				return null;
+			}
+			final int size = header.getInt();
+			final int userCount = header.getInt();
+			final int itemCount = header.getInt();
+			header.getInt();
+			long sourceLength = header.getLong();
+			long sourceLastModified = header.getLong();
+			long rowCount = header.getLong();
+			if (sourceLength != source.length()
+					|| sourceLastModified != source.lastModified()) {
+				log.info("load: {} has changed since the ratings cache was written",
+						source);
+				return null;
+			}
+			if (size < 0 || userCount < 0 || itemCount < 0
+					|| channel.size() < HEADER_BYTES + 9L * size + 4L * userCount
+							+ 4L * itemCount + 8) {
+				throw new DamagedException("truncated ratings cache: " + file);
+			}
+			long position = HEADER_BYTES;
+			int[] userIds = new int[size];
+			position = readInts(channel, position, userIds);
+			int[] itemIds = new int[size];
+			position = readInts(channel, position, itemIds);
+			byte[] values = new byte[size];
+			position = readBytes(channel, position, values);
+			position = readDictionary(channel, position, userCount, users);
+			position = readDictionary(channel, position, itemCount, items);
+			if (position != channel.size()) {
+				throw new DamagedException("truncated ratings cache: " + file);
+			}
+			long elapsedTime = System.currentTimeMillis() - startTime;
+			log.info("load: loaded {} ratings from {} ({}ms)", size, file,
+					elapsedTime);
+			return new RatingsCache(new Ratings(userIds, itemIds, values),
+					rowCount);
+		}
+	}
+
+	/**
+	 * @return position after the ints
+	 */
+	private static long readInts(FileChannel channel, long position, int[] dst)
+			throws IOException {
+		final int perPiece = PIECE_BYTES / 4;
+		int n;
+		for (int from = 0; from < dst.length; from += n) {
+			n = Math.min(perPiece, dst.length - from);
+			channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * n)
+				.asIntBuffer()
+				.get(dst, from, n);
+			position += 4L * n;
+		}
+		return position;
+	}
+
+	/**
+	 * @return position after the bytes
+	 */
+	private static long readBytes(FileChannel channel, long position, byte[] dst)
+			throws IOException {
+		int n;
+		for (int from = 0; from < dst.length; from += n) {
+			n = Math.min(PIECE_BYTES, dst.length - from);
+			channel.map(FileChannel.MapMode.READ_ONLY, position, n)
+				.get(dst, from, n);
+			position += n;
+		}
+		return position;
+	}
+
+	/**
+	 * @return position after the chars
+	 */
+	private static long readChars(FileChannel channel, long position,
+			char[] dst) throws IOException {
+		final int perPiece = PIECE_BYTES / 2;
+		int n;
+		for (int from = 0; from < dst.length; from += n) {
+			n = Math.min(perPiece, dst.length - from);
+			channel.map(FileChannel.MapMode.READ_ONLY, position, 2L * n)
+				.asCharBuffer()
+				.get(dst, from, n);
+			position += 2L * n;
+		}
+		return position;
+	}
+
+	/**
+	 * @return position after the dictionary
+	 */
+	private static long readDictionary(FileChannel channel, long position,
+			int keyCount, IdDictionary dictionary) throws IOException {
+		int[] offsets = new int[keyCount + 1];
+		position = readInts(channel, position, offsets);
+		if (offsets[keyCount] < 0
+				|| position + 2L * offsets[keyCount] > channel.size()) {
+			throw new DamagedException("truncated ratings cache");
+		}
+		for (int id = 0; id < keyCount; id++) {
+			if (offsets[id] < 0 || offsets[id] > offsets[id + 1]) {
+				throw new DamagedException("corrupt ratings cache");
+			}
+		}
+		char[] chars = new char[offsets[keyCount]];
+		position = readChars(channel, position, chars);
+		for (int id = 0; id < keyCount; id++) {
+			// Keys are distinct, so each is assigned the next id
+			if (dictionary.id(new String(chars, offsets[id], offsets[id + 1]
+					- offsets[id])) != id) {
+				throw new DamagedException("corrupt ratings cache");
+			}
+		}
+		return position;
+	}
+}
@@ -0,0 +1,220 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.CharMatcher;
+
+/**
+ * Streams a ratings file of (user id, ISBN, rating) rows straight into
+ * {@link Ratings}, encoding user ids and ISBNs with the given dictionaries.
+ * Implicit ratings, expressed by 0 on the rating scale, are discarded before
+ * their keys are encoded, so ids are only assigned to users and books with
+ * explicit ratings.
+ * <p>
+ * Fields are copied into reusable buffers and the rating is parsed in place,
+ * so a row does not allocate unless it introduces a new key.
+ *
+ */
+final class RatingsReader implements FileUtil.FieldHandler {
+	private static final Logger log = LoggerFactory.getLogger(RatingsReader.class);
+	/**
+	 * Separators of the book crossing ratings file, where fields are quoted
+	 * and separated by semicolons
+	 */
+	static final CharMatcher SEPARATOR = CharMatcher.anyOf("\";\\");
+	/**
+	 * Number of header rows of the book crossing ratings file
+	 */
+	static final int HEADER_ROWS = 1;
+	private static final int USER_COLUMN = 0;
+	private static final int ITEM_COLUMN = 1;
+	private static final int RATING_COLUMN = 2;
+	private final IdDictionary users;
+	private final IdDictionary items;
+	private final Ratings ratings;
+	private final StringBuilder user = new StringBuilder();
+	private final StringBuilder item = new StringBuilder();
+	private int rating = 0;
+	private long rowCount = 0;
+
+	/**
+	 * @param users
+	 *            encodes user ids
+	 * @param items
+	 *            encodes ISBNs
+	 */
+	RatingsReader(IdDictionary users, IdDictionary items) {
+		if (users == null || items == null) {
+			log.error("dictionaries must not be null");
+			throw new IllegalArgumentException();
+		}
+		this.users = users;
+		this.items = items;
+		ratings = new Ratings();
+	}
+
+	/**
+	 * Read a ratings file.
+	 *
+	 * @param file
+	 *            ratings file
+	 * @param separator
+	 *            matches separator characters
+	 * @param nHeaderRows
+	 *            number of rows to skip
+	 * @param omitEmptyStrings
+	 *            if true, empty fields are skipped
+	 * @return explicit ratings in file order
+	 * @throws IOException
+	 */
+	Ratings read(File file, CharMatcher separator, int nHeaderRows,
+			boolean omitEmptyStrings) throws IOException {
+		FileUtil.read(file, separator, nHeaderRows, omitEmptyStrings, this);
+		return ratings;
+	}
+
+	/**
+	 * Read a ratings file in parallel: the file is memory-mapped and split
+	 * into line-aligned chunks, each parsed by its own reader with its own
+	 * dictionaries. The chunks are then merged in file order, so ids are
+	 * assigned in the same order as a sequential read.
+	 *
+	 * @param file
+	 *            ratings file
+	 * @param separator
+	 *            matches separator characters
+	 * @param nHeaderRows
+	 *            number of rows to skip
+	 * @param omitEmptyStrings
+	 *            if true, empty fields are skipped
+	 * @param nThreads
+	 *            number of chunks parsed at the same time; 1 to stream the
+	 *            file on the calling thread
+	 * @return explicit ratings in file order
+	 * @throws IOException
+	 */
+	Ratings read(File file, CharMatcher separator, int nHeaderRows,
+			boolean omitEmptyStrings, int nThreads) throws IOException {
+		if (nThreads == 1) {
+			return read(file, separator, nHeaderRows, omitEmptyStrings);
+		}
+		// More chunks than threads evens out the load; mapped chunks must not
+		// exceed 2GB.
+		int nChunks = (int) Math.max(4L * nThreads, file.length()
+				/ (1 << 30) + 1);
+		List<RatingsReader> chunks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			chunks.add(new RatingsReader(new IdDictionary(),
+					new IdDictionary()));
+		}
+		FileUtil.read(file, separator, nHeaderRows, omitEmptyStrings, chunks,
+				nThreads);
+		for (RatingsReader chunk : chunks) {
+			merge(chunk);
+		}
+		return ratings;
+	}
+
+	/**
+	 * Append the ratings of a chunk, re-encoding its keys with the
+	 * dictionaries of this reader. Keys are visited in order of their chunk
+	 * ids, i.e. order of first appearance in the chunk.
+	 */
+	private void merge(RatingsReader chunk) {
+		int[] userIds = new int[chunk.users.size()];
+		for (int i = 0; i < userIds.length; i++) {
+			userIds[i] = users.id(chunk.users.key(i));
+		}
+		int[] itemIds = new int[chunk.items.size()];
+		for (int i = 0; i < itemIds.length; i++) {
+			itemIds[i] = items.id(chunk.items.key(i));
+		}
+		Ratings r = chunk.ratings;
+		for (int i = 0; i < r.size(); i++) {
+			ratings.add(userIds[r.user(i)], itemIds[r.item(i)], r.rating(i));
+		}
+		rowCount += chunk.rowCount;
+	}
+
+	@Override
+	public void field(int column, CharSequence value) {
+		switch (column) {
+		case USER_COLUMN:
+			user.setLength(0);
+			user.append(value);
+			break;
+		case ITEM_COLUMN:
+			item.setLength(0);
+			item.append(value);
+			break;
+		case RATING_COLUMN:
+			rating = parseInt(value);
+			break;
+		default:
+			// Ignore trailing columns
+		}
+	}
+
+	@Override
+	public void endOfRow(int columns) {
+		rowCount++;
+		if (columns <= RATING_COLUMN) {
+			log.error("row has too few columns. row={} columns={}", rowCount,
+					columns);
+			throw new IllegalArgumentException();
+		}
+		if (rating != 0) {
+			ratings.add(users.id(user), items.id(item), rating);
+		}
+	}
+
+	/**
+	 * Same as {@link Integer#parseInt(String)} for ratings, without creating
+	 * a String.
+	 */
+	private int parseInt(CharSequence value) {
+		final int length = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (length != 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			i++;
+		}
+		if (i == length || length - i > 9) {
+			log.error("invalid rating. row={} rating={}", rowCount + 1, value);
+			throw new IllegalArgumentException();
+		}
+		int ret = 0;
+		char c;
+		for (; i < length; i++) {
+			c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				log.error("invalid rating. row={} rating={}", rowCount + 1,
+						value);
+				throw new IllegalArgumentException();
+			}
+			ret = ret * 10 + (c - '0');
+		}
+		return negative ? -ret : ret;
+	}
+
+	/**
+	 * @return number of rows read, including implicit ratings
+	 */
+	long rowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return explicit ratings read so far
+	 */
+	Ratings ratings() {
+		return ratings;
+	}
+}
@@ -0,0 +1,294 @@
+package com.sgcharts.bcrecommender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Top-N recommendations for a user, scored with the same weighted average as
+ * {@link ItemCf#predict(int, int, UserRatings, ItemSimilarity, int)} on a
+ * neighbour index.
+ * <p>
+ * Instead of predicting every item in the catalogue, candidates are generated
+ * from the user's rated items: a rating of item j contributes to the
+ * prediction of item c only if j is one of the neighbours of c, and those
+ * items c are exactly the row of j in the transposed neighbour index. One
+ * pass over these rows accumulates the numerator and denominator of every
+ * candidate, so a request takes time proportional to the size of the user's
+ * neighbourhood, not to the number of items.
+ * <p>
+ * Thread-safe: each thread accumulates into its own scratch arrays, which are
+ * allocated on the first request of the thread and reused afterwards.
+ *
+ */
+final class Recommender {
+	private static final Logger log = LoggerFactory.getLogger(Recommender.class);
+	private final UserRatings ratingTable;
+	/**
+	 * Row j holds the items that have j among their neighbours
+	 */
+	private final NeighbourIndex reverseNeighbours;
+	private final int minRatings;
+	private final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+		@Override
+		protected Accumulator initialValue() {
+			return new Accumulator(reverseNeighbours.itemCount());
+		}
+	};
+
+	/**
+	 * @param ratingTable
+	 *            ratings of each user, e.g. the rating matrix
+	 * @param neighbours
+	 *            neighbour index of the rated items
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 */
+	Recommender(UserRatings ratingTable, NeighbourIndex neighbours,
+			int minRatings) {
+		if (ratingTable == null || neighbours == null) {
+			log.error("rating table and neighbour index must not be null");
+			throw new IllegalArgumentException();
+		}
+		this.ratingTable = ratingTable;
+		this.reverseNeighbours = neighbours.transpose();
+		this.minRatings = minRatings;
+	}
+
+	/**
+	 * Recommend the items with the highest predicted ratings, among the items
+	 * the user has not rated. Candidates are ranked by their weighted average
+	 * before rounding; ties are broken in favour of the smaller item id.
+	 *
+	 * @param uid
+	 *            user id
+	 * @param n
+	 *            maximum number of recommendations
+	 * @return at most n recommendations, best first; empty if the user has
+	 *         fewer than <code>minRatings</code> ratings
+	 */
+	List<Recommendation> recommend(int uid, int n) {
+		if (n < 0) {
+			log.error("n must not be negative. n={}", n);
+			throw new IllegalArgumentException();
+		}
+		int nRatings = ratingTable.userRatingCount(uid);
+		if (n == 0 || nRatings == 0 || nRatings < minRatings) {
+			return Collections.emptyList();
+		}
+		Accumulator acc = accumulators.get();
+		int rated;
+		int rating;
+		int candidate;
+		int pTo;
+		float sim;
+		// Rated items are visited in ascending order, as in predict, so the
+		// sums are bit-for-bit the same.
+		for (int k = 0; k < nRatings; k++) {
+			rated = ratingTable.ratedItem(uid, k);
+			rating = ratingTable.ratedItemRating(uid, k);
+			pTo = reverseNeighbours.neighbourTo(rated);
+			for (int p = reverseNeighbours.neighbourFrom(rated); p < pTo; p++) {
+				candidate = reverseNeighbours.neighbour(p);
+				sim = reverseNeighbours.similarity(p);
+				acc.add(candidate, sim * rating, sim);
+			}
+		}
+		TopN top = new TopN(Math.min(n, acc.touchedCount));
+		float score;
+		for (int t = 0; t < acc.touchedCount; t++) {
+			candidate = acc.touched[t];
+			if (acc.counts[candidate] < minRatings
+					|| ratingTable.rating(uid, candidate) != RatingMatrix.NO_RATING) {
+				continue;
+			}
+			score = acc.numerators[candidate] / acc.denominators[candidate];
+			if (score == 0 || Float.isNaN(score)) {
+				continue;
+			}
+			top.offer(candidate, score);
+		}
+		acc.clear();
+		return top.toList();
+	}
+
+	/**
+	 * Numerator, denominator and neighbour count of the candidates of one
+	 * request, in dense arrays indexed by item id. Only touched entries are
+	 * cleared between requests.
+	 */
+	private static final class Accumulator {
+		private final float[] numerators;
+		private final float[] denominators;
+		private final int[] counts;
+		private int[] touched = new int[64];
+		private int touchedCount = 0;
+
+		private Accumulator(int itemCount) {
+			numerators = new float[itemCount];
+			denominators = new float[itemCount];
+			counts = new int[itemCount];
+		}
+
+		private void add(int item, float numerator, float denominator) {
+			if (counts[item] == 0) {
+				if (touchedCount == touched.length) {
+					int[] tmp = new int[touched.length * 2];
+					System.arraycopy(touched, 0, tmp, 0, touchedCount);
+					touched = tmp;
+				}
+				touched[touchedCount++] = item;
+			}
+			numerators[item] += numerator;
+			denominators[item] += denominator;
+			counts[item]++;
+		}
+
+		private void clear() {
+			int item;
+			for (int t = 0; t < touchedCount; t++) {
+				item = touched[t];
+				numerators[item] = 0;
+				denominators[item] = 0;
+				counts[item] = 0;
+			}
+			touchedCount = 0;
+		}
+	}
+
+	/**
+	 * Bounded min-heap of the best n candidates seen so far; the root is the
+	 * worst of them.
+	 */
+	private static final class TopN {
+		private final int[] items;
+		private final float[] scores;
+		private int size = 0;
+
+		private TopN(int n) {
+			items = new int[n];
+			scores = new float[n];
+		}
+
+		/**
+		 * @return true if a ranks below b
+		 */
+		private static boolean worse(int a, float aScore, int b, float bScore) {
+			return aScore < bScore || (aScore == bScore && a > b);
+		}
+
+		private void offer(int item, float score) {
+			if (size < items.length) {
+				items[size] = item;
+				scores[size] = score;
+				siftUp(size++);
+				return;
+			}
+			if (!worse(items[0], scores[0], item, score)) {
+				return;
+			}
+			items[0] = item;
+			scores[0] = score;
+			siftDown(0);
+		}
+
+		private void siftUp(int i) {
+			int parent;
+			while (i > 0) {
+				parent = (i - 1) >>> 1;
+				if (!worse(items[i], scores[i], items[parent], scores[parent])) {
+					return;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			int child;
+			while ((child = 2 * i + 1) < size) {
+				if (child + 1 < size
+						&& worse(items[child + 1], scores[child + 1],
+								items[child], scores[child])) {
+					child++;
+				}
+				if (!worse(items[child], scores[child], items[i], scores[i])) {
+					return;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int item = items[i];
+			items[i] = items[j];
+			items[j] = item;
+			float score = scores[i];
+			scores[i] = scores[j];
+			scores[j] = score;
+		}
+
+		/**
+		 * Empties the heap.
+		 *
+		 * @return candidates, best first
+		 */
+		private List<Recommendation> toList() {
+			Recommendation[] ret = new Recommendation[size];
+			while (size > 0) {
+				ret[size - 1] = new Recommendation(items[0], scores[0]);
+				size--;
+				items[0] = items[size];
+				scores[0] = scores[size];
+				siftDown(0);
+			}
+			List<Recommendation> list = new ArrayList<>(ret.length);
+			Collections.addAll(list, ret);
+			return list;
+		}
+	}
+
+	/**
+	 * Recommended item and its predicted rating.
+	 */
+	static final class Recommendation {
+		private final int item;
+		private final float score;
+
+		Recommendation(int item, float score) {
+			this.item = item;
+			this.score = score;
+		}
+
+		/**
+		 * @return item id
+		 */
+		int item() {
+			return item;
+		}
+
+		/**
+		 * @return weighted average of the user's ratings, before rounding
+		 */
+		float score() {
+			return score;
+		}
+
+		/**
+		 * @return predicted rating, rounded as by
+		 *         {@link ItemCf#predict(int, int, UserRatings, ItemSimilarity, int)}
+		 */
+		int rating() {
+			return ItemCf.round(score);
+		}
+
+		@Override
+		public String toString() {
+			return "Recommendation [item=" + item + ", score=" + score + "]";
+		}
+	}
+}
@@ -0,0 +1,715 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.StringUtil.appendJsonString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves rating predictions and top-N recommendations over HTTP, using the
+ * JDK's built-in server. The ratings and the similarity model are loaded
+ * once at startup and shared by all requests.
+ * <p>
+ * Endpoints (JSON responses, GET unless stated):
+ * <ul>
+ * <li><code>/predict?user=&lt;user id&gt;&amp;isbn=&lt;ISBN&gt;</code>:
+ * predicted rating, or null if no prediction can be made</li>
+ * <li><code>/recommend?user=&lt;user id&gt;&amp;n=&lt;count&gt;</code>: top
+ * n books the user has not rated, from the neighbour index</li>
+ * <li><code>/metrics</code>: request count, QPS and p50/p99 latency of each
+ * endpoint, and hit/miss/eviction/invalidation counts of the prediction
+ * cache</li>
+ * <li>POST
+ * <code>/rate?user=&lt;user id&gt;&amp;isbn=&lt;ISBN&gt;&amp;rating=&lt;1-10&gt;</code>:
+ * add or change a rating; only served when the model is an
+ * {@link IncrementalSimilarity}</li>
+ * </ul>
+ * Predictions and recommendations are served from a {@link PredictionCache}
+ * when possible. A new rating updates the model, and invalidates the cached
+ * entries of the user. The cached entries of other users may use the old
+ * similarities until they expire, a fixed time after they were computed.
+ * Ratings are taken one at a time, while no prediction or recommendation is
+ * being computed. The neighbour index used for recommendations is not
+ * rebuilt.
+ * Requests run on a fixed pool of worker threads with a bounded queue. When
+ * the queue is full, the accepting thread runs the request itself, which
+ * stops it from accepting more connections until the backlog drains.
+ *
+ */
+public final class RecommenderServer {
+	private static final Logger log = LoggerFactory.getLogger(RecommenderServer.class);
+	/**
+	 * Ratings input file path
+	 */
+	private static final String RATINGS_INPUT_FILE_PATH = System.getProperty("toy.ratings");
+	/**
+	 * Optional path of a binary cache of the cleaned, id-encoded ratings
+	 */
+	private static final String RATINGS_CACHE_PATH = System.getProperty("toy.ratings-cache");
+	/**
+	 * Optional path of the similarity model. Loaded if it was built from the
+	 * same ratings, else built and saved there.
+	 */
+	private static final String MODEL_PATH = System.getProperty("toy.model");
+	/**
+	 * Optional manifest of a similarity model built in shards by
+	 * {@link ShardCoordinator}; takes precedence over <code>toy.model</code>.
+	 */
+	private static final String SHARDED_MODEL_PATH = System.getProperty("toy.sharded-model");
+	/**
+	 * If true, the similarity model is built in memory as an
+	 * {@link IncrementalSimilarity} and new ratings are taken at
+	 * <code>/rate</code>. Cannot be combined with <code>toy.model</code> or
+	 * <code>toy.sharded-model</code>.
+	 */
+	private static final boolean LIVE = Boolean.getBoolean("toy.live");
+	/**
+	 * Minimum number of ratings that user must make in order to make a
+	 * prediction.
+	 */
+	private static final int MIN_RATINGS_COUNT = Integer.getInteger(
+			"toy.min-ratings", 2);
+	/**
+	 * Number of neighbours per item in the index used for recommendations.
+	 */
+	private static final int NEIGHBOURS = Integer.getInteger("toy.neighbours",
+			50);
+	/**
+	 * Neighbours less similar than this are dropped from the neighbour index.
+	 */
+	private static final float MIN_SIMILARITY = Float.parseFloat(System.getProperty(
+			"toy.min-similarity", "0"));
+	/**
+	 * If positive, the model file is built out of core: pair sums are spilled
+	 * to sorted runs next to the model file and merged, within this many bytes
+	 * of heap. 0 streams the model into the file as a sparse matrix product
+	 * computed on <code>toy.threads</code> threads, see
+	 * {@link SpGemmSimilarityBuilder#write(RatingMatrix, long, File, int)}.
+	 */
+	private static final long BUILD_MEMORY = Long.getLong("toy.build-memory", 0);
+	private static final int PORT = Integer.getInteger("toy.port", 8080);
+	/**
+	 * Number of worker threads, also used to build the similarity matrix.
+	 * Defaults to the number of available processors.
+	 */
+	private static final int THREADS = Integer.getInteger("toy.threads",
+			Runtime.getRuntime()
+				.availableProcessors());
+	/**
+	 * Maximum number of requests waiting for a worker thread.
+	 */
+	private static final int QUEUE_CAPACITY = Integer.getInteger("toy.queue",
+			1024);
+	/**
+	 * Upper bound on the number of recommendations per request.
+	 */
+	static final int MAX_RECOMMENDATIONS = 1000;
+	/**
+	 * Explicit ratings of the book crossing dataset are in [1, 10].
+	 */
+	static final int MAX_RATING = 10;
+	/**
+	 * Maximum total weight of cached predictions and recommendations: a
+	 * prediction weighs 1, and a list of recommendations 1 plus its length. 0
+	 * disables caching.
+	 */
+	private static final long CACHE_WEIGHT = Long.getLong("toy.cache-weight",
+			100000);
+	/**
+	 * If the model takes new ratings, cached predictions and recommendations
+	 * are dropped this many seconds after they were computed. This bounds how
+	 * long another user's rating can go unseen in the cached entries of a
+	 * user.
+	 */
+	private static final long CACHE_EXPIRE_SECONDS = Long.getLong(
+			"toy.cache-expire-seconds", 60);
+	private static final int DEFAULT_RECOMMENDATIONS = 10;
+	private final UserRatings ratingTable;
+	private final IdDictionary users;
+	private final IdDictionary items;
+	private final PredictionCache cache;
+	/**
+	 * Model that takes new ratings, or null if the model is read-only
+	 */
+	private final IncrementalSimilarity live;
+	/**
+	 * Held for writing while a rating is added, and for reading while
+	 * predicting or recommending, if the model takes new ratings
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final LatencyHistogram predictLatency = new LatencyHistogram();
+	private final LatencyHistogram recommendLatency = new LatencyHistogram();
+	private final LatencyHistogram rateLatency = new LatencyHistogram();
+	private final AtomicLong errorCount = new AtomicLong();
+	private final long startTime = System.nanoTime();
+	private HttpServer server;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * @param ratingTable
+	 *            ratings of all users
+	 * @param users
+	 *            dictionary of user ids
+	 * @param items
+	 *            dictionary of ISBNs
+	 * @param model
+	 *            similarity model used for predictions
+	 * @param neighbours
+	 *            neighbour index used for recommendations
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 * @param cacheWeight
+	 *            maximum total weight of cached predictions and
+	 *            recommendations
+	 */
+	RecommenderServer(RatingMatrix ratingTable, IdDictionary users,
+			IdDictionary items, ItemSimilarity model, NeighbourIndex neighbours,
+			int minRatings, long cacheWeight) {
+		this(ratingTable, model, null, users, items, neighbours, minRatings,
+				cacheWeight, 0);
+	}
+
+	/**
+	 * Server that takes new ratings at <code>/rate</code>.
+	 *
+	 * @param live
+	 *            ratings of all users and the similarity model, updated by
+	 *            new ratings
+	 * @param users
+	 *            dictionary of user ids
+	 * @param items
+	 *            dictionary of ISBNs
+	 * @param neighbours
+	 *            neighbour index used for recommendations
+	 * @param minRatings
+	 *            minimum number of ratings required to make a prediction
+	 * @param cacheWeight
+	 *            maximum total weight of cached predictions and
+	 *            recommendations
+	 * @param cacheExpireSeconds
+	 *            cached predictions and recommendations are dropped this many
+	 *            seconds after they were computed
+	 */
+	RecommenderServer(IncrementalSimilarity live, IdDictionary users,
+			IdDictionary items, NeighbourIndex neighbours, int minRatings,
+			long cacheWeight, long cacheExpireSeconds) {
+		this(live, live, live, users, items, neighbours, minRatings,
+				cacheWeight, cacheExpireSeconds);
+	}
+
+	private RecommenderServer(UserRatings ratingTable, ItemSimilarity model,
+			IncrementalSimilarity live, IdDictionary users, IdDictionary items,
+			NeighbourIndex neighbours, int minRatings, long cacheWeight,
+			long cacheExpireSeconds) {
+		if (ratingTable == null || users == null || items == null
+				|| model == null || neighbours == null) {
+			log.error("arguments must not be null");
+			throw new IllegalArgumentException();
+		}
+		if (live != null && cacheExpireSeconds <= 0) {
+			log.error("cacheExpireSeconds must be positive. cacheExpireSeconds={}",
+					cacheExpireSeconds);
+			throw new IllegalArgumentException();
+		}
+		this.ratingTable = ratingTable;
+		this.users = users;
+		this.items = items;
+		this.live = live;
+		this.cache = new PredictionCache(ratingTable, model, new Recommender(
+				ratingTable, neighbours, minRatings), minRatings, cacheWeight,
+				TimeUnit.SECONDS.toNanos(cacheExpireSeconds),
+				Ticker.systemTicker());
+	}
+
+	public static void main(String[] args) throws IOException {
+		long startTime = System.currentTimeMillis();
+		log.info("Main: started...");
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		File cacheFile = null;
+		if (RATINGS_CACHE_PATH != null) {
+			cacheFile = new File(RATINGS_CACHE_PATH);
+		}
+		Ratings ratings = RatingsCache.loadOrRead(cacheFile,
+				new File(RATINGS_INPUT_FILE_PATH), THREADS, users, items)
+			.ratings();
+		log.info("ratings size={}, #users={}, #books={}", ratings.size(),
+				users.size(), items.size());
+		RatingMatrix ratingTable = RatingMatrix.of(ratings, users.size(),
+				items.size());
+		ItemSimilarity model;
+		PairSource pairs;
+		IncrementalSimilarity live = null;
+		if (LIVE) {
+			if (SHARDED_MODEL_PATH != null || MODEL_PATH != null) {
+				log.error("toy.live cannot be combined with toy.model or toy.sharded-model");
+				throw new IllegalArgumentException();
+			}
+			live = IncrementalSimilarity.of(ratingTable);
+			model = live;
+			pairs = live;
+		} else if (SHARDED_MODEL_PATH != null) {
+			ShardedSimilarity sharded = ShardedSimilarity.open(new File(
+					SHARDED_MODEL_PATH));
+			if (sharded.fingerprint() != ratings.fingerprint()
+					|| sharded.itemCount() != ratingTable.itemCount()) {
+				log.error("sharded model was built from other ratings: {}",
+						SHARDED_MODEL_PATH);
+				throw new IllegalArgumentException();
+			}
+			model = sharded;
+			pairs = sharded;
+		} else if (MODEL_PATH != null) {
+			SimilarityFile file = similarityFile(new File(MODEL_PATH),
+					ratingTable, ratings.fingerprint());
+			model = file;
+			pairs = file;
+		} else {
+			SimilarityMatrix matrix = SimilarityBuilder.similarityMatrix(
+					ratingTable, THREADS);
+			model = matrix;
+			pairs = matrix;
+		}
+		NeighbourIndex neighbours = NeighbourIndex.of(pairs, items.size(),
+				NEIGHBOURS, MIN_SIMILARITY);
+		log.info("neighbourIndex: k={} size={} memoryBytes={}", NEIGHBOURS,
+				neighbours.size(), neighbours.memoryBytes());
+		final RecommenderServer server;
+		if (live != null) {
+			server = new RecommenderServer(live, users, items, neighbours,
+					MIN_RATINGS_COUNT, CACHE_WEIGHT, CACHE_EXPIRE_SECONDS);
+		} else {
+			server = new RecommenderServer(ratingTable, users, items, model,
+					neighbours, MIN_RATINGS_COUNT, CACHE_WEIGHT);
+		}
+		int port = server.start(PORT, THREADS, QUEUE_CAPACITY);
+		Runtime.getRuntime()
+			.addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					server.stop();
+				}
+			});
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Main: listening on port {} ({}ms)", port, elapsedTime);
+	}
+
+	/**
+	 * Open the persisted similarity model if it was built from the same
+	 * ratings, else build it and save it to the file.
+	 */
+	private static SimilarityFile similarityFile(File file,
+			RatingMatrix ratingTable, long fingerprint) throws IOException {
+		if (file.isFile()) {
+			SimilarityFile ret = SimilarityFile.open(file);
+			if (ret.fingerprint() == fingerprint
+					&& ret.itemCount() == ratingTable.itemCount()) {
+				return ret;
+			}
+			log.warn("similarityFile: {} was built from other ratings, rebuilding",
+					file);
+			ret.close();
+		}
+		if (BUILD_MEMORY > 0) {
+			ExternalSimilarityBuilder.build(ratingTable, fingerprint, file,
+					BUILD_MEMORY, file.getAbsoluteFile()
+						.getParentFile());
+		} else {
+			// Pairs come out in key order, so only the row ranges in flight
+			// are held in the heap
+			SpGemmSimilarityBuilder.write(ratingTable, fingerprint, file,
+					THREADS);
+		}
+		return SimilarityFile.open(file);
+	}
+
+	/**
+	 * Start serving.
+	 *
+	 * @param port
+	 *            port to listen on, or 0 for any free port
+	 * @param nThreads
+	 *            number of worker threads
+	 * @param queueCapacity
+	 *            maximum number of requests waiting for a worker thread
+	 * @return port the server listens on
+	 * @throws IOException
+	 */
+	int start(int port, int nThreads, int queueCapacity) throws IOException {
+		if (server != null) {
+			log.error("server has already been started");
+			throw new IllegalStateException();
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "server-worker-"
+								+ threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		server = HttpServer.create(new InetSocketAddress(port), queueCapacity);
+		server.setExecutor(executor);
+		server.createContext("/predict", new Endpoint("GET", predictLatency) {
+			@Override
+			String respond(Map<String, String> params) {
+				return predict(param(params, "user"), param(params, "isbn"));
+			}
+		});
+		server.createContext("/recommend", new Endpoint("GET",
+				recommendLatency) {
+			@Override
+			String respond(Map<String, String> params) {
+				int n = DEFAULT_RECOMMENDATIONS;
+				if (params.containsKey("n")) {
+					n = intParam(params, "n");
+				}
+				if (n < 0 || n > MAX_RECOMMENDATIONS) {
+					throw new IllegalArgumentException("n must be in [0, "
+							+ MAX_RECOMMENDATIONS + "]");
+				}
+				return recommend(param(params, "user"), n);
+			}
+		});
+		server.createContext("/metrics", new Endpoint("GET", null) {
+			@Override
+			String respond(Map<String, String> params) {
+				return metrics();
+			}
+		});
+		if (live != null) {
+			server.createContext("/rate", new Endpoint("POST", rateLatency) {
+				@Override
+				String respond(Map<String, String> params) {
+					int rating = intParam(params, "rating");
+					if (rating < 1 || rating > MAX_RATING) {
+						throw new IllegalArgumentException("rating must be in [1, "
+								+ MAX_RATING + "]");
+					}
+					return rate(param(params, "user"), param(params, "isbn"),
+							rating);
+				}
+			});
+		}
+		server.start();
+		return server.getAddress()
+			.getPort();
+	}
+
+	/**
+	 * Stop accepting requests, and finish the requests in progress.
+	 */
+	void stop() {
+		if (server == null) {
+			return;
+		}
+		server.stop(1);
+		executor.shutdown();
+		log.info("stop: served {} predictions, {} recommendations, {} ratings",
+				predictLatency.count(), recommendLatency.count(),
+				rateLatency.count());
+	}
+
+	/**
+	 * @return JSON of the predicted rating, null if no prediction can be made
+	 *         or the user has already rated the book
+	 */
+	String predict(String user, String isbn) {
+		int uid = users.get(user);
+		int id = items.get(isbn);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"user\":");
+		appendJsonString(sb, user);
+		sb.append(",\"isbn\":");
+		appendJsonString(sb, isbn);
+		sb.append(",\"rating\":");
+		Optional<Integer> p = Optional.absent();
+		if (uid != IdDictionary.NO_ID && id != IdDictionary.NO_ID) {
+			lockForReading();
+			try {
+				// Already rated is answered here, because ItemCf.predict logs
+				// a warning for it and clients could flood the log
+				if (ratingTable.rating(uid, id) == RatingMatrix.NO_RATING) {
+					p = cache.predict(uid, id);
+				}
+			} finally {
+				unlockForReading();
+			}
+		}
+		sb.append(p.isPresent() ? p.get()
+			.toString() : "null");
+		return sb.append('}')
+			.toString();
+	}
+
+	/**
+	 * @return JSON of the top n recommendations, best first
+	 */
+	String recommend(String user, int n) {
+		int uid = users.get(user);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"user\":");
+		appendJsonString(sb, user);
+		sb.append(",\"items\":[");
+		if (uid != IdDictionary.NO_ID) {
+			List<Recommender.Recommendation> list;
+			lockForReading();
+			try {
+				list = cache.recommend(uid, n);
+			} finally {
+				unlockForReading();
+			}
+			for (int i = 0; i < list.size(); i++) {
+				if (i != 0) {
+					sb.append(',');
+				}
+				sb.append("{\"isbn\":");
+				appendJsonString(sb, items.key(list.get(i)
+					.item()));
+				sb.append(",\"score\":")
+					.append(list.get(i)
+						.score())
+					.append(",\"rating\":")
+					.append(list.get(i)
+						.rating())
+					.append('}');
+			}
+		}
+		return sb.append("]}")
+			.toString();
+	}
+
+	/**
+	 * Add or change a rating of the live model, and invalidate the cached
+	 * predictions and recommendations of the user.
+	 *
+	 * @return JSON of the rating and the number of item pairs updated
+	 * @throws IllegalArgumentException
+	 *             if the user or the ISBN is unknown
+	 */
+	String rate(String user, String isbn, int rating) {
+		if (live == null) {
+			log.error("model does not take new ratings");
+			throw new IllegalStateException();
+		}
+		int uid = users.get(user);
+		if (uid == IdDictionary.NO_ID) {
+			throw new IllegalArgumentException("unknown user: " + user);
+		}
+		int id = items.get(isbn);
+		if (id == IdDictionary.NO_ID) {
+			throw new IllegalArgumentException("unknown isbn: " + isbn);
+		}
+		int pairs;
+		lock.writeLock()
+			.lock();
+		try {
+			pairs = live.rate(uid, id, rating);
+			// After the ratings changed, see PredictionCache
+			cache.invalidate(uid);
+		} finally {
+			lock.writeLock()
+				.unlock();
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"user\":");
+		appendJsonString(sb, user);
+		sb.append(",\"isbn\":");
+		appendJsonString(sb, isbn);
+		sb.append(",\"rating\":")
+			.append(rating)
+			.append(",\"pairs\":")
+			.append(pairs);
+		return sb.append('}')
+			.toString();
+	}
+
+	/**
+	 * Ratings can only change if the model is live, so a read-only model
+	 * takes no lock.
+	 */
+	private void lockForReading() {
+		if (live != null) {
+			lock.readLock()
+				.lock();
+		}
+	}
+
+	private void unlockForReading() {
+		if (live != null) {
+			lock.readLock()
+				.unlock();
+		}
+	}
+
+	/**
+	 * @return JSON of the request count, QPS and latency percentiles of each
+	 *         endpoint, and the cache counters, since the server was created
+	 */
+	String metrics() {
+		double uptime = (System.nanoTime() - startTime) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT,
+				"{\"uptimeSeconds\":%.3f,\"errors\":%d",
+				uptime, errorCount.get()));
+		appendMetrics(sb, "predict", predictLatency, uptime);
+		appendMetrics(sb, "recommend", recommendLatency, uptime);
+		appendMetrics(sb, "rate", rateLatency, uptime);
+		CacheStats stats = cache.stats();
+		sb.append(String.format(Locale.ROOT,
+				",\"cache\":{\"size\":%d,\"hits\":%d,\"misses\":%d,\"hitRate\":%.4f,\"evictions\":%d,\"invalidations\":%d}",
+				cache.size(), stats.hitCount(), stats.missCount(),
+				stats.hitRate(), stats.evictionCount(),
+				cache.invalidationCount()));
+		return sb.append('}')
+			.toString();
+	}
+
+	private static void appendMetrics(StringBuilder sb, String name,
+			LatencyHistogram latency, double uptime) {
+		long count = latency.count();
+		sb.append(String.format(Locale.ROOT,
+				",\"%s\":{\"count\":%d,\"qps\":%.3f,\"p50Micros\":%d,\"p99Micros\":%d}",
+				name, count, count / uptime, latency.percentile(50),
+				latency.percentile(99)));
+	}
+
+	/**
+	 * @return decoded query parameters; the last value wins if a parameter is
+	 *         repeated
+	 */
+	static Map<String, String> params(String query) {
+		Map<String, String> ret = new HashMap<>();
+		if (query == null || query.isEmpty()) {
+			return ret;
+		}
+		int eq;
+		try {
+			for (String pair : query.split("&")) {
+				eq = pair.indexOf('=');
+				if (eq < 0) {
+					ret.put(URLDecoder.decode(pair, "UTF-8"), "");
+				} else {
+					ret.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+							URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return ret;
+	}
+
+	private static String param(Map<String, String> params, String name) {
+		String ret = params.get(name);
+		if (ret == null || ret.isEmpty()) {
+			throw new IllegalArgumentException("missing parameter: " + name);
+		}
+		return ret;
+	}
+
+	private static int intParam(Map<String, String> params, String name) {
+		try {
+			return Integer.parseInt(param(params, name));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not an integer: " + name);
+		}
+	}
+
+	/**
+	 * Parses the query, times the request and writes the JSON response.
+	 * Invalid parameters are answered with 400 Bad Request.
+	 */
+	private abstract class Endpoint implements HttpHandler {
+		private final String method;
+		private final LatencyHistogram latency;
+
+		/**
+		 * @param method
+		 *            HTTP method served; other methods are answered with 405
+		 *            Method Not Allowed
+		 * @param latency
+		 *            records the latency of each request, or null
+		 */
+		private Endpoint(String method, LatencyHistogram latency) {
+			this.method = method;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return JSON response body
+		 */
+		abstract String respond(Map<String, String> params);
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			int status = 200;
+			String body;
+			try {
+				if (!method.equals(exchange.getRequestMethod())) {
+					status = 405;
+					body = "{\"error\":\"method not allowed\"}";
+				} else {
+					body = respond(params(exchange.getRequestURI()
+						.getRawQuery()));
+				}
+			} catch (IllegalArgumentException e) {
+				status = 400;
+				StringBuilder sb = new StringBuilder("{\"error\":");
+				appendJsonString(sb, String.valueOf(e.getMessage()));
+				body = sb.append('}')
+					.toString();
+			} catch (RuntimeException e) {
+				log.error("failed to handle request: {}",
+						exchange.getRequestURI(), e);
+				status = 500;
+				body = "{\"error\":\"internal error\"}";
+			}
+			if (status != 200) {
+				errorCount.incrementAndGet();
+			}
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders()
+				.set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+			if (latency != null && status == 200) {
+				latency.record((System.nanoTime() - start) / 1000);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the similarity model in shards, one {@link ShardWorker} process per
+ * shard, so that the size of the model is not limited by the heap of a single
+ * JVM.
+ * <p>
+ * The coordinator parses the ratings once into the binary ratings cache,
+ * which all workers load, then starts the workers on this machine and waits
+ * for them. Each worker writes one shard file into the shard directory and
+ * its log to <code>shard-&lt;i&gt;.log</code> there. When every worker has
+ * succeeded, the coordinator writes the manifest that
+ * {@link ShardedSimilarity#open(File)} reads; lookups are then routed to the
+ * shard of the pair's smaller item. Workers only need the shared files, so
+ * the shard directory may be on storage shared with other hosts.
+ *
+ */
+public final class ShardCoordinator {
+	private static final Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+	/**
+	 * Ratings input file path
+	 */
+	private static final String RATINGS_INPUT_FILE_PATH = System.getProperty("toy.ratings");
+	/**
+	 * Directory of the shard files and the manifest
+	 */
+	private static final String SHARD_DIR = System.getProperty("toy.shard-dir");
+	/**
+	 * Path of the binary ratings cache shared by the workers. Defaults to
+	 * <code>ratings.cache</code> in the shard directory.
+	 */
+	private static final String RATINGS_CACHE_PATH = System.getProperty("toy.ratings-cache");
+	/**
+	 * Number of shards, i.e. worker processes. Defaults to the number of
+	 * available processors.
+	 */
+	private static final int SHARDS = Integer.getInteger("toy.shards",
+			Runtime.getRuntime()
+				.availableProcessors());
+	/**
+	 * Optional maximum heap size of each worker, e.g. <code>2g</code>
+	 */
+	private static final String WORKER_HEAP = System.getProperty("toy.worker-heap");
+	/**
+	 * Optional heap budget of each worker's build, in bytes; see
+	 * {@link ShardWorker}
+	 */
+	private static final String BUILD_MEMORY = System.getProperty("toy.build-memory");
+
+	private ShardCoordinator() {
+		// Not meant to be instantiated
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (RATINGS_INPUT_FILE_PATH == null || SHARD_DIR == null) {
+			log.error("toy.ratings and toy.shard-dir must be set");
+			throw new IllegalArgumentException();
+		}
+		long startTime = System.currentTimeMillis();
+		File dir = new File(SHARD_DIR);
+		File cache = RATINGS_CACHE_PATH != null ? new File(RATINGS_CACHE_PATH)
+				: new File(dir, "ratings.cache");
+		List<String> jvmOptions = new ArrayList<>();
+		if (WORKER_HEAP != null) {
+			jvmOptions.add("-Xmx" + WORKER_HEAP);
+		}
+		if (BUILD_MEMORY != null) {
+			jvmOptions.add("-Dtoy.build-memory=" + BUILD_MEMORY);
+		}
+		File manifest = build(new File(RATINGS_INPUT_FILE_PATH), cache, dir,
+				SHARDS, jvmOptions);
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Main: {} written ({}ms)", manifest, elapsedTime);
+	}
+
+	/**
+	 * Build the similarity model in shards.
+	 *
+	 * @param source
+	 *            text ratings file
+	 * @param cache
+	 *            binary ratings cache, written if missing or out of date
+	 * @param dir
+	 *            directory of the shard files, created if it does not exist
+	 * @param nShards
+	 *            number of shards, i.e. worker processes
+	 * @param jvmOptions
+	 *            options of the worker JVMs, e.g. the maximum heap size
+	 * @return manifest of the shards
+	 * @throws IOException
+	 *             if a worker fails
+	 * @throws InterruptedException
+	 */
+	static File build(File source, File cache, File dir, int nShards,
+			List<String> jvmOptions) throws IOException, InterruptedException {
+		if (nShards < 1) {
+			log.error("number of shards must be positive. nShards={}", nShards);
+			throw new IllegalArgumentException();
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create shard directory: " + dir);
+		}
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		Ratings ratings = RatingsCache.loadOrRead(cache, source,
+				Runtime.getRuntime()
+					.availableProcessors(), users, items)
+			.ratings();
+		// A manifest of a previous build must not outlive its shards
+		File old = new File(dir, ShardedSimilarity.MANIFEST);
+		if (old.exists() && !old.delete()) {
+			throw new IOException("cannot delete old manifest: " + old);
+		}
+		String java = new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath();
+		Process[] workers = new Process[nShards];
+		File[] logs = new File[nShards];
+		try {
+			for (int s = 0; s < nShards; s++) {
+				List<String> command = new ArrayList<>();
+				command.add(java);
+				command.addAll(jvmOptions);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add("-Dtoy.ratings=" + source.getAbsolutePath());
+				command.add("-Dtoy.ratings-cache=" + cache.getAbsolutePath());
+				command.add("-Dtoy.shard-dir=" + dir.getAbsolutePath());
+				command.add("-Dtoy.shard=" + s);
+				command.add("-Dtoy.shards=" + nShards);
+				command.add(ShardWorker.class.getName());
+				logs[s] = new File(dir, "shard-" + s + ".log");
+				workers[s] = new ProcessBuilder(command).redirectErrorStream(
+						true)
+					.redirectOutput(logs[s])
+					.start();
+			}
+			log.info("{} workers started", nShards);
+			int failed = 0;
+			int exitCode;
+			for (int s = 0; s < nShards; s++) {
+				exitCode = workers[s].waitFor();
+				if (exitCode != 0) {
+					log.error("shard {} failed with exit code {}, see {}", s,
+							exitCode, logs[s]);
+					failed++;
+				}
+			}
+			if (failed != 0) {
+				throw new IOException(failed + " of " + nShards
+						+ " shards failed");
+			}
+		} finally {
+			for (Process worker : workers) {
+				if (worker != null) {
+					worker.destroy();
+				}
+			}
+		}
+		return ShardedSimilarity.writeManifest(dir, nShards, items.size(),
+				ratings.fingerprint());
+	}
+}
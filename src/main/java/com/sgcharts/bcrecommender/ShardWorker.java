@@ -0,0 +1,100 @@
+package com.sgcharts.bcrecommender;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Worker process of a sharded similarity build, started by
+ * {@link ShardCoordinator}. Loads the ratings from the binary ratings cache
+ * shared by all workers, and writes the similarity file of one shard with
+ * {@link ExternalSimilarityBuilder}, so that its heap use is bounded by the
+ * build memory budget.
+ * <p>
+ * The shard file is written under a temporary name and renamed when
+ * complete. Exits with a non-zero status if the shard cannot be built.
+ *
+ */
+public final class ShardWorker {
+	private static final Logger log = LoggerFactory.getLogger(ShardWorker.class);
+	/**
+	 * Ratings input file path, used to check that the cache is up to date
+	 */
+	private static final String RATINGS_INPUT_FILE_PATH = System.getProperty("toy.ratings");
+	/**
+	 * Binary ratings cache written by the coordinator
+	 */
+	private static final String RATINGS_CACHE_PATH = System.getProperty("toy.ratings-cache");
+	/**
+	 * Directory of the shard files
+	 */
+	private static final String SHARD_DIR = System.getProperty("toy.shard-dir");
+	private static final int SHARD = Integer.getInteger("toy.shard", -1);
+	private static final int SHARDS = Integer.getInteger("toy.shards", 0);
+	/**
+	 * Heap budget of the shard build, in bytes. Defaults to half of the
+	 * maximum heap size.
+	 */
+	private static final long BUILD_MEMORY = Long.getLong("toy.build-memory",
+			Runtime.getRuntime()
+				.maxMemory() / 2);
+
+	private ShardWorker() {
+		// Not meant to be instantiated
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (RATINGS_INPUT_FILE_PATH == null || RATINGS_CACHE_PATH == null
+				|| SHARD_DIR == null) {
+			log.error("toy.ratings, toy.ratings-cache and toy.shard-dir must be set");
+			throw new IllegalArgumentException();
+		}
+		long startTime = System.currentTimeMillis();
+		long pairs = build(new File(RATINGS_INPUT_FILE_PATH), new File(
+				RATINGS_CACHE_PATH), SHARD, SHARDS, new File(SHARD_DIR),
+				BUILD_MEMORY);
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		log.info("Main: shard {} of {}: {} pairs ({}ms)", SHARD, SHARDS, pairs,
+				elapsedTime);
+	}
+
+	/**
+	 * Build the similarity file of one shard.
+	 *
+	 * @param source
+	 *            text ratings file the cache was made from
+	 * @param cache
+	 *            binary ratings cache
+	 * @param shard
+	 *            shard index in [0, nShards)
+	 * @param nShards
+	 *            number of shards
+	 * @param dir
+	 *            directory of the shard files, also used for run files
+	 * @param memoryBytes
+	 *            heap budget of the build
+	 * @return number of item pairs in the shard
+	 * @throws IOException
+	 */
+	static long build(File source, File cache, int shard, int nShards,
+			File dir, long memoryBytes) throws IOException {
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		RatingsCache ratingsCache = RatingsCache.load(cache, source, users,
+				items);
+		if (ratingsCache == null) {
+			log.error("ratings cache is missing or out of date: {}", cache);
+			throw new IllegalArgumentException();
+		}
+		Ratings ratings = ratingsCache.ratings();
+		RatingMatrix ratingTable = RatingMatrix.of(ratings, users.size(),
+				items.size());
+		File file = new File(dir, ShardedSimilarity.shardFileName(shard,
+				nShards));
+		return ExternalSimilarityBuilder.build(ratingTable,
+				ratings.fingerprint(), file, memoryBytes, dir,
+				ExternalSimilarityBuilder.DEFAULT_FAN_IN, shard, nShards);
+	}
+}
@@ -0,0 +1,222 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.SimilarityMatrix.mix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Similarity model split into shard files, one per worker of a
+ * {@link ShardCoordinator} build. A pair belongs to the shard of its smaller
+ * item, see {@link #shardOf(int, int)}, so a lookup opens exactly one shard.
+ * <p>
+ * The shards are listed in a manifest, a properties file next to the shard
+ * files with the number of shards, the item count and the fingerprint of the
+ * training set. Every shard must have been built from that training set.
+ *
+ */
+final class ShardedSimilarity implements ItemSimilarity, PairSource, Closeable {
+	private static final Logger log = LoggerFactory.getLogger(ShardedSimilarity.class);
+	/**
+	 * File name of the manifest in the shard directory
+	 */
+	static final String MANIFEST = "shards.properties";
+	private final SimilarityFile[] shards;
+	private final int itemCount;
+	private final long fingerprint;
+
+	private ShardedSimilarity(SimilarityFile[] shards, int itemCount,
+			long fingerprint) {
+		this.shards = shards;
+		this.itemCount = itemCount;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Items are hashed rather than split into ranges, so that every shard gets
+	 * a mix of popular and unpopular items.
+	 *
+	 * @param item
+	 *            smaller item of a pair
+	 * @param nShards
+	 *            number of shards
+	 * @return shard of the pairs whose smaller item is the given item
+	 */
+	static int shardOf(int item, int nShards) {
+		return (int) ((mix(item) >>> 1) % nShards);
+	}
+
+	/**
+	 * @return file name of a shard, relative to the manifest
+	 */
+	static String shardFileName(int shard, int nShards) {
+		return String.format("shard-%d-of-%d.sim", shard, nShards);
+	}
+
+	/**
+	 * Write the manifest of complete shard files.
+	 *
+	 * @param dir
+	 *            directory of the shard files
+	 * @param nShards
+	 *            number of shards
+	 * @param itemCount
+	 *            number of item ids
+	 * @param fingerprint
+	 *            fingerprint of the training set
+	 * @return manifest file
+	 * @throws IOException
+	 */
+	static File writeManifest(File dir, int nShards, int itemCount,
+			long fingerprint) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("shards", Integer.toString(nShards));
+		p.setProperty("items", Integer.toString(itemCount));
+		p.setProperty("fingerprint", Long.toString(fingerprint));
+		File ret = new File(dir, MANIFEST);
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+			p.store(out, "similarity shards");
+		}
+		// Readers never see a manifest of a partial build
+		Files.move(tmp.toPath(), ret.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return ret;
+	}
+
+	/**
+	 * Open the shards listed in a manifest.
+	 *
+	 * @param manifest
+	 *            manifest written by {@link #writeManifest}
+	 * @return model backed by the mapped shard files
+	 * @throws IOException
+	 *             if a shard cannot be opened, or was built from other
+	 *             ratings than the manifest says
+	 */
+	static ShardedSimilarity open(File manifest) throws IOException {
+		if (manifest == null) {
+			log.error("manifest must not be null");
+			throw new IllegalArgumentException();
+		}
+		Properties p = new Properties();
+		try (InputStream in = Files.newInputStream(manifest.toPath())) {
+			p.load(in);
+		}
+		int nShards;
+		int itemCount;
+		long fingerprint;
+		try {
+			nShards = Integer.parseInt(p.getProperty("shards"));
+			itemCount = Integer.parseInt(p.getProperty("items"));
+			fingerprint = Long.parseLong(p.getProperty("fingerprint"));
+		} catch (NumberFormatException e) {
+			throw new IOException("not a shard manifest: " + manifest, e);
+		}
+		if (nShards < 1) {
+			throw new IOException("not a shard manifest: " + manifest);
+		}
+		File dir = manifest.getAbsoluteFile()
+			.getParentFile();
+		SimilarityFile[] shards = new SimilarityFile[nShards];
+		try {
+			for (int s = 0; s < nShards; s++) {
+				shards[s] = SimilarityFile.open(new File(dir, shardFileName(s,
+						nShards)));
+				if (shards[s].fingerprint() != fingerprint
+						|| shards[s].itemCount() != itemCount) {
+					throw new IOException(String.format(
+							"shard %d was built from other ratings: %s", s,
+							shards[s].file()));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			for (SimilarityFile shard : shards) {
+				if (shard != null) {
+					shard.close();
+				}
+			}
+			throw e;
+		}
+		return new ShardedSimilarity(shards, itemCount, fingerprint);
+	}
+
+	@Override
+	public float get(int item, int other) {
+		if (item == other) {
+			return Float.NaN;
+		}
+		int first = Math.min(item, other);
+		if (first < 0) {
+			return Float.NaN;
+		}
+		return shards[shardOf(first, shards.length)].get(item, other);
+	}
+
+	/**
+	 * Visit every item pair, shard by shard; pairs are in ascending order of
+	 * pair key within a shard only.
+	 */
+	@Override
+	public void forEach(Visitor visitor) {
+		for (SimilarityFile shard : shards) {
+			shard.forEach(visitor);
+		}
+	}
+
+	/**
+	 * @return number of item pairs in all shards
+	 */
+	long size() {
+		long ret = 0;
+		for (SimilarityFile shard : shards) {
+			ret += shard.size();
+		}
+		return ret;
+	}
+
+	int shardCount() {
+		return shards.length;
+	}
+
+	int itemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * @return fingerprint of the training set the shards were built from
+	 */
+	long fingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * The shards are mapped outside the heap.
+	 *
+	 * @return total size of the mapped shard files
+	 */
+	@Override
+	public long memoryBytes() {
+		long ret = 0;
+		for (SimilarityFile shard : shards) {
+			ret += shard.memoryBytes();
+		}
+		return ret;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (SimilarityFile shard : shards) {
+			shard.close();
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.primitives.Ints;
+
+/**
+ * Builds the item-item similarity matrix from an inverted index of the rating
+ * table, i.e. by walking the items rated by each user (user view of the
+ * {@link RatingMatrix}).
+ * <p>
+ * Only item pairs that share at least one rater are ever visited, so the total
+ * cost is proportional to the sum of squared user degrees instead of the square
+ * of the number of items. Per-pair sums (dot product and the squared norms of
+ * both items over the common raters) are accumulated as each user is visited;
+ * cosine similarity is computed once all users have been seen.
+ *
+ */
+final class SimilarityBuilder {
+	private static final Logger log = LoggerFactory.getLogger(SimilarityBuilder.class);
+
+	private SimilarityBuilder() {
+		// Not meant to be instantiated
+	}
+
+	/**
+	 * Given a rating table, build an item-item similarity matrix by
+	 * co-occurrence counting.
+	 * <p>
+	 * Returns exactly the same cosine scores as comparing every item pair,
+	 * because the ratings are integers and the per-pair sums are therefore
+	 * exact.
+	 *
+	 * @param ratingTable
+	 *            rating matrix where rows are books and column are users
+	 * @return similarity matrix
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable) {
+		return similarityMatrix(ratingTable, null);
+	}
+
+	private static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			Metrics.Counter coRatings) {
+		JfrEvents.SimilarityBuild event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.SimilarityBuild();
+			event.begin();
+		}
+		PairStats sums = new PairStats();
+		int from;
+		int to;
+		int rating;
+		int item;
+		long visited = 0;
+		for (int u = 0; u < ratingTable.userCount(); u++) {
+			from = ratingTable.userFrom(u);
+			to = ratingTable.userTo(u);
+			// Items of a user row are sorted, so the first item of each pair
+			// is also the first item in the pair key.
+			for (int i = from; i < to; i++) {
+				rating = ratingTable.userRating(i);
+				item = ratingTable.userItem(i);
+				for (int j = i + 1; j < to; j++) {
+					sums.add(pairKey(item, ratingTable.userItem(j)), rating,
+							ratingTable.userRating(j));
+				}
+				visited += to - i - 1;
+			}
+		}
+		log.info("{} co-rated pairs visited, {} distinct pairs", visited,
+				sums.size());
+		if (coRatings != null) {
+			coRatings.add(visited);
+		}
+		SimilarityMatrix ret = sums.toSimilarityMatrix();
+		if (event != null) {
+			commit(event, ratingTable, ret, 1);
+		}
+		return ret;
+	}
+
+	private static void commit(JfrEvents.SimilarityBuild event,
+			RatingMatrix ratingTable, SimilarityMatrix simMatrix, int nThreads) {
+		event.items = ratingTable.itemCount();
+		event.users = ratingTable.userCount();
+		event.ratings = ratingTable.size();
+		event.pairs = simMatrix.size();
+		event.threads = nThreads;
+		event.commit();
+	}
+
+	/**
+	 * Build the similarity matrix on multiple threads. Produces exactly the
+	 * same scores as {@link #similarityMatrix(RatingMatrix)}.
+	 * <p>
+	 * The item space is split into contiguous ranges of roughly equal pair
+	 * work, because item degrees are heavily skewed. A worker owns every pair
+	 * whose first (smaller) item falls in its range, so each worker fills its
+	 * own partial sums and no two partials share a key. Partials are then
+	 * copied into the result without any locking.
+	 *
+	 * @param ratingTable
+	 *            rating matrix where rows are books and column are users
+	 * @param nThreads
+	 *            number of worker threads
+	 * @return similarity matrix
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			int nThreads) {
+		return similarityMatrix(ratingTable, nThreads, null);
+	}
+
+	/**
+	 * Build the similarity matrix on multiple threads, and count the
+	 * co-rated pairs visited.
+	 *
+	 * @param ratingTable
+	 *            rating matrix where rows are books and column are users
+	 * @param nThreads
+	 *            number of worker threads
+	 * @param coRatings
+	 *            if not null, the number of co-rated pairs visited is added
+	 *            to it
+	 * @return similarity matrix
+	 * @see #similarityMatrix(RatingMatrix, int)
+	 */
+	static SimilarityMatrix similarityMatrix(final RatingMatrix ratingTable,
+			int nThreads, Metrics.Counter coRatings) {
+		if (nThreads < 1) {
+			log.error("number of threads must be at least 1. nThreads={}",
+					nThreads);
+			throw new IllegalArgumentException();
+		}
+		if (nThreads == 1) {
+			return similarityMatrix(ratingTable, coRatings);
+		}
+		JfrEvents.SimilarityBuild event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.SimilarityBuild();
+			event.begin();
+		}
+		// More work units than threads, so that a thread that finishes early
+		// can pick up the remaining units.
+		long[] work = pairWork(ratingTable);
+		if (coRatings != null) {
+			coRatings.add(sum(work));
+		}
+		final int[] bounds = partition(work, nThreads * 4);
+		List<Callable<PairStats>> tasks = new ArrayList<>(bounds.length - 1);
+		for (int k = 0; k < bounds.length - 1; k++) {
+			final int from = bounds[k];
+			final int to = bounds[k + 1];
+			tasks.add(new Callable<PairStats>() {
+				@Override
+				public PairStats call() {
+					return pairStats(ratingTable, from, to);
+				}
+			});
+		}
+		List<PairStats> partials = new ArrayList<>(tasks.size());
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			for (Future<PairStats> f : pool.invokeAll(tasks)) {
+				partials.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while building similarity matrix");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			log.error("failed to build similarity matrix", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		int size = 0;
+		for (PairStats partial : partials) {
+			size += partial.size();
+		}
+		log.info("{} work units, {} distinct pairs", partials.size(), size);
+		SimilarityMatrix ret = new SimilarityMatrix(size);
+		for (PairStats partial : partials) {
+			partial.putSimilarities(ret);
+		}
+		if (event != null) {
+			commit(event, ratingTable, ret, nThreads);
+		}
+		return ret;
+	}
+
+	/**
+	 * Estimate the work of each item as the number of co-rated pairs where it
+	 * is the first (smaller) item, i.e. for each rater, the number of items
+	 * after it in the rater's sorted row.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @return number of pairs owned by each item
+	 */
+	static long[] pairWork(RatingMatrix ratingTable) {
+		long[] ret = new long[ratingTable.itemCount()];
+		int to;
+		for (int u = 0; u < ratingTable.userCount(); u++) {
+			to = ratingTable.userTo(u);
+			for (int p = ratingTable.userFrom(u); p < to; p++) {
+				ret[ratingTable.userItem(p)] += to - p - 1;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Split items into contiguous ranges of roughly equal work.
+	 *
+	 * @param work
+	 *            work of each item
+	 * @param nParts
+	 *            maximum number of ranges
+	 * @return range boundaries; range k is [ret[k], ret[k+1])
+	 */
+	static int[] partition(long[] work, int nParts) {
+		final long total = sum(work);
+		final long target = Math.max(1, (total + nParts - 1) / nParts);
+		List<Integer> bounds = new ArrayList<>(nParts + 1);
+		bounds.add(0);
+		long sum = 0;
+		for (int i = 0; i < work.length; i++) {
+			sum += work[i];
+			if (sum >= target && i + 1 < work.length) {
+				bounds.add(i + 1);
+				sum = 0;
+			}
+		}
+		bounds.add(work.length);
+		return Ints.toArray(bounds);
+	}
+
+	/**
+	 * @param work
+	 *            work of each item
+	 * @return total work, e.g. the number of co-rated pairs if the work is
+	 *         {@link #pairWork(RatingMatrix)}
+	 */
+	static long sum(long[] work) {
+		long ret = 0;
+		for (long w : work) {
+			ret += w;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param ratingTable
+	 *            rating matrix
+	 * @return sums of every co-rated item pair
+	 */
+	static PairStats pairStats(RatingMatrix ratingTable) {
+		return pairStats(ratingTable, 0, ratingTable.itemCount());
+	}
+
+	/**
+	 * Accumulate the sums of every pair whose first item is in the given
+	 * range, walking each item's raters and the items after it in the rater's
+	 * row.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param fromItem
+	 *            first item, inclusive
+	 * @param toItem
+	 *            last item, exclusive
+	 * @return partial sums
+	 */
+	private static PairStats pairStats(RatingMatrix ratingTable, int fromItem,
+			int toItem) {
+		JfrEvents.PairStatsBatch event = null;
+		if (JfrEvents.AVAILABLE) {
+			event = new JfrEvents.PairStatsBatch();
+			event.begin();
+		}
+		PairStats ret = new PairStats();
+		int user;
+		int rating;
+		int from;
+		int to;
+		long visited = 0;
+		for (int item = fromItem; item < toItem; item++) {
+			for (int p = ratingTable.itemFrom(item); p < ratingTable.itemTo(item); p++) {
+				user = ratingTable.itemUser(p);
+				rating = ratingTable.itemRating(p);
+				from = ratingTable.userPosition(user, item) + 1;
+				to = ratingTable.userTo(user);
+				for (int q = from; q < to; q++) {
+					ret.add(pairKey(item, ratingTable.userItem(q)), rating,
+							ratingTable.userRating(q));
+				}
+				visited += to - from;
+			}
+		}
+		if (event != null) {
+			event.fromItem = fromItem;
+			event.toItem = toItem;
+			event.coRatings = visited;
+			event.pairs = ret.size();
+			event.commit();
+		}
+		return ret;
+	}
+
+	/**
+	 * Cosine similarity of one item pair, computed from the rating matrix
+	 * without building the similarity matrix. Same score as the pair has in
+	 * {@link #similarityMatrix(RatingMatrix)}.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param item
+	 *            first item id
+	 * @param other
+	 *            second item id
+	 * @param sums
+	 *            scratch space for 3 sums, so that the call does not allocate
+	 * @return cosine similarity, or NaN if the items have no common rater
+	 */
+	static float cosineSimilarity(RatingMatrix ratingTable, int item,
+			int other, long[] sums) {
+		if (item == other
+				|| ratingTable.coRatingSums(item, other, sums) == 0) {
+			return Float.NaN;
+		}
+		return cosineSimilarity((int) sums[0], (int) sums[1], (int) sums[2]);
+	}
+
+	/**
+	 * Cosine similarity from the per-pair sums. Evaluated in the same order as
+	 * {@link MathUtil#cosineSimilarity(double[], double[])} so that the result
+	 * is bit-for-bit identical.
+	 *
+	 * @param dot
+	 *            dot product over common raters
+	 * @param firstNorm
+	 *            squared norm of the first item over common raters
+	 * @param secondNorm
+	 *            squared norm of the second item over common raters
+	 * @return cosine similarity between two books
+	 */
+	static float cosineSimilarity(int dot, int firstNorm, int secondNorm) {
+		return (float) (dot / (Math.sqrt(firstNorm) * Math.sqrt(secondNorm)));
+	}
+}
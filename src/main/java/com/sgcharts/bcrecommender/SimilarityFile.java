@@ -0,0 +1,431 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.firstItem;
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+import static com.sgcharts.bcrecommender.ItemCf.secondItem;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Similarity matrix persisted in a versioned binary file, and read back
+ * through memory-mapped buffers. Lookups read the mapped file directly, so
+ * opening a file costs no deserialization and the model can be larger than
+ * the heap.
+ * <p>
+ * Layout (big-endian):
+ * <ul>
+ * <li>header: magic, version, item count, reserved (4 bytes each), followed
+ * by pair count, fingerprint of the training set and offset of the directory
+ * (8 bytes each)</li>
+ * <li>records: (pair key, similarity score) as 8 + 4 bytes, sorted by pair
+ * key</li>
+ * <li>directory: for each item i, index of the first record whose smaller
+ * item is i; item count + 1 longs</li>
+ * </ul>
+ * A lookup binary searches only the records of the smaller item of the pair.
+ *
+ */
+final class SimilarityFile implements ItemSimilarity, PairSource, Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SimilarityFile.class);
+	/**
+	 * "BXSM"
+	 */
+	static final int MAGIC = 0x4258534D;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 40;
+	static final int RECORD_BYTES = 12;
+	/**
+	 * Number of records per mapped segment, so that a segment stays under the
+	 * 2GB limit of a single buffer.
+	 */
+	private static final int SEGMENT_RECORDS = (Integer.MAX_VALUE / RECORD_BYTES)
+			& ~0xFFFF;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final int itemCount;
+	private final long size;
+	private final long fingerprint;
+	private final MappedByteBuffer[] segments;
+	private final LongBuffer directory;
+
+	private SimilarityFile(File file, RandomAccessFile raf, int itemCount,
+			long size, long fingerprint, MappedByteBuffer[] segments,
+			LongBuffer directory) {
+		this.file = file;
+		this.raf = raf;
+		this.itemCount = itemCount;
+		this.size = size;
+		this.fingerprint = fingerprint;
+		this.segments = segments;
+		this.directory = directory;
+	}
+
+	/**
+	 * Write a similarity matrix, sorting its pair keys.
+	 *
+	 * @param simMatrix
+	 *            similarity matrix
+	 * @param itemCount
+	 *            number of item ids
+	 * @param fingerprint
+	 *            identifies the training set the matrix was built from
+	 * @param file
+	 *            output file
+	 * @throws IOException
+	 */
+	static void write(SimilarityMatrix simMatrix, int itemCount,
+			long fingerprint, File file) throws IOException {
+		final long[] keys = new long[simMatrix.size()];
+		simMatrix.forEach(new PairSource.Visitor() {
+			private int i = 0;
+
+			@Override
+			public void visit(long key, float value) {
+				keys[i++] = key;
+			}
+		});
+		Arrays.sort(keys);
+		try (Writer w = new Writer(file, itemCount, fingerprint)) {
+			for (long key : keys) {
+				w.append(key, simMatrix.get(key));
+			}
+			w.commit();
+		}
+	}
+
+	/**
+	 * Map a similarity file for reading.
+	 *
+	 * @param file
+	 *            file written by {@link Writer}
+	 * @return similarity model backed by the mapped file
+	 * @throws IOException
+	 *             if the file cannot be read or is not a similarity file of a
+	 *             supported version
+	 */
+	static SimilarityFile open(File file) throws IOException {
+		if (file == null) {
+			log.error("file must not be null");
+			throw new IllegalArgumentException();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("not a similarity file: " + file);
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_BYTES);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("not a similarity file: " + file);
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(String.format(
+						"unsupported similarity file version %d: %s", version,
+						file));
+			}
+			int itemCount = header.getInt();
+			header.getInt();
+			long size = header.getLong();
+			long fingerprint = header.getLong();
+			long directoryOffset = header.getLong();
+			if (directoryOffset != HEADER_BYTES + size * RECORD_BYTES
+					|| channel.size() != directoryOffset + 8L * (itemCount + 1)) {
+				throw new IOException("truncated similarity file: " + file);
+			}
+			int nSegments = (int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+			MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+			long from;
+			long n;
+			for (int s = 0; s < nSegments; s++) {
+				from = (long) s * SEGMENT_RECORDS;
+				n = Math.min(SEGMENT_RECORDS, size - from);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_BYTES + from * RECORD_BYTES, n * RECORD_BYTES);
+			}
+			LongBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY,
+					directoryOffset, 8L * (itemCount + 1))
+				.asLongBuffer();
+			log.info("opened {}: {} pairs, {} items", file, size, itemCount);
+			return new SimilarityFile(file, raf, itemCount, size, fingerprint,
+					segments, directory);
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param index
+	 *            record index
+	 * @return pair key of the record
+	 */
+	long key(long index) {
+		return segments[(int) (index / SEGMENT_RECORDS)].getLong(
+				(int) (index % SEGMENT_RECORDS) * RECORD_BYTES);
+	}
+
+	/**
+	 * @param index
+	 *            record index
+	 * @return similarity score of the record
+	 */
+	float value(long index) {
+		return segments[(int) (index / SEGMENT_RECORDS)].getFloat(
+				(int) (index % SEGMENT_RECORDS) * RECORD_BYTES + 8);
+	}
+
+	@Override
+	public float get(int item, int other) {
+		if (item == other) {
+			return Float.NaN;
+		}
+		int first = Math.min(item, other);
+		int second = Math.max(item, other);
+		if (first < 0 || second >= itemCount) {
+			return Float.NaN;
+		}
+		long lo = directory.get(first);
+		long hi = directory.get(first + 1) - 1;
+		long mid;
+		int midItem;
+		while (lo <= hi) {
+			mid = (lo + hi) >>> 1;
+			midItem = secondItem(key(mid));
+			if (midItem < second) {
+				lo = mid + 1;
+			} else if (midItem > second) {
+				hi = mid - 1;
+			} else {
+				return value(mid);
+			}
+		}
+		return Float.NaN;
+	}
+
+	/**
+	 * Visit every item pair in ascending order of pair key.
+	 */
+	@Override
+	public void forEach(Visitor visitor) {
+		for (long i = 0; i < size; i++) {
+			visitor.visit(key(i), value(i));
+		}
+	}
+
+	/**
+	 * @return number of item pairs
+	 */
+	long size() {
+		return size;
+	}
+
+	int itemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * @return fingerprint of the training set the matrix was built from
+	 */
+	long fingerprint() {
+		return fingerprint;
+	}
+
+	File file() {
+		return file;
+	}
+
+	/**
+	 * The model is mapped outside the heap.
+	 *
+	 * @return size of the mapped file
+	 */
+	@Override
+	public long memoryBytes() {
+		return HEADER_BYTES + size * RECORD_BYTES + 8L * (itemCount + 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Streams records in ascending order of pair key into a similarity file.
+	 * Records go to a temporary file next to the output file. The pair count
+	 * and directory are written on {@link #commit()}, which then renames the
+	 * temporary file to the output file. Closing the writer without a commit,
+	 * e.g. when a build fails, deletes the temporary file and leaves the
+	 * output file as it was, so that a partial file is never mistaken for a
+	 * model.
+	 *
+	 */
+	static final class Writer implements Closeable {
+		private final File file;
+		private final File tmp;
+		private final int itemCount;
+		private final long fingerprint;
+		private final DataOutputStream out;
+		private final long[] directory;
+		private long size = 0;
+		private long lastKey = -1;
+		/**
+		 * Next item whose directory entry has not been filled
+		 */
+		private int nextItem = 0;
+		private boolean committed = false;
+
+		/**
+		 * @param file
+		 *            output file, replaced on commit if it exists
+		 * @param itemCount
+		 *            number of item ids
+		 * @param fingerprint
+		 *            identifies the training set the matrix was built from
+		 * @throws IOException
+		 */
+		Writer(File file, int itemCount, long fingerprint) throws IOException {
+			if (file == null) {
+				log.error("file must not be null");
+				throw new IllegalArgumentException();
+			}
+			if (itemCount < 0) {
+				log.error("item count must not be negative. itemCount={}",
+						itemCount);
+				throw new IllegalArgumentException();
+			}
+			this.file = file;
+			this.itemCount = itemCount;
+			this.fingerprint = fingerprint;
+			tmp = new File(file.getPath() + ".tmp");
+			directory = new long[itemCount + 1];
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 1 << 16));
+			// Placeholder, rewritten on commit
+			out.write(new byte[HEADER_BYTES]);
+		}
+
+		/**
+		 * @param key
+		 *            pair key, greater than the previous key
+		 * @param value
+		 *            similarity score
+		 * @throws IOException
+		 */
+		void append(long key, float value) throws IOException {
+			if (committed) {
+				log.error("writer already committed. file={}", file);
+				throw new IllegalStateException();
+			}
+			if (key <= lastKey) {
+				log.error("keys must be appended in ascending order. key={} lastKey={}",
+						key, lastKey);
+				throw new IllegalArgumentException();
+			}
+			int first = firstItem(key);
+			if (secondItem(key) >= itemCount) {
+				log.error("item id out of range. key={} itemCount={}", key,
+						itemCount);
+				throw new IllegalArgumentException();
+			}
+			while (nextItem <= first) {
+				directory[nextItem++] = size;
+			}
+			out.writeLong(key);
+			out.writeFloat(value);
+			lastKey = key;
+			size++;
+		}
+
+		/**
+		 * @param item
+		 *            first item id
+		 * @param other
+		 *            second item id, greater than item
+		 * @param value
+		 *            similarity score
+		 * @throws IOException
+		 */
+		void append(int item, int other, float value) throws IOException {
+			append(pairKey(item, other), value);
+		}
+
+		/**
+		 * @return number of records appended so far
+		 */
+		long size() {
+			return size;
+		}
+
+		/**
+		 * Write the directory and header, and replace the output file with the
+		 * completed file.
+		 *
+		 * @throws IOException
+		 */
+		void commit() throws IOException {
+			if (committed) {
+				log.error("writer already committed. file={}", file);
+				throw new IllegalStateException();
+			}
+			while (nextItem <= itemCount) {
+				directory[nextItem++] = size;
+			}
+			for (long d : directory) {
+				out.writeLong(d);
+			}
+			out.close();
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(itemCount);
+				raf.writeInt(0);
+				raf.writeLong(size);
+				raf.writeLong(fingerprint);
+				raf.writeLong(HEADER_BYTES + size * RECORD_BYTES);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			committed = true;
+		}
+
+		/**
+		 * Discard the temporary file unless the writer was committed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (committed) {
+				return;
+			}
+			try {
+				out.close();
+			} finally {
+				Files.deleteIfExists(tmp.toPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Item-item similarity matrix, stored as an open-addressing hash table with
+ * linear probing. Keys are item pairs packed into a long by
+ * {@link ItemCf#pairKey(int, int)}; keys and similarity scores are held in
+ * parallel primitive arrays, so neither insertion nor lookup allocates.
+ * <p>
+ * Only the upper triangle is stored: the score of (i, j) is also the score of
+ * (j, i).
+ *
+ */
+final class SimilarityMatrix implements ItemSimilarity, PairSource {
+	private static final Logger log = LoggerFactory.getLogger(SimilarityMatrix.class);
+	/**
+	 * Marks an empty slot. Pair keys of non-negative item ids are never
+	 * negative.
+	 */
+	static final long EMPTY = -1L;
+	private static final float MAX_LOAD_FACTOR = 0.75F;
+	private long[] keys;
+	private float[] values;
+	private int mask;
+	private int size = 0;
+
+	SimilarityMatrix() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            number of item pairs expected, so that the table does not
+	 *            need to be resized
+	 */
+	SimilarityMatrix(int expectedSize) {
+		if (expectedSize < 0) {
+			log.error("expected size must not be negative. expectedSize={}",
+					expectedSize);
+			throw new IllegalArgumentException();
+		}
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * @param expectedSize
+	 *            number of keys
+	 * @return smallest power of two that holds the keys without exceeding the
+	 *         maximum load factor
+	 */
+	static int capacityFor(int expectedSize) {
+		long min = (long) Math.ceil(expectedSize / (double) MAX_LOAD_FACTOR) + 1;
+		long capacity = Long.highestOneBit(Math.max(min, 2) - 1) << 1;
+		if (capacity > (1 << 30)) {
+			log.error("expected size is too large. expectedSize={}", expectedSize);
+			throw new IllegalArgumentException();
+		}
+		return (int) capacity;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, spreads the bits of the item ids over
+	 * the whole key so that the low bits can be used as the slot index.
+	 *
+	 * @param key
+	 *            pair key
+	 * @return hash code
+	 */
+	static long mix(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new float[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param key
+	 *            pair key
+	 * @return slot holding the key, or the empty slot where it would be
+	 *         inserted
+	 */
+	private int slot(long key) {
+		int i = (int) mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != EMPTY && k != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Insert or replace the similarity score of an item pair.
+	 *
+	 * @param key
+	 *            pair key
+	 * @param value
+	 *            similarity score
+	 */
+	void put(long key, float value) {
+		if (key < 0) {
+			log.error("key must not be negative. key={}", key);
+			throw new IllegalArgumentException();
+		}
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+				rehash(keys.length << 1);
+				i = slot(key);
+			}
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+	}
+
+	void put(int item, int other, float value) {
+		put(pairKey(item, other), value);
+	}
+
+	private void rehash(int capacity) {
+		if (capacity > (1 << 30)) {
+			log.error("similarity matrix is full. size={}", size);
+			throw new IllegalStateException();
+		}
+		long[] oldKeys = keys;
+		float[] oldValues = values;
+		allocate(capacity);
+		int j;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            pair key
+	 * @return similarity score, or NaN if the pair has no score
+	 */
+	float get(long key) {
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			return Float.NaN;
+		}
+		return values[i];
+	}
+
+	/**
+	 * @param item
+	 *            first item id
+	 * @param other
+	 *            second item id
+	 * @return similarity score, or NaN if the pair has no score
+	 */
+	@Override
+	public float get(int item, int other) {
+		return get(pairKey(item, other));
+	}
+
+	/**
+	 * @return number of item pairs
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Visit every item pair, in no particular order.
+	 */
+	@Override
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				visitor.visit(keys[i], values[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @return number of bytes held by the key and value arrays
+	 */
+	@Override
+	public long memoryBytes() {
+		return (8L + 4L) * keys.length;
+	}
+
+	/**
+	 * Number of slots visited by a successful lookup of the key in each slot,
+	 * i.e. the distance from its home slot plus one.
+	 *
+	 * @return probe lengths of all keys; index 0 is unused, index n counts the
+	 *         keys found in n probes
+	 */
+	long[] probeLengthHistogram() {
+		long[] ret = new long[2];
+		int home;
+		int length;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == EMPTY) {
+				continue;
+			}
+			home = (int) mix(keys[i]) & mask;
+			length = ((i - home) & mask) + 1;
+			if (length >= ret.length) {
+				ret = Arrays.copyOf(ret, Math.max(length + 1, ret.length * 2));
+			}
+			ret[length]++;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return summary of the footprint and probe lengths, for logging
+	 */
+	String stats() {
+		long[] histogram = probeLengthHistogram();
+		long sum = 0;
+		int max = 0;
+		for (int n = 1; n < histogram.length; n++) {
+			sum += n * histogram[n];
+			if (histogram[n] != 0) {
+				max = n;
+			}
+		}
+		double mean = size == 0 ? 0 : sum / (double) size;
+		return String.format(
+				"size=%d capacity=%d loadFactor=%.2f memoryBytes=%d meanProbeLength=%.3f maxProbeLength=%d",
+				size, keys.length, size / (double) keys.length, memoryBytes(),
+				mean, max);
+	}
+}
@@ -0,0 +1,435 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the similarity matrix as a sparse matrix product, row by row
+ * (Gustavson's algorithm), instead of accumulating pair sums in a hash table
+ * like {@link SimilarityBuilder}.
+ * <p>
+ * Row i of the product is computed from item i's raters: for each rater u
+ * with rating r, and each item j after i in u's row with rating s, add r * s
+ * to the dot product of column j. The sums are held in a dense accumulator
+ * indexed by j, so an update is an array access rather than a hash probe.
+ * Because the cosine norms are taken over the common raters of each pair,
+ * the accumulator also holds r * r and s * s for each column, interleaved with
+ * the dot product so that all three sums of a column share a cache line.
+ * <p>
+ * The columns are processed in tiles of {@link #DEFAULT_TILE_ITEMS} items, so
+ * that the accumulator fits in the L2 cache whatever the number of items.
+ * Each rater keeps a cursor in its row, which moves from one tile to the next.
+ * A row's pairs are emitted in ascending order of pair key, and scores are
+ * bit-for-bit the same as those of {@link SimilarityBuilder}.
+ *
+ */
+final class SpGemmSimilarityBuilder {
+	private static final Logger log = LoggerFactory.getLogger(SpGemmSimilarityBuilder.class);
+	/**
+	 * Columns per tile: 3 sums of 4 bytes and a 4-byte index per column, i.e.
+	 * 128KB of accumulator.
+	 */
+	static final int DEFAULT_TILE_ITEMS = 8192;
+	/**
+	 * A parallel write splits the rows into this many ranges per thread, and
+	 * holds the pairs of at most two ranges per thread, i.e. about 1/8 of the
+	 * pairs.
+	 */
+	private static final int WRITE_RANGES_PER_THREAD = 16;
+
+	private SpGemmSimilarityBuilder() {
+		// Not meant to be instantiated
+	}
+
+	/**
+	 * @param ratingTable
+	 *            rating matrix
+	 * @return similarity matrix, same as
+	 *         {@link SimilarityBuilder#similarityMatrix(RatingMatrix)}
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable) {
+		return similarityMatrix(ratingTable, null);
+	}
+
+	private static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			Metrics.Counter coRatings) {
+		PairBuffer pairs = new PairBuffer();
+		long visited = forEach(ratingTable, 0, ratingTable.itemCount(),
+				DEFAULT_TILE_ITEMS, pairs);
+		if (coRatings != null) {
+			coRatings.add(visited);
+		}
+		SimilarityMatrix ret = new SimilarityMatrix(pairs.size);
+		pairs.putSimilarities(ret);
+		return ret;
+	}
+
+	/**
+	 * Build the similarity matrix on multiple threads. Rows are split into
+	 * ranges of roughly equal work as in
+	 * {@link SimilarityBuilder#similarityMatrix(RatingMatrix, int)}, and each
+	 * range has its own accumulator.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param nThreads
+	 *            number of worker threads
+	 * @return similarity matrix
+	 */
+	static SimilarityMatrix similarityMatrix(RatingMatrix ratingTable,
+			int nThreads) {
+		return similarityMatrix(ratingTable, nThreads, null);
+	}
+
+	/**
+	 * Build the similarity matrix on multiple threads, and count the
+	 * co-rated pairs visited.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param nThreads
+	 *            number of worker threads
+	 * @param coRatings
+	 *            if not null, the number of co-rated pairs visited is added
+	 *            to it
+	 * @return similarity matrix
+	 * @see SimilarityBuilder#similarityMatrix(RatingMatrix, int, Metrics.Counter)
+	 */
+	static SimilarityMatrix similarityMatrix(final RatingMatrix ratingTable,
+			int nThreads, Metrics.Counter coRatings) {
+		if (nThreads < 1) {
+			log.error("number of threads must be at least 1. nThreads={}",
+					nThreads);
+			throw new IllegalArgumentException();
+		}
+		if (nThreads == 1) {
+			return similarityMatrix(ratingTable, coRatings);
+		}
+		long[] work = SimilarityBuilder.pairWork(ratingTable);
+		if (coRatings != null) {
+			coRatings.add(SimilarityBuilder.sum(work));
+		}
+		final int[] bounds = SimilarityBuilder.partition(work, nThreads * 4);
+		List<Callable<PairBuffer>> tasks = new ArrayList<>(bounds.length - 1);
+		for (int k = 0; k < bounds.length - 1; k++) {
+			final int from = bounds[k];
+			final int to = bounds[k + 1];
+			tasks.add(new Callable<PairBuffer>() {
+				@Override
+				public PairBuffer call() {
+					PairBuffer ret = new PairBuffer();
+					forEach(ratingTable, from, to, DEFAULT_TILE_ITEMS, ret);
+					return ret;
+				}
+			});
+		}
+		List<PairBuffer> partials = new ArrayList<>(tasks.size());
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			for (Future<PairBuffer> f : pool.invokeAll(tasks)) {
+				partials.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while building similarity matrix");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			log.error("failed to build similarity matrix", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		int size = 0;
+		for (PairBuffer partial : partials) {
+			size += partial.size;
+		}
+		SimilarityMatrix ret = new SimilarityMatrix(size);
+		for (PairBuffer partial : partials) {
+			partial.putSimilarities(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Stream the similarity file of the rating matrix. Pairs are computed in
+	 * ascending order of pair key, so no pair is held in memory.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param fingerprint
+	 *            identifies the training set
+	 * @param file
+	 *            output file, replaced only once the build has succeeded
+	 * @return number of item pairs written
+	 * @throws IOException
+	 */
+	static long write(RatingMatrix ratingTable, long fingerprint, File file)
+			throws IOException {
+		try (final SimilarityFile.Writer out = new SimilarityFile.Writer(file,
+				ratingTable.itemCount(), fingerprint)) {
+			try {
+				forEach(ratingTable, 0, ratingTable.itemCount(),
+						DEFAULT_TILE_ITEMS, new PairSource.Visitor() {
+							@Override
+							public void visit(long key, float value) {
+								try {
+									out.append(key, value);
+								} catch (IOException e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						});
+			} catch (IllegalStateException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw e;
+			}
+			out.commit();
+			return out.size();
+		}
+	}
+
+	/**
+	 * Stream the similarity file of the rating matrix, computing its rows on
+	 * multiple threads. Rows are split into ranges of roughly equal work,
+	 * which are computed in parallel and written in order. Only the ranges
+	 * being computed or waiting to be written are held in memory, at most
+	 * 2 * nThreads of the {@link #WRITE_RANGES_PER_THREAD} * nThreads
+	 * ranges. The file is the same as that of
+	 * {@link #write(RatingMatrix, long, File)}.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param fingerprint
+	 *            identifies the training set
+	 * @param file
+	 *            output file, replaced only once the build has succeeded
+	 * @param nThreads
+	 *            number of worker threads
+	 * @return number of item pairs written
+	 * @throws IOException
+	 */
+	static long write(final RatingMatrix ratingTable, long fingerprint,
+			File file, int nThreads) throws IOException {
+		if (nThreads < 1) {
+			log.error("number of threads must be at least 1. nThreads={}",
+					nThreads);
+			throw new IllegalArgumentException();
+		}
+		if (nThreads == 1) {
+			return write(ratingTable, fingerprint, file);
+		}
+		final int[] bounds = SimilarityBuilder.partition(
+				SimilarityBuilder.pairWork(ratingTable), nThreads
+						* WRITE_RANGES_PER_THREAD);
+		final int nRanges = bounds.length - 1;
+		final int window = 2 * nThreads;
+		List<Future<PairBuffer>> ranges = new ArrayList<>(nRanges);
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try (SimilarityFile.Writer out = new SimilarityFile.Writer(file,
+				ratingTable.itemCount(), fingerprint)) {
+			for (int k = 0; k < nRanges; k++) {
+				final int from = bounds[k];
+				final int to = bounds[k + 1];
+				ranges.add(pool.submit(new Callable<PairBuffer>() {
+					@Override
+					public PairBuffer call() {
+						PairBuffer ret = new PairBuffer();
+						forEach(ratingTable, from, to, DEFAULT_TILE_ITEMS, ret);
+						return ret;
+					}
+				}));
+				// Write the oldest range once the window is full
+				if (k >= window - 1) {
+					ranges.get(k - window + 1)
+						.get()
+						.writeTo(out);
+					ranges.set(k - window + 1, null);
+				}
+			}
+			for (int k = Math.max(0, nRanges - window + 1); k < nRanges; k++) {
+				ranges.get(k)
+					.get()
+					.writeTo(out);
+				ranges.set(k, null);
+			}
+			out.commit();
+			return out.size();
+		} catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			log.error("interrupted while building similarity file");
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			log.error("failed to build similarity file", e.getCause());
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Compute the rows of the given items, i.e. every pair whose first
+	 * (smaller) item is in the range.
+	 *
+	 * @param ratingTable
+	 *            rating matrix
+	 * @param fromItem
+	 *            first item, inclusive
+	 * @param toItem
+	 *            last item, exclusive
+	 * @param tileItems
+	 *            number of columns per tile
+	 * @param visitor
+	 *            called with each pair and its score, in ascending order of
+	 *            pair key
+	 * @return number of co-rated pairs visited
+	 */
+	static long forEach(RatingMatrix ratingTable, int fromItem, int toItem,
+			int tileItems, PairSource.Visitor visitor) {
+		if (tileItems < 1) {
+			log.error("tile must have at least one item. tileItems={}",
+					tileItems);
+			throw new IllegalArgumentException();
+		}
+		final int itemCount = ratingTable.itemCount();
+		final int tile = Math.max(1, Math.min(tileItems, itemCount));
+		// Dot product, first norm and second norm of each column of the tile
+		final int[] sums = new int[3 * tile];
+		final int[] touched = new int[tile];
+		int maxDegree = 0;
+		for (int item = fromItem; item < toItem; item++) {
+			maxDegree = Math.max(maxDegree, ratingTable.itemTo(item)
+					- ratingTable.itemFrom(item));
+		}
+		// Position of each rater of the row in its own row, and its end
+		final int[] cursors = new int[maxDegree];
+		final int[] ends = new int[maxDegree];
+		int pFrom;
+		int degree;
+		int user;
+		int rating;
+		int q;
+		int end;
+		int j;
+		int other;
+		int o;
+		int n;
+		int tileFrom;
+		int tileTo;
+		int next;
+		long visited = 0;
+		for (int item = fromItem; item < toItem; item++) {
+			pFrom = ratingTable.itemFrom(item);
+			degree = ratingTable.itemTo(item) - pFrom;
+			next = Integer.MAX_VALUE;
+			for (int k = 0; k < degree; k++) {
+				user = ratingTable.itemUser(pFrom + k);
+				cursors[k] = ratingTable.userPosition(user, item) + 1;
+				ends[k] = ratingTable.userTo(user);
+				if (cursors[k] < ends[k]) {
+					next = Math.min(next, ratingTable.userItem(cursors[k]));
+				}
+			}
+			// Each tile starts at the smallest column not yet reached, so
+			// empty stretches of columns are skipped.
+			while (next != Integer.MAX_VALUE) {
+				tileFrom = next;
+				tileTo = (int) Math.min(itemCount, (long) tileFrom + tile);
+				n = 0;
+				next = Integer.MAX_VALUE;
+				for (int k = 0; k < degree; k++) {
+					rating = ratingTable.itemRating(pFrom + k);
+					q = cursors[k];
+					end = ends[k];
+					while (q < end && (j = ratingTable.userItem(q)) < tileTo) {
+						o = 3 * (j - tileFrom);
+						other = ratingTable.userRating(q);
+						// Norms are sums of squared non-zero ratings, so
+						// they are zero exactly for untouched columns.
+						if (sums[o + 1] == 0) {
+							touched[n++] = j - tileFrom;
+						}
+						sums[o] += rating * other;
+						sums[o + 1] += rating * rating;
+						sums[o + 2] += other * other;
+						q++;
+					}
+					visited += q - cursors[k];
+					cursors[k] = q;
+					if (q < end) {
+						next = Math.min(next, ratingTable.userItem(q));
+					}
+				}
+				// Emit in column order: sort the touched columns, or scan
+				// the tile when most columns were touched.
+				if (8L * n > tileTo - tileFrom) {
+					n = 0;
+					for (int c = 0; c < tileTo - tileFrom; c++) {
+						if (sums[3 * c + 1] != 0) {
+							touched[n++] = c;
+						}
+					}
+				} else {
+					Arrays.sort(touched, 0, n);
+				}
+				for (int t = 0; t < n; t++) {
+					o = 3 * touched[t];
+					visitor.visit(pairKey(item, tileFrom + touched[t]),
+							SimilarityBuilder.cosineSimilarity(sums[o],
+									sums[o + 1], sums[o + 2]));
+					sums[o] = 0;
+					sums[o + 1] = 0;
+					sums[o + 2] = 0;
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Pairs and scores in the order they were computed.
+	 */
+	private static final class PairBuffer implements PairSource.Visitor {
+		private long[] keys = new long[1024];
+		private float[] values = new float[1024];
+		private int size = 0;
+
+		@Override
+		public void visit(long key, float value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = key;
+			values[size] = value;
+			size++;
+		}
+
+		private void putSimilarities(SimilarityMatrix target) {
+			for (int i = 0; i < size; i++) {
+				target.put(keys[i], values[i]);
+			}
+		}
+
+		private void writeTo(SimilarityFile.Writer out) throws IOException {
+			for (int i = 0; i < size; i++) {
+				out.append(keys[i], values[i]);
+			}
+		}
+	}
+}
@@ -262,4 +262,25 @@ public final class StringUtil {
 	public static String trimAndEscapeHtml(String s) {
 		return escapeHtml(trim(s));
 	}
+	
+	/**
+	 * Append a JSON string literal: quotes and backslashes are escaped, and
+	 * control characters are written as unicode escapes.
+	 */
+	public static void appendJsonString(StringBuilder sb, String s) {
+		sb.append('"');
+		char c;
+		for (int i = 0; i < s.length(); i++) {
+			c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\')
+					.append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
 }
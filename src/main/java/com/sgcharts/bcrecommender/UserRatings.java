@@ -0,0 +1,50 @@
+package com.sgcharts.bcrecommender;
+
+/**
+ * Read-only view of the ratings of each user, as used by {@link ItemCf#predict}
+ * and {@link Recommender}.
+ *
+ */
+interface UserRatings {
+
+	/**
+	 * @return number of user ids, including users with no ratings
+	 */
+	int userCount();
+
+	/**
+	 * @param user
+	 *            user id, may be out of range
+	 * @return number of items rated by the user, zero if the user id is
+	 *         unknown
+	 */
+	int userRatingCount(int user);
+
+	/**
+	 * @param user
+	 *            user id
+	 * @param k
+	 *            index in [0, {@link #userRatingCount(int)})
+	 * @return k-th item rated by the user, in ascending order of item id
+	 */
+	int ratedItem(int user, int k);
+
+	/**
+	 * @param user
+	 *            user id
+	 * @param k
+	 *            index in [0, {@link #userRatingCount(int)})
+	 * @return rating of {@link #ratedItem(int, int)}
+	 */
+	int ratedItemRating(int user, int k);
+
+	/**
+	 * @param user
+	 *            user id, may be out of range
+	 * @param item
+	 *            item id
+	 * @return rating, or {@link RatingMatrix#NO_RATING} if the user has not
+	 *         rated the item
+	 */
+	int rating(int user, int item);
+}
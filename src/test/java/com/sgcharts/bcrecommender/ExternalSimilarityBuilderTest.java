@@ -0,0 +1,87 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.annotations.Test;
+
+public class ExternalSimilarityBuilderTest {
+
+	private static void assertSameFile(File file, SimilarityMatrix expected,
+			int itemCount) throws IOException {
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.itemCount(), itemCount);
+			SimilarityBuilderTest.assertSameScores(actual, expected);
+		}
+	}
+
+	@Test
+	public void buildTest() throws IOException {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				4000, 11);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		File tmpDir = Files.createTempDirectory("runs")
+			.toFile();
+		tmpDir.deleteOnExit();
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		// Budget large enough for a single run
+		assertEquals(ExternalSimilarityBuilder.build(table, 7L, file, 1 << 24,
+				tmpDir), expected.size());
+		assertSameFile(file, expected, table.itemCount());
+		// Many runs, merged in several passes
+		assertEquals(ExternalSimilarityBuilder.build(table, 7L, file, 2000,
+				tmpDir, 3), expected.size());
+		assertSameFile(file, expected, table.itemCount());
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.fingerprint(), 7L);
+		}
+		// Run files are deleted
+		assertEquals(tmpDir.list().length, 0);
+	}
+
+	@Test
+	public void failedBuildTest() throws IOException {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(50, 80,
+				600, 2);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		ExternalSimilarityBuilder.build(table, 7L, file, 1 << 20, null);
+		File missing = new File(file.getPath() + ".missing");
+		try {
+			ExternalSimilarityBuilder.build(table, 8L, file, 1 << 20, missing);
+			fail("run files cannot be created");
+		} catch (IOException e) {
+			// Previous model is left in place
+		}
+		assertSameFile(file, expected, table.itemCount());
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.fingerprint(), 7L);
+		}
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void emptyTest() throws IOException {
+		RatingMatrix table = RatingMatrix.of(new Ratings(), 0, 0);
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		assertEquals(ExternalSimilarityBuilder.build(table, 0, file, 1000,
+				null), 0);
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.size(), 0);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void fanInTest() throws IOException {
+		ExternalSimilarityBuilder.build(SimilarityBuilderTest.randomRatingTable(
+				5, 5, 10, 1), 0, new File("unused"), 1000, null, 1);
+	}
+}
@@ -0,0 +1,56 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class FoldStatsTest {
+
+	@Test
+	public void trainingSimilarityTest() {
+		RatingMatrix all = SimilarityBuilderTest.randomRatingTable(150, 200,
+				3000, 5);
+		final int k = 3;
+		List<Ratings> folds = new ArrayList<>(k);
+		for (int f = 0; f < k; f++) {
+			folds.add(new Ratings());
+		}
+		Random random = new Random(13);
+		for (int u = 0; u < all.userCount(); u++) {
+			for (int p = all.userFrom(u); p < all.userTo(u); p++) {
+				folds.get(random.nextInt(k))
+					.add(u, all.userItem(p), all.userRating(p));
+			}
+		}
+		FoldStats stats = FoldStats.of(folds, all.userCount());
+		for (int f = 0; f < k; f++) {
+			Ratings trainSet = new Ratings();
+			for (int i = 0; i < k; i++) {
+				if (i != f) {
+					trainSet.addAll(folds.get(i));
+				}
+			}
+			SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(RatingMatrix.of(
+					trainSet, all.userCount(), all.itemCount()));
+			final FoldStats.TrainingSimilarity actual = stats.similarity(f);
+			final int[] size = new int[1];
+			actual.forEach(new PairSource.Visitor() {
+				@Override
+				public void visit(long key, float value) {
+					size[0]++;
+				}
+			});
+			assertEquals(size[0], expected.size());
+			for (int isbn = 0; isbn < all.itemCount(); isbn++) {
+				for (int other = isbn + 1; other < all.itemCount(); other++) {
+					assertEquals(Float.floatToIntBits(actual.get(isbn, other)),
+							Float.floatToIntBits(expected.get(isbn, other)));
+				}
+			}
+		}
+	}
+}
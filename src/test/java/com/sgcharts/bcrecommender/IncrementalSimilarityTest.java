@@ -0,0 +1,112 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.testng.annotations.Test;
+
+public class IncrementalSimilarityTest {
+
+	@Test
+	public void ofTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(100, 200,
+				2000, 3);
+		IncrementalSimilarity model = IncrementalSimilarity.of(table);
+		SimilarityBuilderTest.assertSameScores(model,
+				SimilarityBuilder.similarityMatrix(table));
+		assertEquals(model.rating(0, table.userItem(table.userFrom(0))),
+				table.userRating(table.userFrom(0)));
+	}
+
+	@Test
+	public void rateTest() {
+		final int nUsers = 60;
+		final int nItems = 90;
+		Random random = new Random(11);
+		// Ground truth, keyed by (user, item)
+		Map<Long, Integer> truth = new TreeMap<>();
+		Ratings initial = new Ratings();
+		for (int k = 0; k < 600; k++) {
+			int u = random.nextInt(nUsers / 2);
+			int i = random.nextInt(nItems / 2);
+			if (!truth.containsKey(((long) u << 32) | i)) {
+				int r = 1 + random.nextInt(10);
+				truth.put(((long) u << 32) | i, r);
+				initial.add(u, i, r);
+			}
+		}
+		IncrementalSimilarity model = IncrementalSimilarity.of(RatingMatrix.of(
+				initial, nUsers / 2, nItems / 2));
+		// New ratings, edits (including of new users and items) and
+		// retractions
+		int events = 0;
+		for (int k = 0; k < 1500; k++) {
+			int u = random.nextInt(nUsers);
+			int i = random.nextInt(nItems);
+			long key = ((long) u << 32) | i;
+			if (random.nextInt(4) == 0) {
+				model.retract(u, i);
+				if (truth.remove(key) != null) {
+					events++;
+				}
+			} else {
+				int r = 1 + random.nextInt(10);
+				model.rate(u, i, r);
+				truth.put(key, r);
+				events++;
+			}
+		}
+		Ratings ratings = new Ratings();
+		for (Map.Entry<Long, Integer> e : truth.entrySet()) {
+			ratings.add((int) (e.getKey() >>> 32), (int) (long) e.getKey(),
+					e.getValue());
+			assertEquals(model.rating((int) (e.getKey() >>> 32),
+					(int) (long) e.getKey()), e.getValue()
+				.intValue());
+		}
+		RatingMatrix table = RatingMatrix.of(ratings, nUsers, nItems);
+		SimilarityBuilderTest.assertSameScores(model,
+				SimilarityBuilder.similarityMatrix(table));
+		// Profiles are kept in item order, as in the rating matrix
+		for (int u = 0; u < nUsers; u++) {
+			assertEquals(model.userRatingCount(u), table.userRatingCount(u));
+			for (int k = 0; k < table.userRatingCount(u); k++) {
+				assertEquals(model.ratedItem(u, k), table.ratedItem(u, k));
+				assertEquals(model.ratedItemRating(u, k),
+						table.ratedItemRating(u, k));
+			}
+		}
+		assertEquals(model.latency()
+			.count(), events);
+	}
+
+	@Test
+	public void rateReturnsPairCountTest() {
+		Ratings r = new Ratings();
+		r.add(0, 0, 5);
+		r.add(0, 1, 3);
+		IncrementalSimilarity model = IncrementalSimilarity.of(RatingMatrix.of(
+				r, 1, 2));
+		assertEquals(model.size(), 1);
+		assertEquals(model.rate(0, 2, 4), 2);
+		assertEquals(model.size(), 3);
+		// Edit: same pairs, no new pair
+		assertEquals(model.rate(0, 2, 7), 2);
+		assertEquals(model.size(), 3);
+		assertEquals(model.retract(0, 0), 2);
+		assertEquals(model.size(), 1);
+		assertEquals(Float.isNaN(model.get(0, 1)), true);
+		assertEquals(model.retract(0, 0), 0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void rateOutOfRangeTest() {
+		Ratings r = new Ratings();
+		r.add(0, 0, 5);
+		IncrementalSimilarity.of(RatingMatrix.of(r, 1, 1))
+			.rate(0, 1, 0);
+	}
+}
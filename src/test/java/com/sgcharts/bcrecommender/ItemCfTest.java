@@ -0,0 +1,48 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+
+public class ItemCfTest {
+
+	@Test
+	public void batchPredictTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(100, 150,
+				3000, 19);
+		SimilarityMatrix simMatrix = SimilarityBuilder.similarityMatrix(table);
+		NeighbourIndex index = NeighbourIndex.of(simMatrix, table.itemCount(),
+				5, 0);
+		Random random = new Random(23);
+		final int n = 5000;
+		// Padding on both sides of the batch, and unknown users
+		int[] uids = new int[n + 2];
+		int[] isbns = new int[n + 2];
+		for (int i = 0; i < uids.length; i++) {
+			uids[i] = random.nextInt(table.userCount() + 1) - 1;
+			isbns[i] = random.nextInt(table.itemCount());
+		}
+		for (ItemSimilarity model : new ItemSimilarity[] { simMatrix, index }) {
+			for (int minRatings = 1; minRatings <= 3; minRatings++) {
+				int[] actual = new int[n + 2];
+				int count = ItemCf.predict(uids, isbns, 1, n + 1, table, model,
+						minRatings, actual);
+				int expectedCount = 0;
+				for (int i = 1; i <= n; i++) {
+					Optional<Integer> e = ItemCf.predict(uids[i], isbns[i],
+							table, model, minRatings);
+					assertEquals(actual[i],
+							e.isPresent() ? (int) e.get() : ItemCf.NO_PREDICTION);
+					if (e.isPresent()) {
+						expectedCount++;
+					}
+				}
+				assertEquals(count, expectedCount);
+			}
+		}
+	}
+}
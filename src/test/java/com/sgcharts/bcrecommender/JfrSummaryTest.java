@@ -0,0 +1,136 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.CharMatcher;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrSummaryTest {
+
+	private static Path record() throws IOException {
+		Path ret = Files.createTempFile("run", ".jfr");
+		ret.toFile()
+			.deleteOnExit();
+		File csv = File.createTempFile("ratings", ".csv");
+		csv.deleteOnExit();
+		try (Writer out = new FileWriter(csv)) {
+			for (int i = 0; i < 10000; i++) {
+				out.write(i + ";" + (i % 97) + ";" + (i % 10 + 1) + "\n");
+			}
+		}
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(100, 200,
+				3000, 3);
+		int n = 500;
+		int[] uids = new int[n];
+		int[] isbns = new int[n];
+		for (int i = 0; i < n; i++) {
+			uids[i] = i % table.userCount();
+			isbns[i] = i % table.itemCount();
+		}
+		List<FileUtil.FieldHandler> handlers = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			handlers.add(new FileUtil.FieldHandler() {
+				@Override
+				public void field(int column, CharSequence value) {
+					// Ignored
+				}
+
+				@Override
+				public void endOfRow(int columns) {
+					// Ignored
+				}
+			});
+		}
+		try (Recording recording = new Recording()) {
+			recording.enable(JfrEvents.SimilarityBuild.class);
+			recording.enable(JfrEvents.PairStatsBatch.class);
+			recording.enable(JfrEvents.PredictBatch.class);
+			recording.enable(JfrEvents.FileRead.class);
+			recording.enable(JfrEvents.FileChunk.class);
+			recording.enable("jdk.ExecutionSample")
+				.withPeriod(Duration.ofMillis(1));
+			recording.enable("jdk.GarbageCollection");
+			recording.start();
+			SimilarityMatrix simMatrix = SimilarityBuilder.similarityMatrix(
+					table, 2);
+			ItemCf.predict(uids, isbns, 0, n, table, simMatrix, 1, new int[n]);
+			assertEquals(FileUtil.read(csv, CharMatcher.is(';'), 0, true,
+					handlers, 2), 10000);
+			recording.stop();
+			recording.dump(ret);
+		}
+		return ret;
+	}
+
+	@Test
+	public void eventsTest() throws IOException {
+		Path file = record();
+		Map<String, Integer> counts = new HashMap<>();
+		String name;
+		for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+			name = e.getEventType()
+				.getName();
+			Integer count = counts.get(name);
+			counts.put(name, count == null ? 1 : count + 1);
+			if (name.equals(JfrEvents.PREFIX + "FileRead")) {
+				assertEquals(e.getLong("rows"), 10000);
+				assertEquals(e.getInt("chunks"), 2);
+			}
+			if (name.equals(JfrEvents.PREFIX + "PredictBatch")) {
+				assertEquals(e.getInt("requests"), 500);
+			}
+		}
+		assertEquals((int) counts.get(JfrEvents.PREFIX + "SimilarityBuild"), 1);
+		assertEquals((int) counts.get(JfrEvents.PREFIX + "PairStatsBatch"), 8);
+		assertEquals((int) counts.get(JfrEvents.PREFIX + "PredictBatch"), 1);
+		assertEquals((int) counts.get(JfrEvents.PREFIX + "FileRead"), 1);
+		assertEquals((int) counts.get(JfrEvents.PREFIX + "FileChunk"), 2);
+	}
+
+	@Test
+	public void summarizeTest() throws IOException {
+		String actual = JfrSummary.summarize(record(), 5);
+		assertTrue(actual.contains("bcrecommender.SimilarityBuild: count=1 "),
+				actual);
+		assertTrue(actual.contains("bcrecommender.PairStatsBatch: count=8 "),
+				actual);
+		assertTrue(actual.contains("bcrecommender.FileChunk: count=2 "), actual);
+		assertTrue(actual.contains("  rows=10000 "), actual);
+		assertTrue(actual.contains("  requests=500\n"), actual);
+	}
+
+	@Test
+	public void summarizeLocaleTest() throws IOException {
+		Path recording = record();
+		Locale locale = Locale.getDefault();
+		// Decimal separator would be a comma in the default locale
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			String actual = JfrSummary.summarize(recording, 5);
+			assertTrue(actual.matches(
+					"(?s).*SimilarityBuild: count=1 total=[0-9]+\\.[0-9]ms max=[0-9]+\\.[0-9]ms .*"),
+					actual);
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+}
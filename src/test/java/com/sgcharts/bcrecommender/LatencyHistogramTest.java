@@ -0,0 +1,55 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketTest() {
+		for (long v = 0; v < 32; v++) {
+			assertEquals(LatencyHistogram.bucket(v), v);
+			assertEquals(LatencyHistogram.lowestValue((int) v), v);
+		}
+		long[] values = { 32, 33, 34, 35, 63, 64, 100, 1000, 123456789L,
+				Long.MAX_VALUE };
+		int b;
+		for (long v : values) {
+			b = LatencyHistogram.bucket(v);
+			assertTrue(LatencyHistogram.lowestValue(b) <= v);
+			assertTrue(v - LatencyHistogram.lowestValue(b) <= v / 16);
+			if (LatencyHistogram.lowestValue(b) < Long.MAX_VALUE / 2) {
+				assertTrue(LatencyHistogram.lowestValue(b + 1) > v);
+			}
+		}
+		// Buckets are contiguous and increasing
+		for (int i = 1; i < 400; i++) {
+			assertEquals(LatencyHistogram.bucket(LatencyHistogram.lowestValue(i)),
+					i);
+			assertTrue(LatencyHistogram.lowestValue(i) > LatencyHistogram.lowestValue(i - 1));
+		}
+	}
+
+	@Test
+	public void percentileTest() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(h.percentile(50), 0);
+		for (int v = 1; v <= 100; v++) {
+			h.record(v);
+		}
+		assertEquals(h.count(), 100);
+		assertEquals(h.percentile(1), 1);
+		assertEquals(h.percentile(20), 20);
+		// 50 and 99 fall in the buckets [50, 52) and [96, 100)
+		assertEquals(h.percentile(50), 50);
+		assertEquals(h.percentile(99), 96);
+		assertEquals(h.percentile(100), 100);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void percentileOutOfRangeTest() {
+		new LatencyHistogram().percentile(0);
+	}
+}
@@ -0,0 +1,98 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.testng.annotations.Test;
+
+public class MathUtilTest {
+
+	@Test
+	public void magnitudeTest() {
+		assertEquals(MathUtil.magnitude(new double[] { 3, 4 }), 5.0);
+		// Squares below 1 used to be truncated to an int
+		assertEquals(MathUtil.magnitude(new double[] { 0.6, 0.8 }), 1.0, 1e-12);
+	}
+
+	/**
+	 * Random sparse vector of the given length, with ids in [0, range)
+	 */
+	private static TreeMap<Integer, Byte> vector(Random random, int length,
+			int range) {
+		TreeMap<Integer, Byte> ret = new TreeMap<>();
+		while (ret.size() < length) {
+			ret.put(random.nextInt(range), (byte) (1 + random.nextInt(10)));
+		}
+		return ret;
+	}
+
+	@Test
+	public void sparseSumsTest() {
+		Random random = new Random(5);
+		int[][] lengths = { { 0, 5 }, { 1, 1 }, { 20, 30 }, { 3, 500 },
+				{ 700, 2 }, { 64, 64 } };
+		long[] merge = new long[3];
+		long[] gallop = new long[3];
+		for (int[] length : lengths) {
+			TreeMap<Integer, Byte> x = vector(random, length[0], 1000);
+			TreeMap<Integer, Byte> y = vector(random, length[1], 1000);
+			// Lay both slices out in one array, after some padding
+			int[] ids = new int[3 + x.size() + y.size()];
+			byte[] values = new byte[ids.length];
+			int p = 3;
+			for (Integer id : x.keySet()) {
+				ids[p] = id;
+				values[p++] = x.get(id);
+			}
+			for (Integer id : y.keySet()) {
+				ids[p] = id;
+				values[p++] = y.get(id);
+			}
+			long dot = 0;
+			long xNorm = 0;
+			long yNorm = 0;
+			int count = 0;
+			for (Integer id : x.keySet()) {
+				if (y.containsKey(id)) {
+					dot += x.get(id) * y.get(id);
+					xNorm += x.get(id) * x.get(id);
+					yNorm += y.get(id) * y.get(id);
+					count++;
+				}
+			}
+			int xTo = 3 + x.size();
+			assertEquals(MathUtil.sparseSums(ids, values, 3, xTo, ids, values,
+					xTo, ids.length, merge), count);
+			assertEquals(MathUtil.sparseSumsGalloping(ids, values, 3, xTo,
+					ids, values, xTo, ids.length, gallop), count);
+			assertEquals(merge, new long[] { dot, xNorm, yNorm });
+			assertEquals(gallop, merge);
+			assertEquals(MathUtil.sparseDotProduct(ids, values, 3, xTo, ids,
+					values, xTo, ids.length), dot);
+		}
+	}
+
+	@Test
+	public void sparseCosineSimilarityTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(300, 200,
+				4000, 9);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		long[] sums = new long[3];
+		float actual;
+		for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+			for (int other = 0; other < table.itemCount(); other++) {
+				actual = SimilarityBuilder.cosineSimilarity(table, isbn, other,
+						sums);
+				if (isbn == other) {
+					assertTrue(Float.isNaN(actual));
+					continue;
+				}
+				assertEquals(Float.floatToIntBits(actual),
+						Float.floatToIntBits(expected.get(isbn, other)));
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class MemorySchedulerTest {
+
+	/**
+	 * Acquire on another thread, counting down the latch once admitted.
+	 */
+	private static Thread acquire(final MemoryScheduler scheduler,
+			final long bytes, final CountDownLatch admitted) {
+		Thread ret = new Thread() {
+			@Override
+			public void run() {
+				try {
+					scheduler.acquire(bytes);
+					admitted.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread()
+						.interrupt();
+				}
+			}
+		};
+		ret.start();
+		return ret;
+	}
+
+	@Test
+	public void admitWithinBudgetTest() throws InterruptedException {
+		MemoryScheduler scheduler = new MemoryScheduler(100);
+		scheduler.acquire(40);
+		scheduler.acquire(60);
+		scheduler.release(40);
+		scheduler.release(60);
+		assertEquals(scheduler.budget(), 100);
+	}
+
+	@Test(timeOut = 10000)
+	public void admitOversizedWhenIdleTest() throws InterruptedException {
+		MemoryScheduler scheduler = new MemoryScheduler(100);
+		// No other task is running, so the task is admitted anyway
+		scheduler.acquire(1000);
+		CountDownLatch admitted = new CountDownLatch(1);
+		Thread t = acquire(scheduler, 1, admitted);
+		assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+		scheduler.release(1000);
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		t.join();
+	}
+
+	@Test(timeOut = 10000)
+	public void waitForReleaseTest() throws InterruptedException {
+		MemoryScheduler scheduler = new MemoryScheduler(100);
+		scheduler.acquire(70);
+		CountDownLatch admitted = new CountDownLatch(1);
+		Thread t = acquire(scheduler, 50, admitted);
+		assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+		scheduler.release(70);
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		t.join();
+		// 50 reserved, so 50 more fit
+		scheduler.acquire(50);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void zeroBudgetTest() {
+		new MemoryScheduler(0);
+	}
+}
@@ -0,0 +1,89 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.testng.annotations.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void registryTest() {
+		Metrics metrics = new Metrics();
+		assertSame(metrics.counter("a"), metrics.counter("a"));
+		metrics.counter("a")
+			.increment();
+		metrics.counter("a")
+			.add(2);
+		assertEquals(metrics.counter("a")
+			.get(), 3);
+		Metrics.Timer t = metrics.timer("t");
+		t.record(100);
+		t.record(3000);
+		assertEquals(t.count(), 2);
+		assertEquals(t.totalNanos(), 3100);
+		assertEquals(t.maxNanos(), 3000);
+		assertTrue(t.stop(t.start()) >= 0);
+		assertEquals(t.count(), 3);
+		metrics.value("v")
+			.add(1.5);
+		assertEquals(metrics.value("v")
+			.get(), 1.5);
+	}
+
+	@Test
+	public void toJsonTest() {
+		Metrics metrics = new Metrics();
+		metrics.counter("b")
+			.add(2);
+		metrics.counter("a\"")
+			.add(1);
+		metrics.timer("t")
+			.record(10);
+		metrics.value("nan")
+			.add(Double.NaN);
+		metrics.histogram("h")
+			.record(7);
+		assertEquals(
+				metrics.toJson(),
+				"{\n  \"counters\": {\n    \"a\\\"\": 1,\n    \"b\": 2\n  },\n"
+						+ "  \"timers\": {\n    \"t\": {\"count\": 1, \"totalNanos\": 10, \"maxNanos\": 10, \"p50Nanos\": 10, \"p99Nanos\": 10}\n  },\n"
+						+ "  \"values\": {\n    \"nan\": null\n  },\n"
+						+ "  \"histograms\": {\n    \"h\": {\"count\": 1, \"p50\": 7, \"p90\": 7, \"p99\": 7}\n  }\n}\n");
+		assertEquals(new Metrics().toJson(),
+				"{\n  \"counters\": {\n  },\n  \"timers\": {\n  },\n  \"values\": {\n  },\n  \"histograms\": {\n  }\n}\n");
+	}
+
+	@Test
+	public void toJsonLocaleTest() {
+		Metrics metrics = new Metrics();
+		metrics.timer("t")
+			.record(1234567);
+		metrics.histogram("h")
+			.record(42);
+		String expected = metrics.toJson();
+		Locale locale = Locale.getDefault();
+		// Thai digits in the default locale
+		Locale.setDefault(Locale.forLanguageTag("th-TH-u-nu-thai"));
+		try {
+			assertEquals(metrics.toJson(), expected);
+		} finally {
+			Locale.setDefault(locale);
+		}
+		assertTrue(expected.contains("\"totalNanos\": 1234567"), expected);
+	}
+
+	@Test
+	public void toCsvTest() {
+		Metrics metrics = new Metrics();
+		metrics.counter("x,y")
+			.add(2);
+		metrics.value("v")
+			.add(0.25);
+		assertEquals(metrics.toCsv(), "kind,name,statistic,value\n"
+				+ "counter,\"x,y\",count,2\n" + "value,v,value,0.25\n");
+	}
+}
@@ -0,0 +1,77 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class MinHashLshTest {
+
+	@Test
+	public void similarityMatrixTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				4000, 5);
+		final SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		SimilarityMatrix actual = MinHashLsh.similarityMatrix(table, 16, 1, 1);
+		assertTrue(actual.size() <= expected.size());
+		// Candidates are scored exactly
+		actual.forEach(new PairSource.Visitor() {
+			@Override
+			public void visit(long key, float value) {
+				assertEquals(Float.floatToIntBits(value),
+						Float.floatToIntBits(expected.get(key)));
+			}
+		});
+		// More bands find more of the co-rated pairs
+		SimilarityMatrix more = MinHashLsh.similarityMatrix(table, 128, 1, 1);
+		assertTrue(more.size() > actual.size());
+		assertTrue(more.size() > 0.9 * expected.size(), more.size() + " of "
+				+ expected.size());
+	}
+
+	@Test
+	public void identicalRatersTest() {
+		// Items 0 and 1 have the same raters, so they agree on every band;
+		// item 2 shares no rater with them.
+		Ratings r = new Ratings();
+		r.add(0, 0, 5);
+		r.add(0, 1, 3);
+		r.add(1, 0, 2);
+		r.add(1, 1, 8);
+		r.add(2, 2, 4);
+		RatingMatrix table = RatingMatrix.of(r, 3, 4);
+		SimilarityMatrix actual = MinHashLsh.similarityMatrix(table, 1, 8, 7);
+		assertEquals(actual.size(), 1);
+		assertEquals(actual.get(0, 1), SimilarityBuilder.similarityMatrix(table)
+			.get(0, 1));
+	}
+
+	@Test
+	public void maxBucketTest() {
+		// One rater of all items puts them in one bucket of every band
+		Ratings r = new Ratings();
+		for (int i = 0; i < 10; i++) {
+			r.add(0, i, 1 + i);
+		}
+		RatingMatrix table = RatingMatrix.of(r, 1, 10);
+		assertEquals(MinHashLsh.similarityMatrix(table, 4, 1, 10, 7)
+			.size(), 45);
+		assertEquals(MinHashLsh.similarityMatrix(table, 4, 1, 9, 7)
+			.size(), 0);
+	}
+
+	@Test
+	public void signaturesTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(50, 60,
+				500, 9);
+		int[] a = MinHashLsh.signatures(table, 8, 3);
+		assertEquals(a, MinHashLsh.signatures(table, 8, 3));
+		assertEquals(a.length, 8 * table.itemCount());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void zeroBandsTest() {
+		MinHashLsh.similarityMatrix(SimilarityBuilderTest.randomRatingTable(5,
+				5, 10, 1), 0, 1, 1);
+	}
+}
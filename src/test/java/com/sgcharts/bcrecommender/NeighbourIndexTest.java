@@ -0,0 +1,56 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class NeighbourIndexTest {
+
+	@Test
+	public void topKTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				4000, 11);
+		final SimilarityMatrix simMatrix = SimilarityBuilder.similarityMatrix(table);
+		final int k = 5;
+		final float minSimilarity = 0.9F;
+		NeighbourIndex index = NeighbourIndex.of(simMatrix, table.itemCount(),
+				k, minSimilarity);
+		for (int item = 0; item < table.itemCount(); item++) {
+			// Expected neighbours by brute force
+			List<Integer> candidates = new ArrayList<>();
+			for (int other = 0; other < table.itemCount(); other++) {
+				float sim = simMatrix.get(item, other);
+				if (other != item && !Float.isNaN(sim) && sim >= minSimilarity) {
+					candidates.add(other);
+				}
+			}
+			final int i = item;
+			Collections.sort(candidates, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = Float.compare(simMatrix.get(i, b),
+							simMatrix.get(i, a));
+					return c != 0 ? c : Integer.compare(a, b);
+				}
+			});
+			List<Integer> expected = candidates.subList(0,
+					Math.min(k, candidates.size()));
+			assertEquals(index.neighbourTo(item) - index.neighbourFrom(item),
+					expected.size());
+			for (int other : expected) {
+				assertEquals(index.get(item, other), simMatrix.get(item, other));
+			}
+			for (int p = index.neighbourFrom(item) + 1; p < index.neighbourTo(item); p++) {
+				assertTrue(index.neighbour(p - 1) < index.neighbour(p));
+			}
+		}
+		assertTrue(Float.isNaN(index.get(-1, 0)));
+		assertTrue(index.size() <= k * table.itemCount());
+	}
+}
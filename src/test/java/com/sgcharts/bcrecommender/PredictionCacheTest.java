@@ -0,0 +1,163 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+public class PredictionCacheTest {
+	private static final int MIN_RATINGS = 2;
+	private RatingMatrix table;
+	private SimilarityMatrix simMatrix;
+	private Recommender recommender;
+
+	@BeforeClass
+	public void setUp() {
+		table = SimilarityBuilderTest.randomRatingTable(100, 150, 2500, 23);
+		simMatrix = SimilarityBuilder.similarityMatrix(table);
+		recommender = new Recommender(table, NeighbourIndex.of(simMatrix,
+				table.itemCount(), 10, 0), MIN_RATINGS);
+	}
+
+	@Test
+	public void predictTest() {
+		PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 100000);
+		for (int round = 0; round < 2; round++) {
+			for (int uid = 0; uid < table.userCount(); uid++) {
+				for (int isbn = 0; isbn < table.itemCount(); isbn += 5) {
+					assertEquals(cache.predict(uid, isbn), ItemCf.predict(uid,
+							isbn, table, simMatrix, MIN_RATINGS));
+				}
+			}
+		}
+		long n = table.userCount() * ((table.itemCount() + 4) / 5);
+		assertEquals(cache.stats()
+			.missCount(), n);
+		assertEquals(cache.stats()
+			.hitCount(), n);
+	}
+
+	@Test
+	public void recommendTest() {
+		PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 100000);
+		for (int uid = 0; uid < table.userCount(); uid++) {
+			assertEquals(cache.recommend(uid, 5)
+				.toString(), recommender.recommend(uid, 5)
+				.toString());
+			assertEquals(cache.recommend(uid, 5)
+				.toString(), recommender.recommend(uid, 5)
+				.toString());
+		}
+		assertEquals(cache.stats()
+			.hitCount(), table.userCount());
+	}
+
+	@Test
+	public void invalidateTest() {
+		PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 100000);
+		cache.predict(1, 2);
+		cache.recommend(1, 3);
+		cache.predict(2, 2);
+		cache.invalidate(1);
+		assertEquals(cache.invalidationCount(), 1);
+		cache.predict(1, 2);
+		cache.recommend(1, 3);
+		cache.predict(2, 2);
+		assertEquals(cache.stats()
+			.missCount(), 5);
+		assertEquals(cache.stats()
+			.hitCount(), 1);
+		cache.invalidateAll();
+		cache.predict(2, 2);
+		assertEquals(cache.stats()
+			.missCount(), 6);
+	}
+
+	@Test
+	public void expireTest() {
+		final AtomicLong now = new AtomicLong();
+		PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 100000, 1000, new Ticker() {
+					@Override
+					public long read() {
+						return now.get();
+					}
+				});
+		cache.predict(1, 2);
+		cache.recommend(1, 3);
+		now.set(999);
+		cache.predict(1, 2);
+		cache.recommend(1, 3);
+		assertEquals(cache.stats()
+			.hitCount(), 2);
+		// Entries expire however often they are used
+		now.set(1000);
+		cache.predict(1, 2);
+		cache.recommend(1, 3);
+		assertEquals(cache.stats()
+			.missCount(), 4);
+		assertEquals(cache.stats()
+			.hitCount(), 2);
+	}
+
+	@Test
+	public void evictionTest() {
+		PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 50);
+		for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+			cache.predict(0, isbn);
+		}
+		assertTrue(cache.size() <= 50, "size=" + cache.size());
+		assertTrue(cache.stats()
+			.evictionCount() >= table.itemCount() - 50);
+	}
+
+	@Test
+	public void concurrentTest() throws Exception {
+		final PredictionCache cache = new PredictionCache(table, simMatrix,
+				recommender, MIN_RATINGS, 1000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> futures = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			futures.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int errors = 0;
+					for (int i = 0; i < 20000; i++) {
+						int uid = (i * 7 + seed) % table.userCount();
+						int isbn = (i * 13) % table.itemCount();
+						if (i % 1000 == 0) {
+							cache.invalidate(uid);
+						}
+						if (!cache.predict(uid, isbn)
+							.equals(ItemCf.predict(uid, isbn, table,
+									simMatrix, MIN_RATINGS))) {
+							errors++;
+						}
+					}
+					return errors;
+				}
+			}));
+		}
+		for (Future<Integer> f : futures) {
+			assertEquals(f.get()
+				.intValue(), 0);
+		}
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,50 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class RatingMatrixTest {
+
+	@Test
+	public void viewsAreSortedTest() {
+		RatingMatrix m = SimilarityBuilderTest.ratingTable();
+		assertEquals(m.size(), 10);
+		for (int u = 0; u < m.userCount(); u++) {
+			for (int p = m.userFrom(u) + 1; p < m.userTo(u); p++) {
+				assertEquals(m.userItem(p - 1) < m.userItem(p), true);
+			}
+		}
+		for (int i = 0; i < m.itemCount(); i++) {
+			for (int p = m.itemFrom(i) + 1; p < m.itemTo(i); p++) {
+				assertEquals(m.itemUser(p - 1) < m.itemUser(p), true);
+			}
+		}
+		// user 0 rated item 3 then item 2
+		assertEquals(m.userItem(m.userFrom(0)), 2);
+		assertEquals(m.userRating(m.userFrom(0)), 6);
+		// item 3 was rated by users 1, 2 and 0
+		assertEquals(m.itemRatingCount(3), 3);
+		assertEquals(m.itemUser(m.itemFrom(3)), 0);
+	}
+
+	@Test
+	public void ratingTest() {
+		RatingMatrix m = SimilarityBuilderTest.ratingTable();
+		assertEquals(m.rating(1, 3), 10);
+		assertEquals(m.rating(3, 4), 2);
+		assertEquals(m.rating(3, 1), RatingMatrix.NO_RATING);
+		assertEquals(m.rating(99, 1), RatingMatrix.NO_RATING);
+		assertEquals(m.userRatingCount(1), 3);
+		assertEquals(m.userRatingCount(-1), 0);
+		assertEquals(m.itemRatingCount(0), 0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void duplicateRatingTest() {
+		Ratings r = new Ratings();
+		r.add(1, 1, 5);
+		r.add(1, 1, 3);
+		RatingMatrix.of(r, 2, 2);
+	}
+}
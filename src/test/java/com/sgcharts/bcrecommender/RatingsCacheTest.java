@@ -0,0 +1,129 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class RatingsCacheTest {
+
+	@Test
+	public void writeLoadTest() throws IOException {
+		File source = File.createTempFile("ratings", ".csv");
+		source.deleteOnExit();
+		try (Writer out = new FileWriter(source)) {
+			out.write("header\n");
+		}
+		File file = File.createTempFile("ratings", ".cache");
+		file.deleteOnExit();
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		Ratings expected = new Ratings();
+		expected.add(users.id("7"), items.id("034545104x"), 5);
+		expected.add(users.id("8"), items.id("\u00e9dition"), 10);
+		expected.add(users.id("7"), items.id("\u00e9dition"), 1);
+		RatingsCache.write(file, source, expected, 4, users, items);
+		IdDictionary actualUsers = new IdDictionary();
+		IdDictionary actualItems = new IdDictionary();
+		RatingsCache cache = RatingsCache.load(file, source, actualUsers,
+				actualItems);
+		assertEquals(cache.rowCount(), 4);
+		Ratings actual = cache.ratings();
+		assertEquals(actual.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(actual.user(i), expected.user(i));
+			assertEquals(actual.item(i), expected.item(i));
+			assertEquals(actual.rating(i), expected.rating(i));
+		}
+		assertEquals(actualUsers.size(), 2);
+		assertEquals(actualUsers.key(1), "8");
+		assertEquals(actualItems.size(), 2);
+		assertEquals(actualItems.key(1), "\u00e9dition");
+		// Source has changed
+		try (Writer out = new FileWriter(source, true)) {
+			out.write("\"9\";\"0446520802\";\"10\"\n");
+		}
+		assertNull(RatingsCache.load(file, source, new IdDictionary(),
+				new IdDictionary()));
+	}
+
+	@Test
+	public void truncatedCacheTest() throws IOException {
+		File source = File.createTempFile("ratings", ".csv");
+		source.deleteOnExit();
+		try (Writer out = new FileWriter(source)) {
+			out.write("\"User-ID\";\"ISBN\";\"Book-Rating\"\n");
+			out.write("\"7\";\"034545104X\";\"5\"\n");
+			out.write("\"8\";\"0446520802\";\"10\"\n");
+			out.write("\"7\";\"0446520802\";\"1\"\n");
+		}
+		File file = File.createTempFile("ratings", ".cache");
+		file.deleteOnExit();
+		file.delete();
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		Ratings expected = RatingsCache.loadOrRead(file, source, 1, users,
+				items)
+			.ratings();
+		// Cut into the ISBN dictionary, after the user ids were read
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 4);
+		}
+		IdDictionary actualUsers = new IdDictionary();
+		IdDictionary actualItems = new IdDictionary();
+		Ratings actual = RatingsCache.loadOrRead(file, source, 1, actualUsers,
+				actualItems)
+			.ratings();
+		assertEquals(actual.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(actual.user(i), expected.user(i));
+			assertEquals(actual.item(i), expected.item(i));
+			assertEquals(actual.rating(i), expected.rating(i));
+		}
+		assertEquals(actualUsers.size(), users.size());
+		assertEquals(actualItems.size(), items.size());
+		// Cache was rewritten
+		assertNotNull(RatingsCache.load(file, source, new IdDictionary(),
+				new IdDictionary()));
+	}
+
+	@Test
+	public void foreignFileTest() throws IOException {
+		File source = File.createTempFile("ratings", ".csv");
+		source.deleteOnExit();
+		try (Writer out = new FileWriter(source)) {
+			out.write("\"User-ID\";\"ISBN\";\"Book-Rating\"\n");
+			out.write("\"7\";\"034545104X\";\"5\"\n");
+			out.write("\"8\";\"0446520802\";\"10\"\n");
+		}
+		byte[] expected = Files.readAllBytes(source.toPath());
+		// Cache path mistakenly set to the ratings file
+		try {
+			RatingsCache.loadOrRead(source, source, 1, new IdDictionary(),
+					new IdDictionary());
+			fail("expected IOException");
+		} catch (IOException e) {
+			// not a ratings cache
+		}
+		assertTrue(Arrays.equals(Files.readAllBytes(source.toPath()),
+				expected));
+	}
+
+	@Test
+	public void missingCacheTest() throws IOException {
+		assertNull(RatingsCache.load(new File("no-such-ratings.cache"),
+				new File("no-such-ratings.csv"), new IdDictionary(),
+				new IdDictionary()));
+	}
+}
@@ -0,0 +1,131 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.CharMatcher;
+
+public class RatingsReaderTest {
+	private static final CharMatcher SEPARATOR = CharMatcher.anyOf("\";\\");
+
+	private static File write(String content) throws IOException {
+		File file = File.createTempFile("ratings", ".csv");
+		file.deleteOnExit();
+		try (Writer out = new FileWriter(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+
+	@Test
+	public void streamingReadMatchesListReadTest() throws IOException {
+		File file = write("\"User-ID\";\"ISBN\";\"Book-Rating\"\r\n"
+				+ "\"1\";\"034545104X\";\"0\"\r\n" + "\"2\";\" 0155061224 \";\"5\"\n"
+				+ "\n" + "\"3\";\"\";\"7\"\r" + "\"4\";\"0446520802\";\"10\"");
+		final List<List<String>> actual = new ArrayList<>();
+		long rows = FileUtil.read(file, SEPARATOR, 1, true,
+				new FileUtil.FieldHandler() {
+					private List<String> row = new ArrayList<>();
+
+					@Override
+					public void field(int column, CharSequence value) {
+						assertEquals(column, row.size());
+						row.add(value.toString());
+					}
+
+					@Override
+					public void endOfRow(int columns) {
+						assertEquals(columns, row.size());
+						actual.add(row);
+						row = new ArrayList<>();
+					}
+				});
+		List<List<String>> expected = FileUtil.read(file.getPath(), SEPARATOR,
+				1, true);
+		assertEquals(actual, expected);
+		assertEquals(rows, expected.size());
+	}
+
+	@Test
+	public void readTest() throws IOException {
+		File file = write("\"User-ID\";\"ISBN\";\"Book-Rating\"\n"
+				+ "\"7\";\"A\";\"0\"\n" + "\"8\";\"b\";\"5\"\n"
+				+ "\"9\";\"B\";\"10\"\n" + "\"8\";\"a\";\"3\"\n");
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		RatingsReader reader = new RatingsReader(users, items);
+		Ratings ratings = reader.read(file, SEPARATOR, 1, true);
+		assertEquals(reader.rowCount(), 4);
+		assertEquals(ratings.size(), 3);
+		// Implicit rating is dropped before its keys are encoded
+		assertEquals(users.get("7"), IdDictionary.NO_ID);
+		assertEquals(users.key(0), "8");
+		assertEquals(items.key(0), "b");
+		assertEquals(items.key(1), "a");
+		assertEquals(ratings.user(1), 1);
+		assertEquals(ratings.item(1), 0);
+		assertEquals(ratings.rating(1), 10);
+		assertEquals(ratings.item(2), 1);
+		assertEquals(ratings.rating(2), 3);
+	}
+
+	@Test
+	public void parallelReadMatchesStreamingReadTest() throws IOException {
+		Random random = new Random(11);
+		String[] lineEnds = { "\n", "\r\n", "\r" };
+		StringBuilder sb = new StringBuilder("\"User-ID\";\"ISBN\";\"Book-Rating\"\r\n");
+		for (int i = 0; i < 2000; i++) {
+			sb.append('"')
+				.append(random.nextInt(300))
+				.append("\";\" ")
+				.append(random.nextBoolean() ? "isbn" : "ISBN")
+				.append(random.nextInt(500))
+				.append(random.nextInt(20) == 0 ? "\u00e9" : "")
+				.append("\";\"")
+				.append(random.nextInt(11))
+				.append('"')
+				.append(lineEnds[random.nextInt(lineEnds.length)]);
+		}
+		File file = write(sb.toString());
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		RatingsReader reader = new RatingsReader(users, items);
+		Ratings expected = reader.read(file, SEPARATOR, 1, true);
+		for (int nThreads : new int[] { 2, 3 }) {
+			IdDictionary actualUsers = new IdDictionary();
+			IdDictionary actualItems = new IdDictionary();
+			RatingsReader actualReader = new RatingsReader(actualUsers,
+					actualItems);
+			Ratings actual = actualReader.read(file, SEPARATOR, 1, true,
+					nThreads);
+			assertEquals(actualReader.rowCount(), reader.rowCount());
+			assertEquals(actual.size(), expected.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(actual.user(i), expected.user(i));
+				assertEquals(actual.item(i), expected.item(i));
+				assertEquals(actual.rating(i), expected.rating(i));
+			}
+			assertEquals(actualUsers.size(), users.size());
+			assertEquals(actualItems.size(), items.size());
+			for (int i = 0; i < items.size(); i++) {
+				assertEquals(actualItems.key(i), items.key(i));
+			}
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void tooFewColumnsTest() throws IOException {
+		File file = write("header\n\"1\";\"5\"\n");
+		new RatingsReader(new IdDictionary(), new IdDictionary()).read(file,
+				SEPARATOR, 1, true);
+	}
+}
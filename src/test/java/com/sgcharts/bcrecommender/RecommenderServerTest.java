@@ -0,0 +1,208 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+
+public class RecommenderServerTest {
+	private static final int MIN_RATINGS = 2;
+	private RatingMatrix table;
+	private SimilarityMatrix simMatrix;
+	private RecommenderServer server;
+	private int port;
+
+	@BeforeClass
+	public void setUp() throws IOException {
+		table = SimilarityBuilderTest.randomRatingTable(50, 80, 1000, 17);
+		simMatrix = SimilarityBuilder.similarityMatrix(table);
+		IdDictionary users = new IdDictionary();
+		for (int i = 0; i < table.userCount(); i++) {
+			users.id("u" + i);
+		}
+		IdDictionary items = new IdDictionary();
+		for (int i = 0; i < table.itemCount(); i++) {
+			items.id("b" + i);
+		}
+		NeighbourIndex index = NeighbourIndex.of(simMatrix, table.itemCount(),
+				10, 0);
+		server = new RecommenderServer(table, users, items, simMatrix, index,
+				MIN_RATINGS, 1000);
+		port = server.start(0, 2, 16);
+	}
+
+	@AfterClass
+	public void tearDown() {
+		server.stop();
+	}
+
+	private String get(String path, int expectedStatus) throws IOException {
+		return request("GET", port, path, expectedStatus);
+	}
+
+	private static String request(String method, int port, String path,
+			int expectedStatus) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:"
+				+ port + path).openConnection();
+		conn.setRequestMethod(method);
+		assertEquals(conn.getResponseCode(), expectedStatus);
+		InputStream in = expectedStatus == 200 ? conn.getInputStream()
+				: conn.getErrorStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		try {
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+			conn.disconnect();
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void predictTest() throws IOException {
+		int checked = 0;
+		for (int uid = 0; uid < table.userCount() && checked < 20; uid++) {
+			for (int isbn = 0; isbn < table.itemCount(); isbn += 7) {
+				Optional<Integer> p = ItemCf.predict(uid, isbn, table,
+						simMatrix, MIN_RATINGS);
+				String expected = "{\"user\":\"u" + uid + "\",\"isbn\":\"b"
+						+ isbn + "\",\"rating\":"
+						+ (p.isPresent() ? p.get() : "null") + "}";
+				assertEquals(get("/predict?user=u" + uid + "&isbn=b" + isbn,
+						200), expected);
+				checked++;
+			}
+		}
+		assertEquals(get("/predict?user=unknown&isbn=b1", 200),
+				"{\"user\":\"unknown\",\"isbn\":\"b1\",\"rating\":null}");
+		get("/predict?user=u1", 400);
+	}
+
+	@Test
+	public void recommendTest() throws IOException {
+		String body = get("/recommend?user=u3&n=5", 200);
+		assertTrue(body.startsWith("{\"user\":\"u3\",\"items\":["), body);
+		assertEquals(get("/recommend?user=unknown", 200),
+				"{\"user\":\"unknown\",\"items\":[]}");
+		get("/recommend?user=u3&n=x", 400);
+		get("/recommend?user=u3&n=-1", 400);
+	}
+
+	@Test(dependsOnMethods = { "predictTest", "recommendTest" })
+	public void metricsTest() throws IOException {
+		String body = get("/metrics", 200);
+		assertTrue(body.contains("\"predict\":{\"count\":"), body);
+		assertTrue(body.contains("\"recommend\":{\"count\":2,"), body);
+		assertTrue(body.contains("\"p99Micros\":"), body);
+	}
+
+	@Test
+	public void alreadyRatedTest() throws IOException {
+		int uid = 3;
+		assertTrue(table.userRatingCount(uid) != 0);
+		int isbn = table.userItem(table.userFrom(uid));
+		assertEquals(get("/predict?user=u" + uid + "&isbn=b" + isbn, 200),
+				"{\"user\":\"u" + uid + "\",\"isbn\":\"b" + isbn
+						+ "\",\"rating\":null}");
+	}
+
+	@Test
+	public void metricsLocaleTest() {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			// Decimal separator would be a comma in the default locale
+			String body = server.metrics();
+			assertTrue(body.matches("\\{\"uptimeSeconds\":[0-9]+\\.[0-9]{3},.*"),
+					body);
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	@Test
+	public void rateTest() throws IOException {
+		IdDictionary users = new IdDictionary();
+		for (int i = 0; i < table.userCount(); i++) {
+			users.id("u" + i);
+		}
+		IdDictionary items = new IdDictionary();
+		for (int i = 0; i < table.itemCount(); i++) {
+			items.id("b" + i);
+		}
+		IncrementalSimilarity live = IncrementalSimilarity.of(table);
+		RecommenderServer liveServer = new RecommenderServer(live, users,
+				items, NeighbourIndex.of(simMatrix, table.itemCount(), 10, 0),
+				MIN_RATINGS, 1000, 60);
+		int livePort = liveServer.start(0, 2, 16);
+		try {
+			String body = request("GET", livePort, "/recommend?user=u3&n=1",
+					200);
+			assertTrue(body.startsWith("{\"user\":\"u3\",\"items\":[{\"isbn\":\"b"),
+					body);
+			String isbn = body.substring(body.indexOf("\"isbn\":\"") + 8,
+					body.indexOf("\",\"score\""));
+			request("GET", livePort, "/predict?user=u3&isbn=" + isbn, 200);
+			int expectedPairs = table.userRatingCount(3);
+			assertEquals(request("POST", livePort, "/rate?user=u3&isbn="
+					+ isbn + "&rating=8", 200), "{\"user\":\"u3\",\"isbn\":\""
+					+ isbn + "\",\"rating\":8,\"pairs\":" + expectedPairs + "}");
+			assertEquals(live.rating(3, items.get(isbn)), 8);
+			// Cached entries of the user were dropped with the rating
+			assertEquals(request("GET", livePort, "/predict?user=u3&isbn="
+					+ isbn, 200), "{\"user\":\"u3\",\"isbn\":\"" + isbn
+					+ "\",\"rating\":null}");
+			assertFalse(request("GET", livePort, "/recommend?user=u3&n=1", 200).contains(
+					"\"" + isbn + "\""));
+			// Predictions of the user are made from the new rating
+			int other = 0;
+			while (live.rating(3, other) != RatingMatrix.NO_RATING) {
+				other++;
+			}
+			Optional<Integer> p = ItemCf.predict(3, other, live, live,
+					MIN_RATINGS);
+			assertEquals(request("GET", livePort, "/predict?user=u3&isbn=b"
+					+ other, 200), "{\"user\":\"u3\",\"isbn\":\"b" + other
+					+ "\",\"rating\":" + (p.isPresent() ? p.get() : "null")
+					+ "}");
+			assertTrue(request("GET", livePort, "/metrics", 200).contains(
+					"\"invalidations\":1}"));
+			request("GET", livePort, "/rate?user=u3&isbn=b1&rating=8", 405);
+			request("POST", livePort, "/rate?user=u3&isbn=b1&rating=11", 400);
+			request("POST", livePort, "/rate?user=unknown&isbn=b1&rating=8",
+					400);
+		} finally {
+			liveServer.stop();
+		}
+		// A read-only model takes no ratings
+		get("/rate?user=u3&isbn=b1&rating=8", 404);
+	}
+
+	@Test
+	public void paramsTest() {
+		Map<String, String> params = RecommenderServer.params("user=a%20b&isbn=0%2B1&n");
+		assertEquals(params.get("user"), "a b");
+		assertEquals(params.get("isbn"), "0+1");
+		assertEquals(params.get("n"), "");
+		assertTrue(RecommenderServer.params(null)
+			.isEmpty());
+	}
+}
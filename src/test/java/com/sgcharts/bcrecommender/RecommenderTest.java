@@ -0,0 +1,104 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+
+public class RecommenderTest {
+
+	@Test
+	public void recommendTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				6000, 13);
+		SimilarityMatrix simMatrix = SimilarityBuilder.similarityMatrix(table);
+		final NeighbourIndex index = NeighbourIndex.of(simMatrix,
+				table.itemCount(), 10, 0);
+		final int minRatings = 2;
+		final int n = 7;
+		Recommender recommender = new Recommender(table, index, minRatings);
+		int nonEmpty = 0;
+		for (int uid = 0; uid < table.userCount(); uid++) {
+			// Expected recommendations by predicting every unrated item
+			final List<Integer> candidates = new ArrayList<>();
+			final List<Float> scores = new ArrayList<>();
+			for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+				if (table.rating(uid, isbn) != RatingMatrix.NO_RATING) {
+					continue;
+				}
+				Optional<Integer> p = ItemCf.predict(uid, isbn, table, index,
+						minRatings);
+				if (!p.isPresent()) {
+					continue;
+				}
+				float nu = 0;
+				float de = 0;
+				for (int i = table.userFrom(uid); i < table.userTo(uid); i++) {
+					float sim = index.get(isbn, table.userItem(i));
+					if (!Float.isNaN(sim)) {
+						nu += sim * table.userRating(i);
+						de += sim;
+					}
+				}
+				candidates.add(isbn);
+				scores.add(nu / de);
+			}
+			List<Integer> order = new ArrayList<>();
+			for (int i = 0; i < candidates.size(); i++) {
+				order.add(i);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = Float.compare(scores.get(b), scores.get(a));
+					return c != 0 ? c : Integer.compare(candidates.get(a),
+							candidates.get(b));
+				}
+			});
+			List<Recommender.Recommendation> actual = recommender.recommend(
+					uid, n);
+			assertEquals(actual.size(), Math.min(n, order.size()));
+			for (int i = 0; i < actual.size(); i++) {
+				int e = order.get(i);
+				assertEquals(actual.get(i)
+					.item(), (int) candidates.get(e));
+				assertEquals(actual.get(i)
+					.score(), (float) scores.get(e));
+				assertEquals(actual.get(i)
+					.rating(), (int) ItemCf.predict(uid, candidates.get(e),
+						table, index, minRatings)
+					.get());
+			}
+			if (!actual.isEmpty()) {
+				nonEmpty++;
+			}
+		}
+		assertTrue(nonEmpty > 0);
+		assertTrue(recommender.recommend(-1, n)
+			.isEmpty());
+	}
+
+	@Test
+	public void transposeTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(100, 80,
+				2000, 17);
+		NeighbourIndex index = NeighbourIndex.of(
+				SimilarityBuilder.similarityMatrix(table), table.itemCount(), 3,
+				0);
+		NeighbourIndex transposed = index.transpose();
+		assertEquals(transposed.size(), index.size());
+		for (int item = 0; item < table.itemCount(); item++) {
+			for (int other = 0; other < table.itemCount(); other++) {
+				assertEquals(Float.floatToIntBits(transposed.get(other, item)),
+						Float.floatToIntBits(index.get(item, other)));
+			}
+		}
+	}
+}
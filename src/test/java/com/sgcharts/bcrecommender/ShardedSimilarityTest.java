@@ -0,0 +1,142 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class ShardedSimilarityTest {
+
+	/**
+	 * @return ratings file in the book crossing format
+	 */
+	private static File ratingsFile() throws IOException {
+		File ret = File.createTempFile("ratings", ".csv");
+		ret.deleteOnExit();
+		Random random = new Random(17);
+		Set<String> pairs = new HashSet<>();
+		try (Writer out = new FileWriter(ret)) {
+			out.write("\"User-ID\";\"ISBN\";\"Book-Rating\"\n");
+			while (pairs.size() < 3000) {
+				String uid = Integer.toString(random.nextInt(100));
+				String isbn = Integer.toString(1000 + random.nextInt(200));
+				if (pairs.add(uid + ";" + isbn)) {
+					out.write("\"" + uid + "\";\"" + isbn + "\";\""
+							+ (1 + random.nextInt(10)) + "\"\n");
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static File tempDir() throws IOException {
+		File ret = Files.createTempDirectory("shards")
+			.toFile();
+		ret.deleteOnExit();
+		return ret;
+	}
+
+	private static void assertSameModel(ShardedSimilarity actual,
+			SimilarityMatrix expected, RatingMatrix ratingTable) {
+		SimilarityBuilderTest.assertSameScores(actual, expected);
+		// Predictions route each lookup to the shard of the pair
+		int n = ratingTable.userCount() * 5;
+		int[] uids = new int[n];
+		int[] isbns = new int[n];
+		for (int i = 0; i < n; i++) {
+			uids[i] = i % ratingTable.userCount();
+			isbns[i] = (i * 7) % ratingTable.itemCount();
+		}
+		int[] expectedPredictions = new int[n];
+		int[] actualPredictions = new int[n];
+		ItemCf.predict(uids, isbns, 0, n, ratingTable, expected, 1,
+				expectedPredictions);
+		ItemCf.predict(uids, isbns, 0, n, ratingTable, actual, 1,
+				actualPredictions);
+		assertEquals(actualPredictions, expectedPredictions);
+	}
+
+	@Test
+	public void shardWorkerTest() throws IOException {
+		File source = ratingsFile();
+		File dir = tempDir();
+		File cache = new File(dir, "ratings.cache");
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		Ratings ratings = RatingsCache.loadOrRead(cache, source, 1, users,
+				items)
+			.ratings();
+		RatingMatrix ratingTable = RatingMatrix.of(ratings, users.size(),
+				items.size());
+		long pairs = 0;
+		for (int s = 0; s < 3; s++) {
+			pairs += ShardWorker.build(source, cache, s, 3, dir, 1 << 12);
+		}
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(ratingTable);
+		assertEquals(pairs, expected.size());
+		File manifest = ShardedSimilarity.writeManifest(dir, 3, items.size(),
+				ratings.fingerprint());
+		try (ShardedSimilarity actual = ShardedSimilarity.open(manifest)) {
+			assertEquals(actual.shardCount(), 3);
+			assertEquals(actual.fingerprint(), ratings.fingerprint());
+			assertSameModel(actual, expected, ratingTable);
+		}
+	}
+
+	@Test
+	public void shardCoordinatorTest() throws IOException,
+			InterruptedException {
+		File source = ratingsFile();
+		File dir = tempDir();
+		File cache = new File(dir, "ratings.cache");
+		File manifest = ShardCoordinator.build(source, cache, dir, 2,
+				Collections.singletonList("-Xmx64m"));
+		IdDictionary users = new IdDictionary();
+		IdDictionary items = new IdDictionary();
+		Ratings ratings = RatingsCache.load(cache, source, users, items)
+			.ratings();
+		RatingMatrix ratingTable = RatingMatrix.of(ratings, users.size(),
+				items.size());
+		try (ShardedSimilarity actual = ShardedSimilarity.open(manifest)) {
+			assertEquals(actual.shardCount(), 2);
+			assertSameModel(actual, SimilarityBuilder.similarityMatrix(ratingTable),
+					ratingTable);
+		}
+		assertTrue(new File(dir, "shard-1.log").isFile());
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void otherRatingsTest() throws IOException {
+		File source = ratingsFile();
+		File dir = tempDir();
+		File cache = new File(dir, "ratings.cache");
+		IdDictionary items = new IdDictionary();
+		Ratings ratings = RatingsCache.loadOrRead(cache, source, 1,
+				new IdDictionary(), items)
+			.ratings();
+		ShardWorker.build(source, cache, 0, 1, dir, 1 << 20);
+		ShardedSimilarity.open(ShardedSimilarity.writeManifest(dir, 1,
+				items.size(), ratings.fingerprint() + 1));
+	}
+
+	@Test
+	public void shardOfTest() {
+		int[] counts = new int[4];
+		for (int item = 0; item < 10000; item++) {
+			counts[ShardedSimilarity.shardOf(item, 4)]++;
+		}
+		for (int count : counts) {
+			assertTrue(count > 2000, "" + count);
+		}
+	}
+}
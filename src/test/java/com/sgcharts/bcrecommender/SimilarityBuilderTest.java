@@ -0,0 +1,169 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.google.common.primitives.Doubles;
+
+public class SimilarityBuilderTest {
+
+	static RatingMatrix ratingTable() {
+		Ratings r = new Ratings();
+		r.add(1, 1, 5);
+		r.add(1, 2, 3);
+		r.add(1, 3, 10);
+		r.add(2, 1, 7);
+		r.add(2, 3, 1);
+		r.add(3, 2, 8);
+		r.add(3, 4, 2);
+		r.add(4, 5, 9);
+		r.add(0, 3, 4);
+		r.add(0, 2, 6);
+		return RatingMatrix.of(r, 5, 6);
+	}
+
+	/**
+	 * Cosine similarity by intersecting the raters of both items, as the
+	 * all-pairs loop used to do.
+	 */
+	static Float expected(RatingMatrix table, int isbn, int other) {
+		List<Double> x = new ArrayList<>();
+		List<Double> y = new ArrayList<>();
+		for (int p = table.itemFrom(isbn); p < table.itemTo(isbn); p++) {
+			int uid = table.itemUser(p);
+			int r = table.rating(uid, other);
+			if (r != RatingMatrix.NO_RATING) {
+				x.add((double) table.itemRating(p));
+				y.add((double) r);
+			}
+		}
+		if (x.isEmpty()) {
+			return null;
+		}
+		return (float) MathUtil.cosineSimilarity(Doubles.toArray(x),
+				Doubles.toArray(y));
+	}
+
+	@Test
+	public void similarityMatrixTest() {
+		RatingMatrix table = ratingTable();
+		SimilarityMatrix actual = SimilarityBuilder.similarityMatrix(table);
+		// 5 shares no rater with any item; 3-4 and 1-4 share no rater
+		assertEquals(actual.size(), 4);
+		for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+			for (int other = isbn + 1; other < table.itemCount(); other++) {
+				Float e = expected(table, isbn, other);
+				if (e == null) {
+					assertTrue(Float.isNaN(actual.get(isbn, other)));
+					continue;
+				}
+				assertEquals(actual.get(isbn, other), (float) e);
+			}
+		}
+	}
+
+	/**
+	 * Random ratings with skewed user and item degrees
+	 */
+	static RatingMatrix randomRatingTable(int nUsers, int nItems, int n,
+			long seed) {
+		Random random = new Random(seed);
+		Set<Long> seen = new HashSet<>();
+		Ratings r = new Ratings();
+		int u;
+		int i;
+		for (int k = 0; k < n; k++) {
+			u = (int) (nUsers * Math.pow(random.nextDouble(), 2));
+			i = (int) (nItems * Math.pow(random.nextDouble(), 3));
+			if (seen.add(((long) u << 32) | i)) {
+				r.add(u, i, 1 + random.nextInt(10));
+			}
+		}
+		return RatingMatrix.of(r, nUsers, nItems);
+	}
+
+	/**
+	 * Assert that a model has exactly the pairs of a similarity matrix, with
+	 * bit-for-bit the same scores in either order of the items.
+	 */
+	static <T extends ItemSimilarity & PairSource> void assertSameScores(
+			final T actual, SimilarityMatrix expected) {
+		final long[] count = new long[1];
+		actual.forEach(new PairSource.Visitor() {
+			@Override
+			public void visit(long key, float value) {
+				count[0]++;
+			}
+		});
+		assertEquals(count[0], expected.size());
+		expected.forEach(new PairSource.Visitor() {
+			@Override
+			public void visit(long key, float value) {
+				int isbn = ItemCf.firstItem(key);
+				int other = ItemCf.secondItem(key);
+				assertEquals(Float.floatToIntBits(actual.get(isbn, other)),
+						Float.floatToIntBits(value), "pair " + isbn + ","
+								+ other);
+				assertEquals(Float.floatToIntBits(actual.get(other, isbn)),
+						Float.floatToIntBits(value), "pair " + other + ","
+								+ isbn);
+			}
+		});
+	}
+
+	@Test
+	public void parallelSimilarityMatrixTest() {
+		RatingMatrix table = randomRatingTable(300, 800, 5000, 7);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		SimilarityMatrix actual = SimilarityBuilder.similarityMatrix(table, 4);
+		assertEquals(actual.size(), expected.size());
+		for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+			for (int other = isbn + 1; other < table.itemCount(); other++) {
+				assertEquals(Float.floatToIntBits(actual.get(isbn, other)),
+						Float.floatToIntBits(expected.get(isbn, other)));
+			}
+		}
+	}
+
+	/**
+	 * @return number of co-rated item pairs, summed over the raters
+	 */
+	static long coRatings(RatingMatrix table) {
+		long ret = 0;
+		long n;
+		for (int u = 0; u < table.userCount(); u++) {
+			n = table.userRatingCount(u);
+			ret += n * (n - 1) / 2;
+		}
+		return ret;
+	}
+
+	@Test
+	public void coRatingsTest() {
+		RatingMatrix table = randomRatingTable(300, 800, 5000, 7);
+		for (int nThreads : new int[] { 1, 4 }) {
+			Metrics.Counter coRatings = new Metrics.Counter();
+			SimilarityBuilder.similarityMatrix(table, nThreads, coRatings);
+			assertEquals(coRatings.get(), coRatings(table));
+		}
+	}
+
+	@Test
+	public void partitionTest() {
+		long[] work = { 10, 0, 0, 1, 1, 1, 1, 6 };
+		assertEquals(SimilarityBuilder.partition(work, 2),
+				new int[] { 0, 1, 8 });
+		assertEquals(SimilarityBuilder.partition(work, 7),
+				new int[] { 0, 1, 6, 8 });
+		assertEquals(SimilarityBuilder.partition(new long[3], 4),
+				new int[] { 0, 3 });
+	}
+}
@@ -0,0 +1,80 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+public class SimilarityFileTest {
+
+	@Test
+	public void writeOpenTest() throws IOException {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				3000, 3);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		SimilarityFile.write(expected, table.itemCount(), 42L, file);
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.size(), expected.size());
+			assertEquals(actual.itemCount(), table.itemCount());
+			assertEquals(actual.fingerprint(), 42L);
+			for (int isbn = 0; isbn < table.itemCount(); isbn++) {
+				for (int other = 0; other < table.itemCount(); other++) {
+					assertEquals(Float.floatToIntBits(actual.get(isbn, other)),
+							Float.floatToIntBits(expected.get(isbn, other)));
+				}
+			}
+			assertTrue(Float.isNaN(actual.get(-1, 2)));
+			assertTrue(Float.isNaN(actual.get(0, table.itemCount())));
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void appendOutOfOrderTest() throws IOException {
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		try (SimilarityFile.Writer w = new SimilarityFile.Writer(file, 10, 0)) {
+			w.append(2, 3, 0.5F);
+			w.append(1, 3, 0.5F);
+		}
+	}
+
+	@Test
+	public void uncommittedWriteTest() throws IOException {
+		SimilarityMatrix expected = new SimilarityMatrix();
+		expected.put(ItemCf.pairKey(1, 2), 0.25F);
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		SimilarityFile.write(expected, 10, 7L, file);
+		try (SimilarityFile.Writer w = new SimilarityFile.Writer(file, 10, 8L)) {
+			w.append(2, 3, 0.5F);
+			w.append(4, 5, 0.5F);
+		}
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		try (SimilarityFile actual = SimilarityFile.open(file)) {
+			assertEquals(actual.size(), 1);
+			assertEquals(actual.fingerprint(), 7L);
+			assertEquals(actual.get(1, 2), 0.25F);
+		}
+		File missing = new File(file.getPath() + ".missing");
+		try (SimilarityFile.Writer w = new SimilarityFile.Writer(missing, 10,
+				8L)) {
+			w.append(2, 3, 0.5F);
+		}
+		assertFalse(missing.exists());
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void openInvalidFileTest() throws IOException {
+		File file = File.createTempFile("similarity", ".sim");
+		file.deleteOnExit();
+		FileUtil.write("not a similarity file, but long enough for a header",
+				file);
+		SimilarityFile.open(file);
+	}
+}
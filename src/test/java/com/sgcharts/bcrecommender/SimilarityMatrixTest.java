@@ -0,0 +1,53 @@
+package com.sgcharts.bcrecommender;
+
+import static com.sgcharts.bcrecommender.ItemCf.pairKey;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class SimilarityMatrixTest {
+
+	@Test
+	public void pairKeyTest() {
+		assertEquals(pairKey(3, 7), pairKey(7, 3));
+		assertEquals(pairKey(3, 7), (3L << 32) | 7L);
+		assertEquals(pairKey(0, Integer.MAX_VALUE), Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void putGetTest() {
+		SimilarityMatrix m = new SimilarityMatrix();
+		final int n = 10_000;
+		for (int i = 0; i < n; i++) {
+			m.put(i, i + 1, i / (float) n);
+		}
+		assertEquals(m.size(), n);
+		for (int i = 0; i < n; i++) {
+			assertEquals(m.get(i + 1, i), i / (float) n);
+		}
+		assertTrue(Float.isNaN(m.get(0, 2)));
+		assertTrue(Float.isNaN(m.get(n + 5, n + 6)));
+		// Replace an existing score
+		m.put(1, 0, 0.5F);
+		assertEquals(m.size(), n);
+		assertEquals(m.get(0, 1), 0.5F);
+		assertTrue(m.size() <= 0.75 * m.capacity());
+	}
+
+	@Test
+	public void probeLengthHistogramTest() {
+		SimilarityMatrix m = new SimilarityMatrix(1000);
+		assertEquals(m.capacity(), 2048);
+		for (int i = 0; i < 1000; i++) {
+			m.put(i, 2 * i + 1, 1F);
+		}
+		long[] histogram = m.probeLengthHistogram();
+		long sum = 0;
+		for (long count : histogram) {
+			sum += count;
+		}
+		assertEquals(sum, 1000);
+		assertEquals(histogram[0], 0);
+	}
+}
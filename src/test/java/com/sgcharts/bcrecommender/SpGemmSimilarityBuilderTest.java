@@ -0,0 +1,96 @@
+package com.sgcharts.bcrecommender;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.annotations.Test;
+
+public class SpGemmSimilarityBuilderTest {
+
+	@Test
+	public void similarityMatrixTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				4000, 13);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		SimilarityBuilderTest.assertSameScores(
+				SpGemmSimilarityBuilder.similarityMatrix(table), expected);
+		SimilarityBuilderTest.assertSameScores(
+				SpGemmSimilarityBuilder.similarityMatrix(table, 3), expected);
+	}
+
+	@Test
+	public void coRatingsTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				4000, 13);
+		for (int nThreads : new int[] { 1, 3 }) {
+			Metrics.Counter coRatings = new Metrics.Counter();
+			SpGemmSimilarityBuilder.similarityMatrix(table, nThreads,
+					coRatings);
+			assertEquals(coRatings.get(),
+					SimilarityBuilderTest.coRatings(table));
+		}
+	}
+
+	@Test
+	public void tileTest() {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(100, 150,
+				2000, 5);
+		SimilarityMatrix expected = SimilarityBuilder.similarityMatrix(table);
+		for (int tile : new int[] { 1, 7, 64, 1000 }) {
+			final SimilarityMatrix actual = new SimilarityMatrix();
+			SpGemmSimilarityBuilder.forEach(table, 0, table.itemCount(), tile,
+					new PairSource.Visitor() {
+						private long last = -1;
+
+						@Override
+						public void visit(long key, float value) {
+							assertTrue(key > last);
+							last = key;
+							actual.put(key, value);
+						}
+					});
+			SimilarityBuilderTest.assertSameScores(actual, expected);
+		}
+	}
+
+	@Test
+	public void writeTest() throws IOException {
+		RatingMatrix table = SimilarityBuilderTest.randomRatingTable(200, 300,
+				3000, 3);
+		File expected = File.createTempFile("similarity", ".sim");
+		expected.deleteOnExit();
+		SimilarityFile.write(SimilarityBuilder.similarityMatrix(table),
+				table.itemCount(), 9L, expected);
+		File actual = File.createTempFile("similarity", ".sim");
+		actual.deleteOnExit();
+		SpGemmSimilarityBuilder.write(table, 9L, actual);
+		assertEquals(Files.readAllBytes(actual.toPath()),
+				Files.readAllBytes(expected.toPath()));
+		// Ranges computed on several threads are written in order
+		for (int nThreads : new int[] { 2, 3, 8 }) {
+			SpGemmSimilarityBuilder.write(table, 9L, actual, nThreads);
+			assertEquals(Files.readAllBytes(actual.toPath()),
+					Files.readAllBytes(expected.toPath()));
+		}
+		SpGemmSimilarityBuilder.write(RatingMatrix.of(new Ratings(), 0, 0), 9L,
+				actual, 2);
+		try (SimilarityFile empty = SimilarityFile.open(actual)) {
+			assertEquals(empty.size(), 0);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void zeroTileTest() {
+		SpGemmSimilarityBuilder.forEach(SimilarityBuilderTest.randomRatingTable(
+				5, 5, 10, 1), 0, 5, 0, new PairSource.Visitor() {
+					@Override
+					public void visit(long key, float value) {
+						// Not called
+					}
+				});
+	}
+}
@@ -187,4 +187,11 @@ public class StringUtilTest {
 		expected.put("5", "&lt;");
 		return new Object[][] { { input, expected } };
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void appendJsonStringTest() {
+		StringBuilder sb = new StringBuilder();
+		appendJsonString(sb, "a\"b\\c\n");
+		assertEquals(sb.toString(), "\"a\\\"b\\\\c\\u000a\"");
+	}
+}